@@ -28,292 +28,611 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import android.view.accessibility.AccessibilityWindowInfo;
 import com.google.android.accessibility.utils.traversal.OrderedTraversalStrategy;
 import com.jwlilly.accessibilityinspector.AccessibilityInspector;
-
-import java.text.DecimalFormat;
+import com.jwlilly.accessibilityinspector.CaptureRequest;
+import com.jwlilly.accessibilityinspector.InspectorMetrics;
+import com.jwlilly.accessibilityinspector.NodeHash;
+import com.jwlilly.accessibilityinspector.NodeRegistry;
+import com.jwlilly.accessibilityinspector.Projection;
+import com.jwlilly.accessibilityinspector.Utf8JsonWriter;
+import com.jwlilly.accessibilityinspector.WindowPolicy;
+import com.jwlilly.accessibilityinspector.WindowTreeCache;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /** Util class to help debug Node trees. */
 public class TreeDebug {
-  private static AccessibilityInspector inspector = null;
   public static final String TAG = "TreeDebug";
-  /** Logs the layout hierarchy of node trees for given list of windows. */
-  public static void logNodeTrees(List<AccessibilityWindowInfo> windows, AccessibilityInspector receiver) {
-    inspector = receiver;
-    JSONObject parentObject = new JSONObject();
-    if (windows == null) {
-      return;
+
+  private static final int MAX_POOLED_NAMES = 1024;
+  private static final int MAX_SPARE_WRITERS = 8;
+
+  // Each getChild is a blocking IPC to the app, so windows are walked in parallel. Threads are
+  // only kept while captures are running.
+  private static final ThreadPoolExecutor windowPool = createWindowPool();
+  private static final ConcurrentHashMap<String, String> simpleNames = new ConcurrentHashMap<>();
+  private static final ConcurrentLinkedQueue<Utf8JsonWriter> spareWriters = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Everything a capture needs besides the nodes themselves, read once per capture. Captures do
+   * not share any mutable state, so several can run at the same time.
+   */
+  public static final class CaptureContext {
+    private final AccessibilityInspector inspector;
+    private final boolean visibleOnly;
+    private final boolean importantOnly;
+    private final Projection projection;
+    private final WindowPolicy windowPolicy;
+    private final NodeRegistry.@Nullable Generation nodes;
+    // Null unless whole windows get written and their handles registered, so they can be reused
+    private final @Nullable WindowTreeCache windowCache;
+    private final CaptureRequest windowOptions;
+    private final long cacheStamp;
+    private final int maxDepth;
+    // Shared by the windows of a capture, which may be walked at the same time
+    private final AtomicInteger nodeBudget;
+    private final long deadlineNanos;
+    private final List<Continuation> continuations = Collections.synchronizedList(new ArrayList<>());
+    private final float density;
+    private final char zeroDigit;
+    private final char decimalSeparator;
+    private final char minusSign;
+
+    /**
+     * A capture with the request's options. Only the fields in its projection are read and
+     * written, and nodes not important for accessibility are left out unless the request includes
+     * them, their children taking their place. The capture stops at the request's maxDepth levels
+     * below each window (or below the expanded node), and at its node and time budgets, which
+     * start now. Nodes whose children were left out get "hasMoreChildren" and can be expanded later
+     * by their node id; where a budget cut the capture short, it also records
+     * {@link #getContinuations() where to resume}.
+     *
+     * <p>Node handles are registered in {@code nodes}, if given, as the nodes are written. Such
+     * captures without budgets reuse the windows that have not changed since an earlier capture
+     * with the same options wrote them.
+     */
+    public CaptureContext(AccessibilityInspector inspector, CaptureRequest request,
+        NodeRegistry.@Nullable Generation nodes) {
+      this.inspector = inspector;
+      this.visibleOnly = request.isVisibleOnly();
+      this.importantOnly = !request.includesNotImportant();
+      this.projection = request.getProjection();
+      this.windowPolicy = request.getWindowPolicy();
+      this.nodes = nodes;
+      this.maxDepth = request.getMaxDepth() > 0 ? request.getMaxDepth() : Integer.MAX_VALUE;
+      this.nodeBudget = new AtomicInteger(request.getMaxNodes() > 0 ? request.getMaxNodes() : Integer.MAX_VALUE);
+      this.deadlineNanos = request.getTimeBudgetMillis() > 0
+          ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(request.getTimeBudgetMillis()) : Long.MAX_VALUE;
+      boolean unlimited = request.getMaxNodes() == 0 && request.getTimeBudgetMillis() == 0;
+      this.windowCache = nodes != null && unlimited ? inspector.getWindowTreeCache() : null;
+      this.windowOptions = request.windowOptions();
+      this.cacheStamp = windowCache != null ? windowCache.stamp() : 0;
+      Context context = inspector.getContext();
+      density = (float) context.getResources().getDisplayMetrics().densityDpi / DisplayMetrics.DENSITY_DEFAULT;
+      DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance();
+      zeroDigit = symbols.getZeroDigit();
+      decimalSeparator = symbols.getDecimalSeparator();
+      minusSign = symbols.getMinusSign();
     }
-    //Log.v(TAG, "------------Node tree------------");
-    JSONArray windowArray = new JSONArray();
-    for (AccessibilityWindowInfo window : windows) {
-      JSONObject windowObject = new JSONObject();
-      if (window == null || !window.isActive()) {
-        continue;
+
+    /** Takes one node from the node budget, or returns false if it or the time budget is used up. */
+    private boolean takeNode() {
+      if (deadlineNanos != Long.MAX_VALUE && System.nanoTime() > deadlineNanos) {
+        return false;
       }
+      return nodeBudget.getAndDecrement() > 0;
+    }
 
+    /**
+     * The nodes whose remaining children the budgets left out, innermost first. Each can be
+     * resumed with {@link #logContinuation}, in any order.
+     */
+    public List<Continuation> getContinuations() {
+      return continuations;
+    }
+  }
 
-      // TODO: Filter and print useful window information.
-//      Log.v(TAG, "Window: " + window);
-      JSONObject metadata = new JSONObject();
-      try {
-
-        metadata.put("windowId", window.getId());
-        metadata.put("role", "Window");
-        windowObject.put("name", "Window");
-        metadata.put("title", window.getTitle());
-
-      } catch (JSONException e) {
-        Log.e("JSON Error", e.getMessage());
-      }
-      AccessibilityNodeInfo rootInfo = inspector.getRootInActiveWindow();
-      AccessibilityNodeInfoCompat root = AccessibilityNodeInfoCompat.wrap(rootInfo);
-      logNodeTree(root, windowObject);
-      try {
-        Rect rect = new Rect();
-        root.getBoundsInScreen(rect);
-        metadata.put("x1", rect.left);
-        metadata.put("y1", rect.top);
-        metadata.put("x2", rect.right);
-        metadata.put("y2", rect.bottom);
-        windowObject.put("id", root.hashCode());
-        windowObject.put("metadata", metadata);
-        AccessibilityNodeInfoUtils.recycleNodes(root);
-      } catch (JSONException e) {
-        Log.e("AccessibilityInspector", e.getMessage());
-      }
-      String title = "";
-      if(window.getTitle() != null) {
-        title = window.getTitle().toString();
-      }
-
-      boolean isEmpty = false;
-      try {
-        isEmpty = windowObject.getJSONArray("children").length() == 0;
-        if(!isEmpty) {
-          JSONArray children = windowObject.getJSONArray("children");
-          if(children.get(0) != null) {
-            JSONObject object = children.getJSONObject(0);
-            if(object.has("paneTitle")) {
-              isEmpty = object.getString("paneTitle").equals("Status bar") || object.getString("paneTitle").equals("Notification shade.");
-            }
+  /**
+   * Children a budgeted capture did not get to: those of {@link #node} from {@code firstChild} on,
+   * which go at the end of the children of the node written as {@link #nodeId}. The two differ
+   * when {@link #node} was left out as not important for accessibility.
+   */
+  public static final class Continuation {
+    public final String nodeId;
+    private final AccessibilityNodeInfoCompat node;
+    private final int firstChild;
+    // Level of the children, so maxDepth keeps counting from the window
+    private final int depth;
+
+    private Continuation(String nodeId, AccessibilityNodeInfoCompat node, int firstChild, int depth) {
+      this.nodeId = nodeId;
+      this.node = node;
+      this.firstChild = firstChild;
+      this.depth = depth;
+    }
+  }
+
+  /** The traversal of one window, with objects reused for every node instead of per node. */
+  private static final class WindowCapture {
+    final CaptureContext context;
+    final Utf8JsonWriter writer;
+    final Rect bounds = new Rect();
+    final Rect windowBounds = new Rect();
+    final StringBuilder scratch = new StringBuilder();
+    final HashSet<AccessibilityNodeInfoCompat> seen = new HashSet<>();
+    // Number of children kept by the last logChildren call
+    int keptChildren;
+    // Nodes a visible-only capture left out without writing them
+    int prunedNodes;
+    // Level of the nodes logChildren is writing, 1 for the children of the window root
+    int depth = 1;
+    // Whether the last logChildren call stopped early because the node budget ran out
+    boolean childrenTruncated;
+    // Node id of the last node written, and of the node whose children are being written
+    String nodeId;
+    String parentId;
+    // Handles registered for the window, kept with it in the window cache
+    @Nullable Map<String, AccessibilityNodeInfo> handles;
+
+    WindowCapture(CaptureContext context, Utf8JsonWriter writer) {
+      this.context = context;
+      this.writer = writer;
+    }
+  }
+
+  private static ThreadPoolExecutor createWindowPool() {
+    int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "A11yWindowCapture-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Writes the "children" field of a tree message straight into {@code writer}: the node trees of
+   * the given windows, with a "hash" on every node (see {@link NodeHash}). Returns the digest of the
+   * window hashes, which is the message's own "hash". With {@code visibleOnly}, invisible nodes
+   * that have no visible descendants are left out. Invisible leaves are dropped before any of
+   * their fields are read, and the children of invisible nodes outside the window are never
+   * fetched. Nodes beyond the context's depth or node limit are left out, and their parents
+   * marked with "hasMoreChildren".
+   *
+   * <p>With more than one window, each window is walked on a worker thread into its own buffer, and
+   * the results are merged in the order of {@code windows}, which is their layer order.
+   *
+   * <p>Windows the context's {@link WindowPolicy} rules out are skipped before any of their nodes
+   * is fetched, and listed in a "skippedWindows" field after the children.
+   */
+  public static long logNodeTrees(List<AccessibilityWindowInfo> windows, CaptureContext context,
+      Utf8JsonWriter writer) {
+    long rootDigest = NodeHash.NO_CHILDREN;
+    List<AccessibilityWindowInfo> captured = new ArrayList<>();
+    // For each captured window either its root, to walk it, or what an earlier capture wrote
+    List<@Nullable AccessibilityNodeInfoCompat> roots = new ArrayList<>();
+    List<WindowTreeCache.@Nullable CachedWindow> cachedWindows = new ArrayList<>();
+    List<AccessibilityWindowInfo> skipped = new ArrayList<>();
+    List<String> skipReasons = new ArrayList<>();
+    int walked = 0;
+    if (windows != null) {
+      if (simpleNames.size() > MAX_POOLED_NAMES) {
+        simpleNames.clear();
+      }
+      WindowPolicy policy = context.windowPolicy;
+      for (AccessibilityWindowInfo window : windows) {
+        if (window == null) {
+          continue;
+        }
+        String reason = policy.skipReason(window);
+        AccessibilityNodeInfo rootInfo = null;
+        WindowTreeCache.CachedWindow cached = null;
+        if (reason == null) {
+          cached = context.windowCache != null
+              ? context.windowCache.get(window.getId(), context.windowOptions) : null;
+          CharSequence packageName = null;
+          CharSequence paneTitle = null;
+          if (cached != null) {
+            packageName = cached.packageName;
+            paneTitle = cached.paneTitle;
+          } else {
+            rootInfo = window.getRoot();
+            packageName = rootInfo != null ? rootInfo.getPackageName() : null;
+            // The status bar and notification shade are only told apart by their first node
+            paneTitle = rootInfo != null && policy.checksPaneTitle()
+                ? WindowPolicy.firstPaneTitle(rootInfo) : null;
+          }
+          if (policy.checksPackage() && (cached != null || rootInfo != null)) {
+            reason = policy.skipReason(packageName);
+          }
+          if (reason == null) {
+            reason = policy.skipReasonForPaneTitle(paneTitle);
+          }
+        }
+        if (reason != null) {
+          skipped.add(window);
+          skipReasons.add(reason);
+        } else if (cached != null || rootInfo != null) {
+          captured.add(window);
+          roots.add(rootInfo != null ? AccessibilityNodeInfoCompat.wrap(rootInfo) : null);
+          cachedWindows.add(cached);
+          if (cached == null) {
+            walked++;
           }
         }
-      } catch (JSONException e) {
-        isEmpty = true;
-      }
-
-      if(!title.equals("Navigation bar") && !isEmpty){
-        windowArray.put(windowObject);
       }
     }
-    try {
-      parentObject.put("children", windowArray);
-//      String json = parentObject.toString();
-//      for(int i = 0; i < json.length(); i += 1024) {
-//        Log.d("DebugJSON", json.substring(i, Math.min(i + 1024, json.length())));
-//      }
-      receiver.sendJSON(parentObject);
-      parentObject = new JSONObject();
-    } catch (JSONException e) {
-      Log.e("JSON Error", e.getMessage());
-    }
-  }
-
-  /** Fast tree capture for stable trees - optimized for performance over completeness */
-  public static void logNodeTreesFast(List<AccessibilityWindowInfo> windows, AccessibilityInspector receiver) {
-    inspector = receiver;
-    JSONObject parentObject = new JSONObject();
-    if (windows == null) {
-      return;
+    InspectorMetrics.add("capture.windows", captured.size());
+    InspectorMetrics.add("capture.cachedWindows", captured.size() - walked);
+    InspectorMetrics.add("capture.skippedWindows", skipped.size());
+    writer.name("children").beginArray();
+
+    List<@Nullable Future<WindowResult>> results = new ArrayList<>(captured.size());
+    for (int i = 0; i < captured.size(); i++) {
+      AccessibilityWindowInfo window = captured.get(i);
+      AccessibilityNodeInfoCompat root = roots.get(i);
+      // A single window is not worth a thread handoff
+      results.add(root == null || walked == 1 ? null
+          : windowPool.submit(() -> captureWindow(window, root, context)));
     }
-    
-    JSONArray windowArray = new JSONArray();
-    for (AccessibilityWindowInfo window : windows) {
-      JSONObject windowObject = new JSONObject();
-      if (window == null || !window.isActive()) {
+    for (int i = 0; i < captured.size(); i++) {
+      WindowTreeCache.CachedWindow cached = cachedWindows.get(i);
+      if (cached != null) {
+        if (context.nodes != null) {
+          for (Map.Entry<String, AccessibilityNodeInfo> handle : cached.handles.entrySet()) {
+            context.nodes.register(handle.getKey(), handle.getValue());
+          }
+        }
+        if (cached.json.length > 0) {
+          writer.append(cached.json);
+          rootDigest = NodeHash.addChild(rootDigest, cached.hash);
+        }
         continue;
       }
-
-      JSONObject metadata = new JSONObject();
-      try {
-        metadata.put("windowId", window.getId());
-        metadata.put("role", "Window");
-        windowObject.put("name", "Window");
-        metadata.put("title", window.getTitle());
-      } catch (JSONException e) {
-        Log.e("JSON Error", e.getMessage());
-      }
-      
-      AccessibilityNodeInfo rootInfo = inspector.getRootInActiveWindow();
-      AccessibilityNodeInfoCompat root = AccessibilityNodeInfoCompat.wrap(rootInfo);
-      logNodeTreeFast(root, windowObject);
-      
-      try {
-        // Skip bounds for window root too - only need structural info
-        windowObject.put("id", root.hashCode());
-        windowObject.put("metadata", metadata);
-        AccessibilityNodeInfoUtils.recycleNodes(root);
-      } catch (JSONException e) {
-        Log.e("AccessibilityInspector", e.getMessage());
-      }
-      
-      String title = "";
-      if(window.getTitle() != null) {
-        title = window.getTitle().toString();
-      }
-
-      boolean isEmpty = false;
-      try {
-        isEmpty = windowObject.getJSONArray("children").length() == 0;
-        if(!isEmpty) {
-          JSONArray children = windowObject.getJSONArray("children");
-          if(children.get(0) != null) {
-            JSONObject object = children.getJSONObject(0);
-            if(object.has("paneTitle")) {
-              isEmpty = object.getString("paneTitle").equals("Status bar") || object.getString("paneTitle").equals("Notification shade.");
-            }
-          }
+      Future<WindowResult> future = results.get(i);
+      WindowResult result = future != null ? waitFor(future, captured.get(i))
+          : captureWindow(captured.get(i), roots.get(i), context);
+      if (result == null) {
+        continue;
+      }
+      // Windows without any nodes come back empty and are dropped
+      if (result.writer.size() > 0) {
+        writer.append(result.writer);
+        rootDigest = NodeHash.addChild(rootDigest, result.hash);
+      }
+      releaseWriter(result.writer);
+    }
+    writer.endArray();
+    if (!skipped.isEmpty()) {
+      writer.name("skippedWindows").beginArray();
+      for (int i = 0; i < skipped.size(); i++) {
+        AccessibilityWindowInfo window = skipped.get(i);
+        writer.beginObject();
+        writer.name("windowId").value(window.getId());
+        writer.name("type").value(WindowPolicy.typeName(window.getType()));
+        CharSequence title = window.getTitle();
+        if (title != null) {
+          writer.name("title").value(title);
         }
-      } catch (JSONException e) {
-        isEmpty = true;
+        writer.name("layer").value(window.getLayer());
+        writer.name("reason").value(skipReasons.get(i));
+        writer.endObject();
       }
+      writer.endArray();
+    }
+    return rootDigest;
+  }
+
+  private static final class WindowResult {
+    final Utf8JsonWriter writer;
+    final long hash;
+
+    WindowResult(Utf8JsonWriter writer, long hash) {
+      this.writer = writer;
+      this.hash = hash;
+    }
+  }
 
-      if(!title.equals("Navigation bar") && !isEmpty){
-        windowArray.put(windowObject);
+  private static WindowResult captureWindow(AccessibilityWindowInfo window,
+      AccessibilityNodeInfoCompat root, CaptureContext context) {
+    Utf8JsonWriter writer = spareWriters.poll();
+    if (writer == null) {
+      writer = new Utf8JsonWriter(16 * 1024);
+    }
+    writer.reset();
+    try {
+      WindowCapture capture = new WindowCapture(context, writer);
+      if (context.windowCache != null) {
+        capture.handles = new HashMap<>();
+      }
+      long hash = logWindowTree(window, root, capture);
+      if (context.windowCache != null) {
+        context.windowCache.put(window.getId(), context.windowOptions, context.cacheStamp,
+            new WindowTreeCache.CachedWindow(root.unwrap().getPackageName(),
+                WindowPolicy.firstPaneTitle(root.unwrap()), writer.toByteArray(), hash, capture.handles));
+      }
+      return new WindowResult(writer, hash);
+    } catch (RuntimeException e) {
+      releaseWriter(writer);
+      throw e;
+    } finally {
+      // Registered roots stay in use for actions and expansion
+      if (context.nodes == null) {
+        AccessibilityNodeInfoUtils.recycleNodes(root);
       }
     }
+  }
+
+  private static @Nullable WindowResult waitFor(Future<WindowResult> result, AccessibilityWindowInfo window) {
     try {
-      parentObject.put("children", windowArray);
-      receiver.sendJSON(parentObject);
-      parentObject = new JSONObject();
-    } catch (JSONException e) {
-      Log.e("JSON Error", e.getMessage());
+      return result.get();
+    } catch (ExecutionException e) {
+      // The window changed underneath us; leave it out rather than failing the whole capture
+      Log.e(TAG, "Error capturing window " + window.getId() + ": " + e.getCause());
+      InspectorMetrics.increment("capture.windowErrors");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.cancel(true);
     }
+    return null;
   }
 
-  /** Fast tree traversal for stable trees */
-  public static void logNodeTreeFast(@Nullable AccessibilityNodeInfoCompat node, JSONObject windowObject) {
-    if (node == null) {
-      return;
+  private static void releaseWriter(Utf8JsonWriter writer) {
+    if (spareWriters.size() < MAX_SPARE_WRITERS) {
+      spareWriters.offer(writer);
     }
+  }
 
-    HashSet<AccessibilityNodeInfoCompat> seenJson = new HashSet<>();
-    AccessibilityNodeInfoCompat compatNode = AccessibilityNodeInfoCompat.obtain(node);
-    logNodeTreeJsonFast(compatNode, windowObject, seenJson);
+  /** Registers a written node's handle, if the capture keeps handles. */
+  private static void register(WindowCapture capture, String nodeId, AccessibilityNodeInfoCompat node) {
+    if (capture.context.nodes != null) {
+      capture.context.nodes.register(nodeId, node.unwrap());
+      if (capture.handles != null) {
+        capture.handles.put(nodeId, node.unwrap());
+      }
+    }
   }
 
-  /** Fast JSON tree building - skips expensive operations */
-  private static void logNodeTreeJsonFast(
-          AccessibilityNodeInfoCompat node, JSONObject parent, HashSet<AccessibilityNodeInfoCompat> seen) {
-    if (!seen.add(node)) {
-      return;
+  /** Writes a window and its nodes, or nothing if the window has no nodes. Returns its hash. */
+  private static long logWindowTree(AccessibilityWindowInfo window, AccessibilityNodeInfoCompat root,
+      WindowCapture capture) {
+    Utf8JsonWriter writer = capture.writer;
+    int mark = writer.mark();
+    writer.beginObject();
+    writer.startHash(NodeHash.NO_CHILDREN);
+    writer.name("name").value("Window");
+    long contentHash = writer.endHash();
+
+    root.getBoundsInScreen(capture.windowBounds);
+    capture.seen.add(root);
+    String nodeId = NodeRegistry.idOf(root.unwrap());
+    capture.parentId = nodeId;
+    int childrenMark = writer.mark();
+    long childrenDigest = logChildren(root, capture);
+    boolean truncated = capture.childrenTruncated;
+    InspectorMetrics.add("capture.prunedNodes", capture.prunedNodes);
+    if (writer.mark() == childrenMark && !truncated) {
+      writer.rewind(mark);
+      return 0;
     }
-    JSONArray childArray = new JSONArray();
 
-    int childCount = node.getChildCount();
-    for (int i = 0; i < childCount; ++i) {
-      JSONObject childObject  = new JSONObject();
-      AccessibilityNodeInfoCompat child = node.getChild(i);
-      if (child == null) {
-        continue;
-      }
-      childArray.put(nodeDebugDescriptionJsonFast(child, childObject));
-      logNodeTreeJsonFast(child, childObject, seen);
+    writer.name("id").value(root.hashCode());
+    writer.name("nodeId").value(nodeId);
+    register(capture, nodeId, root);
+    writer.startHash(contentHash);
+    writer.name("metadata").beginObject();
+    writer.name("windowId").value(window.getId());
+    writer.name("role").value("Window");
+    CharSequence title = window.getTitle();
+    if (title != null) {
+      writer.name("title").value(title);
     }
-    try{
-      if(childArray.length() > 0) {
-        parent.put("children", childArray);
-      }
-    } catch (JSONException e) {
-      Log.e("JSON Error", e.getMessage());
+    writer.name("x1").value(capture.windowBounds.left);
+    writer.name("y1").value(capture.windowBounds.top);
+    writer.name("x2").value(capture.windowBounds.right);
+    writer.name("y2").value(capture.windowBounds.bottom);
+    writer.endObject();
+    long hash = NodeHash.mix(writer.endHash(), childrenDigest);
+    writer.name(NodeHash.KEY).hashValue(hash);
+    if (truncated) {
+      writer.name("hasMoreChildren").value(true);
     }
+    writer.endObject();
+    return hash;
   }
 
-  /** Lightweight node processing for stable trees - only essential data */
-  public static JSONObject nodeDebugDescriptionJsonFast(AccessibilityNodeInfoCompat node, JSONObject childObject) {
-    try {
-      JSONObject jsonObject = childObject;
-      JSONObject metadata = new JSONObject();
-      
-      // Use simple counter instead of Random for ID
-      jsonObject.put("id", node.hashCode());
-      metadata.put("hashCode", node.hashCode());
-      jsonObject.put("resourceId", node.getViewIdResourceName());
-      
-      // Basic class/role info
-      if (node.getClassName() != null) {
-        metadata.put("role", getSimpleName(node.getClassName()));
-        jsonObject.put("name", getSimpleName(node.getClassName()));
-      } else {
-        metadata.put("role", "??");
-        jsonObject.put("name", "??");
-      }
+  /**
+   * Writes the "children" field of a node captured earlier, for expanding a node that came with
+   * "hasMoreChildren", followed by "hash" and, if the limits cut it short again,
+   * "hasMoreChildren". Depth is counted from {@code node}. Returns the node's subtree hash.
+   */
+  public static long logSubtree(AccessibilityNodeInfoCompat node, CaptureContext context,
+      Utf8JsonWriter writer) {
+    WindowCapture capture = subtreeCapture(node, context, writer);
+    long childrenDigest = logChildren(node, capture);
+    InspectorMetrics.add("capture.prunedNodes", capture.prunedNodes);
+    writer.name(NodeHash.KEY).hashValue(childrenDigest);
+    if (capture.childrenTruncated) {
+      writer.name("hasMoreChildren").value(true);
+    }
+    return childrenDigest;
+  }
 
-      // Visibility check
-      boolean isVisible = node.isVisibleToUser();
-      if (!isVisible) {
-        metadata.put("visibility", "invisible");
-      }
+  /**
+   * Writes the part of a budgeted capture that {@code continuation} left out, as an object with
+   * the "nodeId" and the "children" to add at the end of that node's children, plus
+   * "hasMoreChildren" if the budgets of {@code context} cut it short again. The node's hash in
+   * the earlier message only covered the children sent with it.
+   */
+  public static void logContinuation(Continuation continuation, CaptureContext context,
+      Utf8JsonWriter writer) {
+    WindowCapture capture = subtreeCapture(continuation.node, context, writer);
+    capture.depth = continuation.depth;
+    capture.parentId = continuation.nodeId;
+    writer.beginObject();
+    writer.name("nodeId").value(continuation.nodeId);
+    logChildren(continuation.node, continuation.firstChild, capture);
+    InspectorMetrics.add("capture.prunedNodes", capture.prunedNodes);
+    if (capture.childrenTruncated) {
+      writer.name("hasMoreChildren").value(true);
+    }
+    writer.endObject();
+  }
 
-      // Basic text content
-      @Nullable CharSequence nodeText = AccessibilityNodeInfoUtils.getText(node);
-      if (nodeText != null) {
-        metadata.put("text", nodeText.toString().trim());
-      }
-      if (node.getContentDescription() != null) {
-        metadata.put("content", node.getContentDescription().toString().trim());
-      }
+  private static WindowCapture subtreeCapture(AccessibilityNodeInfoCompat node, CaptureContext context,
+      Utf8JsonWriter writer) {
+    WindowCapture capture = new WindowCapture(context, writer);
+    capture.parentId = NodeRegistry.idOf(node.unwrap());
+    AccessibilityWindowInfo window = node.unwrap().getWindow();
+    if (window != null) {
+      window.getBoundsInScreen(capture.windowBounds);
+    } else {
+      // Nothing to compare against, so only invisible leaves are pruned
+      capture.windowBounds.set(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+    capture.seen.add(node);
+    return capture;
+  }
 
-      // Skip bounds calculation entirely for stable trees - we only need structure
+  /**
+   * Writes the "children" field of a node, if it has any children. Returns the digest of the
+   * children's subtree hashes and sets {@link WindowCapture#keptChildren} and
+   * {@link WindowCapture#childrenTruncated}.
+   */
+  private static long logChildren(AccessibilityNodeInfoCompat node, WindowCapture capture) {
+    return logChildren(node, 0, capture);
+  }
 
-      // Essential interaction properties only
-      JSONArray properties = new JSONArray();
-      if (node.isClickable()) {
-        properties.put("clickable");
-      }
-      if (node.isScrollable()) {
-        properties.put("scrollable");
+  private static long logChildren(AccessibilityNodeInfoCompat node, int firstChild, WindowCapture capture) {
+    Utf8JsonWriter writer = capture.writer;
+    int mark = writer.mark();
+    writer.name("children").beginArray();
+    long childrenDigest = logChildElements(node, firstChild, NodeHash.NO_CHILDREN, capture);
+    writer.endArray();
+    if (capture.keptChildren == 0) {
+      writer.rewind(mark);
+    }
+    return childrenDigest;
+  }
+
+  /**
+   * Writes the children of a node from {@code firstChild} on into the open "children" array,
+   * continuing {@code childrenDigest}, and returns the new digest. Children that an important-only
+   * capture leaves out are replaced by their own children, as the framework does for services that
+   * do not ask for such views. Sets {@link WindowCapture#keptChildren} and
+   * {@link WindowCapture#childrenTruncated}.
+   */
+  private static long logChildElements(AccessibilityNodeInfoCompat node, int firstChild,
+      long childrenDigest, WindowCapture capture) {
+    Utf8JsonWriter writer = capture.writer;
+    int kept = 0;
+    boolean truncated = false;
+    int childCount = node.getChildCount();
+    for (int i = firstChild; i < childCount; ++i) {
+      if (!capture.context.takeNode()) {
+        truncated = true;
+        capture.context.continuations.add(new Continuation(capture.parentId, node, i, capture.depth));
+        break;
       }
-      if (node.isFocused()) {
-        properties.put("focused");
+      AccessibilityNodeInfoCompat child = node.getChild(i);
+      if (child == null) {
+        continue;
       }
-      if (!node.isEnabled()) {
-        properties.put("disabled");
+      if (capture.context.importantOnly && !child.isImportantForAccessibility()) {
+        if (capture.context.visibleOnly && isPrunable(child, capture)) {
+          capture.prunedNodes++;
+        } else if (capture.seen.add(child)) {
+          childrenDigest = logChildElements(child, 0, childrenDigest, capture);
+          kept += capture.keptChildren;
+          truncated |= capture.childrenTruncated;
+        }
+        continue;
       }
-      if(properties.length() > 0) {
-        metadata.put("properties", properties);
+      int mark = writer.mark();
+      long childHash = logNodeTreeJson(child, capture);
+      if (writer.mark() != mark) {
+        childrenDigest = NodeHash.addChild(childrenDigest, childHash);
+        kept++;
       }
-
-      jsonObject.put("metadata", metadata);
-      return jsonObject;
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage());
-      return null;
     }
+    capture.keptChildren = kept;
+    capture.childrenTruncated = truncated;
+    return childrenDigest;
   }
 
-  /** Logs the layout hierarchy of node tree for using the input node as the root. */
-  public static void logNodeTree(@Nullable AccessibilityNodeInfoCompat node, JSONObject windowObject) {
-    if (node == null) {
-      return;
+  /** Writes a node and its subtree, or nothing if a visible-only capture filters it out. Returns its hash. */
+  private static long logNodeTreeJson(AccessibilityNodeInfoCompat node, WindowCapture capture) {
+    if (capture.context.visibleOnly && isPrunable(node, capture)) {
+      capture.prunedNodes++;
+      return 0;
+    }
+    Utf8JsonWriter writer = capture.writer;
+    int mark = writer.mark();
+    writer.beginObject();
+    long contentHash = nodeDebugDescriptionJson(node, capture);
+    long childrenDigest = NodeHash.NO_CHILDREN;
+    int kept = 0;
+    boolean truncated = false;
+    if (capture.depth >= capture.context.maxDepth) {
+      truncated = node.getChildCount() > 0;
+    } else if (capture.seen.add(node)) {
+      String parentId = capture.parentId;
+      capture.parentId = capture.nodeId;
+      capture.depth++;
+      childrenDigest = logChildren(node, capture);
+      capture.depth--;
+      capture.parentId = parentId;
+      kept = capture.keptChildren;
+      truncated = capture.childrenTruncated;
     }
+    // Invisible containers are only kept for the visible nodes inside them, which may be among the
+    // children not captured yet
+    if (capture.context.visibleOnly && kept == 0 && !truncated && !node.isVisibleToUser()) {
+      writer.rewind(mark);
+      return 0;
+    }
+    long hash = NodeHash.mix(contentHash, childrenDigest);
+    writer.name(NodeHash.KEY).hashValue(hash);
+    if (truncated) {
+      writer.name("hasMoreChildren").value(true);
+    }
+    writer.endObject();
+    return hash;
+  }
 
-    HashSet<AccessibilityNodeInfoCompat> seen = new HashSet<>();
-    HashSet<AccessibilityNodeInfoCompat> seenJson = new HashSet<>();
-    AccessibilityNodeInfoCompat compatNode = AccessibilityNodeInfoCompat.obtain(node);
-    //logNodeTree(compatNode, "", seen);
-    logNodeTreeJson(compatNode, windowObject, seenJson);
-    for (AccessibilityNodeInfoCompat n : seen) {
-      n.recycle();
+  /**
+   * Whether a visible-only capture can leave out a node without looking at it any further: an
+   * invisible leaf, or an invisible node entirely outside its window, whose children are never
+   * fetched.
+   */
+  private static boolean isPrunable(AccessibilityNodeInfoCompat node, WindowCapture capture) {
+    if (node.isVisibleToUser()) {
+      return false;
     }
+    if (node.getChildCount() == 0) {
+      return true;
+    }
+    node.getBoundsInScreen(capture.bounds);
+    return !Rect.intersects(capture.bounds, capture.windowBounds);
   }
 
   private static void logNodeTree(
@@ -339,33 +658,15 @@ public class TreeDebug {
       logNodeTree(child, indent, seen);
     }
   }
-  private static void logNodeTreeJson(
-          AccessibilityNodeInfoCompat node, JSONObject parent, HashSet<AccessibilityNodeInfoCompat> seen) {
-    if (!seen.add(node)) {
-//      Log.v(TAG, "Cycle: " + node.hashCode());
-      return;
-    }
-    JSONArray childArray = new JSONArray();
-    // Include the hash code as a "poor man's" id, knowing that it
-    // might not always be unique.
 
-    int childCount = node.getChildCount();
-    for (int i = 0; i < childCount; ++i) {
-      JSONObject childObject  = new JSONObject();
-      AccessibilityNodeInfoCompat child = node.getChild(i);
-      if (child == null) {
-        continue;
-      }
-      childArray.put(nodeDebugDescriptionJson(child, childObject));
-      logNodeTreeJson(child, childObject, seen);
-    }
-    try{
-      if(childArray.length() > 0) {
-        parent.put("children", childArray);
-      }
-    } catch (JSONException e) {
-      Log.e("JSON Error", e.getMessage());
+  private static String simpleName(CharSequence className) {
+    String key = className.toString();
+    String name = simpleNames.get(key);
+    if (name == null) {
+      name = getSimpleName(className);
+      simpleNames.put(key, name);
     }
+    return name;
   }
 
   private static void appendSimpleName(StringBuilder sb, CharSequence fullName) {
@@ -558,235 +859,337 @@ public class TreeDebug {
     return sb.toString().replace("\n", "").replace("\r", "");
   }
 
-  /** Gets a description of the properties of a node. */
-  public static JSONObject nodeDebugDescriptionJson(AccessibilityNodeInfoCompat node, JSONObject childObject) {
-    try {
-      Random rand = new Random();
-      JSONObject jsonObject = childObject;
-      JSONObject metadata = new JSONObject();
-      jsonObject.put("id", rand.nextInt());
-      metadata.put("hashCode", node.hashCode());
-      jsonObject.put("resourceId", node.getViewIdResourceName());
-      if (node.getClassName() != null) {
-        if (node.getRoleDescription() != null) {
-          metadata.put("roleDescription", node.getRoleDescription());
-        }
-        metadata.put("role", getSimpleName(node.getClassName()));
-        jsonObject.put("name", getSimpleName(node.getClassName()));
-      } else {
-        metadata.put("role", "??");
-        jsonObject.put("name", "??");
-      }
-
-      if(node.isContentInvalid()) {
-        metadata.put("contentInvalid", true);
+  /**
+   * Writes the fields of a node in the capture's projection, everything but its children and hash,
+   * and returns their hash. Getters are only called for projected fields.
+   */
+  private static long nodeDebugDescriptionJson(AccessibilityNodeInfoCompat node, WindowCapture capture) {
+    Utf8JsonWriter writer = capture.writer;
+    Projection projection = capture.context.projection;
+    Rect bounds = capture.bounds;
+    StringBuilder scratch = capture.scratch;
+    // The hash code comes from the node's source and window ids, so it is the same in every capture
+    // and the same as the stable tree's and find results' ids; "nodeId" is the one that cannot collide
+    writer.name("id").value(node.hashCode());
+    writer.startHash(NodeHash.NO_CHILDREN);
+    String nodeId = NodeRegistry.idOf(node.unwrap());
+    capture.nodeId = nodeId;
+    writer.name("nodeId").value(nodeId);
+    register(capture, nodeId, node);
+    if (projection.has(Projection.RESOURCE_ID)) {
+      String resourceId = node.getViewIdResourceName();
+      if (resourceId != null) {
+        writer.name("resourceId").value(resourceId);
       }
+    }
+    CharSequence className = node.getClassName();
+    String role = className != null ? simpleName(className) : "??";
+    writer.name("name").value(role);
+
+    writer.name("metadata").beginObject();
+    writer.name("hashCode").value(node.hashCode());
+    if (projection.has(Projection.ROLE_DESCRIPTION) && className != null && node.getRoleDescription() != null) {
+      writer.name("roleDescription").value(node.getRoleDescription());
+    }
+    writer.name("role").value(role);
 
-      if(node.getError() != null) {
-        metadata.put("errorMessage", node.getError());
-      }
+    if (projection.has(Projection.CONTENT_INVALID) && node.isContentInvalid()) {
+      writer.name("contentInvalid").value(true);
+    }
 
-      if(node.getTooltipText() != null) {
-        metadata.put("tooltip", node.getTooltipText());
+    if (projection.has(Projection.ERROR_MESSAGE)) {
+      CharSequence error = node.getError();
+      if (error != null) {
+        writer.name("errorMessage").value(error);
       }
+    }
 
-      if (!node.isVisibleToUser()) {
-        metadata.put("visibility", "invisible");
+    if (projection.has(Projection.TOOLTIP)) {
+      CharSequence tooltip = node.getTooltipText();
+      if (tooltip != null) {
+        writer.name("tooltip").value(tooltip);
       }
+    }
 
+    if (projection.has(Projection.VISIBILITY) && !node.isVisibleToUser()) {
+      writer.name("visibility").value("invisible");
+    }
 
-      metadata.put("importantForAccessibility", node.isImportantForAccessibility());
-
-
-      Rect rect = new Rect();
-      node.getBoundsInScreen(rect);
-      metadata.put("x1", rect.left);
-      metadata.put("y1", rect.top);
-      metadata.put("x2", rect.right);
-      metadata.put("y2", rect.bottom);
-
-
-
-      node.getBoundsInScreen(rect);
-
-      int width = rect.right - rect.left;
-      int height = rect.bottom - rect.top;
-
-
-      float scaledWidth = convertPixelsToDp(width, inspector.getContext());
-
-      float scaledHeight = convertPixelsToDp(height, inspector.getContext());
-
-      DecimalFormat decimalFormat = new DecimalFormat("#0.00");
+    if (projection.has(Projection.IMPORTANT_FOR_ACCESSIBILITY)) {
+      writer.name("importantForAccessibility").value(node.isImportantForAccessibility());
+    }
 
-      metadata.put("scaledWidth", decimalFormat.format(scaledWidth));
-      metadata.put("scaledHeight", decimalFormat.format(scaledHeight));
+    if (projection.has(Projection.BOUNDS) || projection.has(Projection.SCALED_SIZE)) {
+      node.getBoundsInScreen(bounds);
+    }
+    if (projection.has(Projection.BOUNDS)) {
+      writer.name("x1").value(bounds.left);
+      writer.name("y1").value(bounds.top);
+      writer.name("x2").value(bounds.right);
+      writer.name("y2").value(bounds.bottom);
+    }
 
-      metadata.put("dpScaleFactor", convertPixelsToDp(1, inspector.getContext()));
+    if (projection.has(Projection.SCALED_SIZE)) {
+      int width = bounds.right - bounds.left;
+      int height = bounds.bottom - bounds.top;
+      writer.name("scaledWidth").value(formatDp(width / capture.context.density, capture));
+      writer.name("scaledHeight").value(formatDp(height / capture.context.density, capture));
+      writer.name("dpScaleFactor").value(1 / capture.context.density);
+    }
 
-      if (!TextUtils.isEmpty(node.getPaneTitle())) {
-        metadata.put("paneTitle", node.getPaneTitle());
+    if (projection.has(Projection.PANE_TITLE)) {
+      CharSequence paneTitle = node.getPaneTitle();
+      if (!TextUtils.isEmpty(paneTitle)) {
+        writer.name("paneTitle").value(paneTitle);
       }
+    }
+    if (projection.has(Projection.LINKS)) {
       List<AccessibilityNodeInfoUtils.ClickableString> clickableStrings = AccessibilityNodeInfoUtils.getNodeClickableStrings(node);
-      if(clickableStrings.size() > 0) {
-        JSONArray jsonArray = new JSONArray();
-        for(AccessibilityNodeInfoUtils.ClickableString clickableString : clickableStrings) {
-          jsonArray.put(clickableString.string());
+      if (clickableStrings.size() > 0) {
+        writer.name("links").beginArray();
+        for (AccessibilityNodeInfoUtils.ClickableString clickableString : clickableStrings) {
+          writer.value(clickableString.string());
         }
-        metadata.put("links", jsonArray);
+        writer.endArray();
       }
+    }
+    if (projection.has(Projection.LOCALES)) {
       List<AccessibilityNodeInfoUtils.LocaleString> localeStrings = AccessibilityNodeInfoUtils.getNodeLocaleStrings(node);
-      if(localeStrings.size() > 0) {
-        JSONArray jsonArray = new JSONArray();
-        for(AccessibilityNodeInfoUtils.LocaleString localeString : localeStrings) {
-          jsonArray.put(localeString.string() + " - " + Objects.requireNonNull(localeString.localeSpan().getLocale()).toLanguageTag());
+      if (localeStrings.size() > 0) {
+        writer.name("locales").beginArray();
+        for (AccessibilityNodeInfoUtils.LocaleString localeString : localeStrings) {
+          writer.value(localeString.string() + " - " + Objects.requireNonNull(localeString.localeSpan().getLocale()).toLanguageTag());
         }
-        metadata.put("locales", jsonArray);
+        writer.endArray();
       }
+    }
+    if (projection.has(Projection.TEXT)) {
       @Nullable CharSequence nodeText = AccessibilityNodeInfoUtils.getText(node);
       if (nodeText != null) {
-
-        metadata.put("text", nodeText.toString().trim());
-      }
-      if(node.getLabeledBy() != null) {
-        @Nullable CharSequence labeledByText = AccessibilityNodeInfoUtils.getText(node.getLabeledBy());
-        if(node.getLabeledBy().getContentDescription() != null) {
-          String labeledByContent = node.getLabeledBy().getContentDescription().toString().trim();
-          if (labeledByContent.length() > 0) {
-            labeledByText = labeledByContent;
-          }
-        }
-        metadata.put("labeledBy", labeledByText);
-        metadata.put("labeledById", node.getLabeledBy().hashCode());
+        writer.name("text");
+        writeTrimmed(writer, nodeText);
       }
-      if (node.getHintText() != null) {
-        metadata.put("hint", node.getHintText().toString().trim());
+    }
+    // getLabeledBy is an IPC to the app
+    AccessibilityNodeInfoCompat labeledBy = projection.has(Projection.LABELED_BY) ? node.getLabeledBy() : null;
+    if (labeledBy != null) {
+      @Nullable CharSequence labeledByText = AccessibilityNodeInfoUtils.getText(labeledBy);
+      CharSequence labeledByContent = labeledBy.getContentDescription();
+      if (labeledByContent != null && trimmedStart(labeledByContent) < trimmedEnd(labeledByContent)) {
+        writer.name("labeledBy");
+        writeTrimmed(writer, labeledByContent);
+      } else if (labeledByText != null) {
+        writer.name("labeledBy").value(labeledByText);
+      }
+      writer.name("labeledById").value(labeledBy.hashCode());
+    }
+    if (projection.has(Projection.HINT)) {
+      CharSequence hint = node.getHintText();
+      if (hint != null) {
+        writer.name("hint");
+        writeTrimmed(writer, hint);
       }
-      if (node.getContentDescription() != null) {
-        metadata.put("content", node.getContentDescription().toString().trim());
+    }
+    if (projection.has(Projection.CONTENT)) {
+      CharSequence contentDescription = node.getContentDescription();
+      if (contentDescription != null) {
+        writer.name("content");
+        writeTrimmed(writer, contentDescription);
       }
+    }
 
-      if (AccessibilityNodeInfoUtils.getState(node) != null) {
-        if(node.getStateDescription() != null) {
-          metadata.put("stateDescription", node.getStateDescription().toString().trim());
-        } else {
-          metadata.put("state", AccessibilityNodeInfoUtils.getState(node).toString().trim());
-        }
+    CharSequence state = projection.has(Projection.STATE) ? AccessibilityNodeInfoUtils.getState(node) : null;
+    if (state != null) {
+      CharSequence stateDescription = node.getStateDescription();
+      if (stateDescription != null) {
+        writer.name("stateDescription");
+        writeTrimmed(writer, stateDescription);
+      } else {
+        writer.name("state");
+        writeTrimmed(writer, state);
       }
-      // Views that inherit Checkable can have its own state description and the log already covered
-      // by above SD, but for some views that are not Checkable but have checked status, like
-      // overriding by AccessibilityDelegate, we should also log it.
-      if (node.isCheckable()) {
-        if (node.isChecked()) {
-          metadata.put("checkable", "checked");
-        } else {
-          metadata.put("checkable", "not checked");
-        }
+    }
+    // Views that inherit Checkable can have its own state description and the log already covered
+    // by above SD, but for some views that are not Checkable but have checked status, like
+    // overriding by AccessibilityDelegate, we should also log it.
+    if (projection.has(Projection.CHECKABLE) && node.isCheckable()) {
+      writer.name("checkable").value(node.isChecked() ? "checked" : "not checked");
+    }
 
+    if (projection.has(Projection.ACTIONS) && node.getActions() != 0) {
+      List<AccessibilityNodeInfoCompat.AccessibilityActionCompat> actionList = node.getActionList();
+      boolean named = false;
+      for (int i = 0; i < actionList.size() && !named; i++) {
+        named = hasActionText(actionList.get(i));
       }
-
-      int actions = node.getActions();
-      if (actions != 0) {
-        JSONArray stringArray = new JSONArray();
-        List<AccessibilityNodeInfoCompat.AccessibilityActionCompat> actionList = node.getActionList();
-        for(int i = 0; i < actionList.size(); i++) {
+      if (named) {
+        writer.name("actions").beginArray();
+        for (int i = 0; i < actionList.size(); i++) {
           AccessibilityNodeInfoCompat.AccessibilityActionCompat action = actionList.get(i);
-          String actionText = "";
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_FOCUS) {
-            actionText = "focus";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_ACCESSIBILITY_FOCUS) {
-            actionText = "a11y focus";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_CLEAR_ACCESSIBILITY_FOCUS) {
-            actionText = "clear a11y focus";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_SCROLL_BACKWARD) {
-            actionText = "scroll backward";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_SCROLL_FORWARD) {
-            actionText = "scroll forward";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_CLICK) {
-            actionText = "click";
+          CharSequence label = action.getLabel();
+          if (label != null && label.length() > 0) {
+            scratch.setLength(0);
+            writer.value(scratch.append(label).append(" (custom)"));
+          } else if (actionName(action.getId()) != null) {
+            writer.value(actionName(action.getId()));
           }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_LONG_CLICK) {
-            actionText = "long click";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_EXPAND) {
-            actionText = "expand";
-          }
-          if (action.getId() == AccessibilityNodeInfoCompat.ACTION_COLLAPSE) {
-            actionText = "collapse";
-          }
-          if(action.getLabel() != null && action.getLabel().length() > 0) {
-            actionText = action.getLabel() + " (custom)";
-          }
-          if(actionText.length() > 0) {
-            stringArray.put(actionText);
-          }
-        }
-        if (stringArray.length() > 0) {
-          metadata.put("actions", stringArray);
         }
+        writer.endArray();
       }
-      JSONArray properties = new JSONArray();
-      if (node.isFocusable()) {
-        properties.put("focusable");
-      }
-      if (node.isScreenReaderFocusable()) {
-        properties.put("screen reader focusable");
-      }
+    }
 
-      if (node.isFocused()) {
-        properties.put("focused");
-      }
+    if (projection.has(Projection.PROPERTIES)) {
+      writeProperties(node, writer);
+    }
 
-      if (node.isSelected()) {
-        properties.put("selected");
+    if (projection.has(Projection.COLLECTION_INFO)) {
+      AccessibilityNodeInfoCompat.CollectionInfoCompat collectionInfo = node.getCollectionInfo();
+      if (collectionInfo != null) {
+        scratch.setLength(0);
+        scratch.append("Rows: ").append(collectionInfo.getRowCount())
+            .append(", Columns: ").append(collectionInfo.getColumnCount());
+        writer.name("collectionInfo").value(scratch);
       }
+    }
 
-      if (node.isScrollable()) {
-        properties.put("scrollable");
+    if (projection.has(Projection.HEADING) && AccessibilityNodeInfoUtils.isHeading(node)) {
+      writer.name("heading").value(true);
+    }
+    if (projection.has(Projection.COLLECTION_ITEM_INFO)) {
+      AccessibilityNodeInfoCompat.CollectionItemInfoCompat collectionItemInfo = node.getCollectionItemInfo();
+      if (collectionItemInfo != null) {
+        scratch.setLength(0);
+        scratch.append("Row: ").append(collectionItemInfo.getRowIndex())
+            .append(", Column: ").append(collectionItemInfo.getColumnIndex());
+        writer.name("collectionItemInfo").value(scratch);
       }
+    }
+    writer.endObject();
+    return writer.endHash();
+  }
 
-      if (node.isClickable()) {
-        properties.put("clickable");
+  private static void writeProperties(AccessibilityNodeInfoCompat node, Utf8JsonWriter writer) {
+    boolean focusable = node.isFocusable();
+    boolean screenReaderFocusable = node.isScreenReaderFocusable();
+    boolean focused = node.isFocused();
+    boolean selected = node.isSelected();
+    boolean scrollable = node.isScrollable();
+    boolean clickable = node.isClickable();
+    boolean longClickable = node.isLongClickable();
+    boolean accessibilityFocused = node.isAccessibilityFocused();
+    boolean disabled = !node.isEnabled();
+    if (focusable || screenReaderFocusable || focused || selected || scrollable || clickable
+        || longClickable || accessibilityFocused || disabled) {
+      writer.name("properties").beginArray();
+      if (focusable) {
+        writer.value("focusable");
       }
-
-      if (node.isLongClickable()) {
-        properties.put("long clickable");
+      if (screenReaderFocusable) {
+        writer.value("screen reader focusable");
       }
-
-      if (node.isAccessibilityFocused()) {
-        properties.put("accessibility focused");
+      if (focused) {
+        writer.value("focused");
       }
-      if (AccessibilityNodeInfoUtils.supportsTextLocation(node)) {
-        //properties.put("supportsTextLocation");
+      if (selected) {
+        writer.value("selected");
       }
-      if (!node.isEnabled()) {
-        properties.put("disabled");
+      if (scrollable) {
+        writer.value("scrollable");
       }
-      if(properties.length() > 0) {
-        metadata.put("properties", properties);
+      if (clickable) {
+        writer.value("clickable");
       }
-
-      if (node.getCollectionInfo() != null) {
-        metadata.put("collectionInfo", "Rows: " + node.getCollectionInfo().getRowCount() + ", Columns: " + node.getCollectionInfo().getColumnCount());
+      if (longClickable) {
+        writer.value("long clickable");
       }
-
-      if (AccessibilityNodeInfoUtils.isHeading(node)) {
-        metadata.put("heading", true);
+      if (accessibilityFocused) {
+        writer.value("accessibility focused");
       }
-      if (node.getCollectionItemInfo() != null) {
-        metadata.put("collectionItemInfo", "Row: " + node.getCollectionItemInfo().getRowIndex() + ", Column: " + node.getCollectionItemInfo().getColumnIndex());
+      if (disabled) {
+        writer.value("disabled");
       }
-      jsonObject.put("metadata", metadata);
-      return jsonObject;
-    } catch (JSONException e) {
-      Log.e(TAG, e.getMessage());
-      return null;
+      writer.endArray();
+    }
+  }
+
+  private static boolean hasActionText(AccessibilityNodeInfoCompat.AccessibilityActionCompat action) {
+    CharSequence label = action.getLabel();
+    return (label != null && label.length() > 0) || actionName(action.getId()) != null;
+  }
+
+  private static @Nullable String actionName(int actionId) {
+    switch (actionId) {
+      case AccessibilityNodeInfoCompat.ACTION_FOCUS:
+        return "focus";
+      case AccessibilityNodeInfoCompat.ACTION_ACCESSIBILITY_FOCUS:
+        return "a11y focus";
+      case AccessibilityNodeInfoCompat.ACTION_CLEAR_ACCESSIBILITY_FOCUS:
+        return "clear a11y focus";
+      case AccessibilityNodeInfoCompat.ACTION_SCROLL_BACKWARD:
+        return "scroll backward";
+      case AccessibilityNodeInfoCompat.ACTION_SCROLL_FORWARD:
+        return "scroll forward";
+      case AccessibilityNodeInfoCompat.ACTION_CLICK:
+        return "click";
+      case AccessibilityNodeInfoCompat.ACTION_LONG_CLICK:
+        return "long click";
+      case AccessibilityNodeInfoCompat.ACTION_EXPAND:
+        return "expand";
+      case AccessibilityNodeInfoCompat.ACTION_COLLAPSE:
+        return "collapse";
+      default:
+        return null;
+    }
+  }
+
+  /** Writes {@code text.toString().trim()} without creating either string. */
+  private static void writeTrimmed(Utf8JsonWriter writer, CharSequence text) {
+    writer.value(text, trimmedStart(text), trimmedEnd(text));
+  }
+
+  private static int trimmedStart(CharSequence text) {
+    int start = 0;
+    while (start < text.length() && text.charAt(start) <= ' ') {
+      start++;
+    }
+    return start;
+  }
+
+  private static int trimmedEnd(CharSequence text) {
+    int end = text.length();
+    while (end > 0 && text.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return end;
+  }
+
+  /**
+   * Formats a dp value like {@code new DecimalFormat("#0.00").format(dp)} into the capture's scratch buffer.
+   * A float times 100 is exact as a double, so rounding that half-even rounds like DecimalFormat.
+   */
+  private static StringBuilder formatDp(float dp, WindowCapture capture) {
+    CaptureContext context = capture.context;
+    StringBuilder scratch = capture.scratch;
+    double scaled = Math.abs((double) dp) * 100;
+    double whole = Math.floor(scaled);
+    long hundredths = (long) whole;
+    double fraction = scaled - whole;
+    if (fraction > 0.5 || (fraction == 0.5 && (hundredths & 1) == 1)) {
+      hundredths++;
+    }
+    scratch.setLength(0);
+    if (Float.floatToRawIntBits(dp) < 0) {
+      scratch.append(context.minusSign);
+    }
+    int digitsStart = scratch.length();
+    scratch.append(hundredths / 100);
+    long fractionDigits = hundredths % 100;
+    scratch.append(fractionDigits < 10 ? "0" : "").append(fractionDigits);
+    for (int i = digitsStart; i < scratch.length(); i++) {
+      scratch.setCharAt(i, (char) (context.zeroDigit + scratch.charAt(i) - '0'));
     }
+    scratch.insert(scratch.length() - 2, context.decimalSeparator);
+    return scratch;
   }
 
   /** Logs the traversal order of node trees for given list of windows. */
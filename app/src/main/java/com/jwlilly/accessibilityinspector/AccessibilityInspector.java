@@ -3,6 +3,7 @@ package com.jwlilly.accessibilityinspector;
 
 import android.accessibilityservice.GestureDescription;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Looper;
 import android.accessibilityservice.AccessibilityService;
@@ -17,6 +18,7 @@ import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
@@ -30,30 +32,32 @@ import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
 
 
-public class AccessibilityInspector extends AccessibilityService implements Observer {
+public class AccessibilityInspector extends AccessibilityService implements Observer, NodeWaiter.Host {
     private final String LOG_TAG = "AccessibilityInspector";
     private AccessibilityListener captureListener;
 
     private AccessibilityListener importantListener;
     private AccessibilityListener actionListener;
+    private AccessibilityListener expandListener;
     public AccessibilityInspector _this = this;
-    private JSONObject jsonObject;
+    // Manual captures are written straight into this buffer, which is kept between captures
+    private final Utf8JsonWriter treeWriter = new Utf8JsonWriter(64 * 1024);
+    // Live handles of the nodes seen by the last capture, so actions can skip the tree search
+    private final NodeRegistry nodeRegistry = new NodeRegistry();
 
 
-    private final int allFlags = AccessibilityServiceInfo.DEFAULT
-        | AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS
-        | AccessibilityServiceInfo.FEEDBACK_GENERIC
-        | AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS
-        | AccessibilityServiceInfo.CAPABILITY_CAN_RETRIEVE_WINDOW_CONTENT
-        | AccessibilityServiceInfo.FLAG_INCLUDE_NOT_IMPORTANT_VIEWS;
-
     // Scroll aggregation state
     private Handler scrollHandler = new Handler(Looper.getMainLooper());
     private Runnable scrollEndRunnable = null;
@@ -80,19 +84,59 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
     private Handler stabilityHandler = new Handler(Looper.getMainLooper());
     private Runnable captureStableTree = null;
     private static final int UI_STABILITY_DELAY = 1000; // 1 second of no UI changes
-    private JSONObject stableUITree = null;
+    // Mirror of the stable tree, invalidated by events so captures only re-fetch what changed
+    private final TreeMirror treeMirror = new TreeMirror();
+    private final SnapshotCapturer snapshotCapturer = new SnapshotCapturer(treeMirror, WindowPolicy.DEFAULT);
+    // The find index walks everything a live find would, so it keeps a mirror of its own
+    private final TreeMirror indexMirror = new TreeMirror();
+    private final SnapshotCapturer indexCapturer = new SnapshotCapturer(indexMirror, WindowPolicy.ALL);
+    // Goes up with every event that may have changed the tree; written on the main thread only
+    private volatile long uiGeneration = 0;
+    // Manual tree messages by capture options, valid while uiGeneration stands still
+    private final TreeCache treeCache = new TreeCache();
+    // Manual captures by window, so a change in one window only re-captures that window
+    private final WindowTreeCache windowTreeCache = new WindowTreeCache();
+    // Parts of budgeted captures still to be sent, by continuation token; main thread only
+    private final LinkedHashMap<String, PendingCapture> pendingCaptures = new LinkedHashMap<>();
+    private long continuationTokens = 0;
+    private static final int MAX_PENDING_CAPTURES = 8;
+    private Handler captureHandler = new Handler(Looper.getMainLooper());
+    // Pending waitFor commands, checked again after events that can change the tree
+    private final NodeWaiter nodeWaiter = new NodeWaiter(new Handler(Looper.getMainLooper()), this);
+
+    /** What a budgeted capture left out, to be resumed with its continuation token. */
+    private static final class PendingCapture {
+        final CaptureRequest request;
+        final List<TreeDebug.Continuation> continuations;
+
+        PendingCapture(CaptureRequest request, List<TreeDebug.Continuation> continuations) {
+            this.request = request;
+            this.continuations = continuations;
+        }
+    }
+    private TreeSnapshot stableSnapshot = null;
+    // Index over the last stable capture, answering finds while no event arrived since
+    private volatile SnapshotIndex snapshotIndex = null;
+    // Set by finds that could have used an index, so the next settle builds one
+    private volatile boolean indexWanted = false;
     private long stableTreeTimestamp = 0;
+    // Increases with every stable tree sent, so delta clients can tell which tree a patch applies to
+    private long stableTreeGeneration = 0;
     
     // Debug flag to send WINDOW_CONTENT_CHANGED events to clients
     private static final boolean SEND_WINDOW_CONTENT_CHANGED_EVENTS = false;
-    
-    // Flag to control visible-only filtering for manual tree captures
-    private boolean manualCaptureVisibleOnly = false;
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
         try {
             int eventType = event.getEventType();
+            treeMirror.onEvent(event);
+            indexMirror.onEvent(event);
+            windowTreeCache.onEvent(event);
+            nodeWaiter.onEvent(event);
+            if (eventType != AccessibilityEvent.TYPE_ANNOUNCEMENT) {
+                uiGeneration++;
+            }
             
             // Log only non-noisy events
             if (eventType != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
@@ -116,6 +160,9 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
                 if (SEND_WINDOW_CONTENT_CHANGED_EVENTS) {
                     sendAccessibilityEvent(event);
                 }
+            } else if (eventType == AccessibilityEvent.TYPE_WINDOWS_CHANGED) {
+                // Only needed to keep the tree mirror current; windows changes are not sent to clients
+                handleUIContentChange(event);
             } else if (eventType == AccessibilityEvent.TYPE_VIEW_SCROLLED) {
                 handleScrollEvent(event);
             } else if (eventType == AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED) {
@@ -147,6 +194,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         Log.d("ServerSocket", "stopping server");
         // Clear the instance reference
         SocketService.setAccessibilityServiceInstance(null);
+        nodeWaiter.clear();
         super.onDestroy();
     }
 
@@ -164,6 +212,8 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         registerReceiver(importantListener, new IntentFilter("A11yInspectorImportant"));
         actionListener = new AccessibilityListener();
         registerReceiver(actionListener, new IntentFilter("A11yInspectorAction"));
+        expandListener = new AccessibilityListener();
+        registerReceiver(expandListener, new IntentFilter("A11yInspectorExpand"));
         AccessibilityServiceInfo info = new AccessibilityServiceInfo();
         info.notificationTimeout = 100;
         info.flags =
@@ -172,6 +222,9 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
                 | AccessibilityServiceInfo.FEEDBACK_GENERIC
                 | AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS
                 | AccessibilityServiceInfo.CAPABILITY_CAN_RETRIEVE_WINDOW_CONTENT
+                // Always fetch every view; important-only trees are filtered from the full one, so
+                // switching between them never changes the flags and empties the framework's node cache
+                | AccessibilityServiceInfo.FLAG_INCLUDE_NOT_IMPORTANT_VIEWS
                 | AccessibilityServiceInfo.CAPABILITY_CAN_PERFORM_GESTURES; // This line added during debugging, but doesn't seem critical.
         info.eventTypes = AccessibilityEvent.TYPE_ANNOUNCEMENT
                 | AccessibilityEvent.TYPE_VIEW_CLICKED
@@ -181,7 +234,8 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
                 | AccessibilityEvent.TYPE_VIEW_SCROLLED
                 | AccessibilityEvent.TYPE_VIEW_SELECTED
                 | AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED
-                | AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED; // Needed for UI stability detection
+                | AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED // Needed for UI stability detection
+                | AccessibilityEvent.TYPE_WINDOWS_CHANGED;
         this.setServiceInfo(info);
     }
 
@@ -189,11 +243,16 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         return this.getApplicationContext();
     }
 
+    public WindowTreeCache getWindowTreeCache() {
+        return windowTreeCache;
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         unregisterReceiver(captureListener);
         unregisterReceiver(importantListener);
         unregisterReceiver(actionListener);
+        unregisterReceiver(expandListener);
         return super.onUnbind(intent);
     }
 
@@ -208,26 +267,28 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         public void onReceive(Context context, Intent intent) {
             Log.d(LOG_TAG, "Broadcast received with action: " + intent.getAction());
 
-            if(intent.getAction().equalsIgnoreCase("A11yInspector")) {
-                boolean visibleOnly = intent.getBooleanExtra("visibleOnly", false);
-                Log.d(LOG_TAG, "Processing capture request (important only), visibleOnly=" + visibleOnly);
-                manualCaptureVisibleOnly = visibleOnly;
-                hideNotImportant();
-                startCapture();
-            } else if(intent.getAction().equalsIgnoreCase("A11yInspectorImportant")) {
-                boolean visibleOnly = intent.getBooleanExtra("visibleOnly", false);
-                Log.d(LOG_TAG, "Processing capture request (all), visibleOnly=" + visibleOnly);
-                manualCaptureVisibleOnly = visibleOnly;
-                showNotImportant();
-                startCapture();
+            if(intent.getAction().equalsIgnoreCase(CaptureRequest.ACTION)
+                    || intent.getAction().equalsIgnoreCase(CaptureRequest.ACTION_NOT_IMPORTANT)) {
+                CaptureRequest request = CaptureRequest.fromIntent(intent);
+                Log.d(LOG_TAG, "Processing capture request " + request);
+                try {
+                    startCapture(request);
+                } finally {
+                    // Already done if a tree was sent; this covers captures that failed
+                    CaptureCoordinator.getInstance().complete(request);
+                }
             } else if(intent.getAction().equalsIgnoreCase("A11yInspectorAction")) {
                 Log.d(LOG_TAG, "Processing action request");
-                // Handle action requests - support both resourceId and hashCode
+                // Handle action requests - support nodeId, resourceId and hashCode
+                String nodeId = intent.getStringExtra("nodeId");
                 String resourceId = intent.getStringExtra("resourceId");
                 String hashCodeStr = intent.getStringExtra("hashCode");
                 String action = intent.getStringExtra("action");
                 String text = intent.getStringExtra("text");
-                performAction(resourceId, hashCodeStr, action, text);
+                performAction(nodeId, resourceId, hashCodeStr, action, text);
+            } else if(intent.getAction().equalsIgnoreCase("A11yInspectorExpand")) {
+                Log.d(LOG_TAG, "Processing expand request");
+                expandNode(intent.getStringExtra("nodeId"), CaptureRequest.fromIntent(intent));
             } else {
                 Log.w(LOG_TAG, "Unknown broadcast action: " + intent.getAction());
             }
@@ -434,115 +495,140 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("success", success);
             resultJson.put("message", message);
 
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             Log.d(LOG_TAG, "Launch result sent: " + message);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending launch result: " + e.getMessage());
         }
     }
 
-    // Updated method to perform actions on UI elements using resourceId or hashCode
-    public void performAction(String resourceId, String hashCodeStr, String actionType, String text) {
+    // Perform an action on a UI element found by nodeId, resourceId or hashCode. Node ids and hash
+    // codes are looked up in the handles of the last capture first, and only searched for when the
+    // handle is missing or its node is gone.
+    public void performAction(String nodeId, String resourceId, String hashCodeStr, String actionType, String text) {
         try {
-            AccessibilityNodeInfo targetNode = null;
-            String searchCriteria = "";
-
-            // Try to find node by resourceId first, then by hashCode
-            if (resourceId != null && !resourceId.isEmpty()) {
-                targetNode = findNodeByResourceId(resourceId);
-                searchCriteria = "resource ID '" + resourceId + "'";
-            } else if (hashCodeStr != null && !hashCodeStr.isEmpty()) {
-                try {
-                    int hashCode = Integer.parseInt(hashCodeStr);
-                    targetNode = findNodeByHashCode(hashCode);
-                    searchCriteria = "hash code '" + hashCodeStr + "'";
-                } catch (NumberFormatException e) {
-                    sendActionResult(false, "Invalid hash code format: " + hashCodeStr);
-                    return;
-                }
-            }
-
-            if (targetNode == null) {
-                String errorMsg = searchCriteria.isEmpty() ?
-                        "No search criteria provided (resourceId or hashCode required)" :
-                        "Node with " + searchCriteria + " not found";
-                sendActionResult(false, errorMsg);
-                return;
-            }
-
-            boolean result = false;
-            String message = "";
-
+            int action;
+            Bundle arguments = null;
+            String actionName;
             switch (actionType.toUpperCase()) {
                 case "ACTION_CLICK":
                 case "CLICK":
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_CLICK);
-                    message = result ? "Click action performed successfully" : "Click action failed";
+                    action = AccessibilityNodeInfo.ACTION_CLICK;
+                    actionName = "Click";
                     break;
 
                 case "ACTION_FOCUS":
                 case "FOCUS":
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_FOCUS);
-                    message = result ? "Focus action performed successfully" : "Focus action failed";
+                    action = AccessibilityNodeInfo.ACTION_FOCUS;
+                    actionName = "Focus";
                     break;
 
                 case "ACTION_SET_TEXT":
                 case "SET_TEXT":
-                    if (text != null) {
-                        Bundle arguments = new Bundle();
-                        arguments.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, text);
-                        result = targetNode.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, arguments);
-                        message = result ? "Set text action performed successfully" : "Set text action failed";
-                    } else {
-                        message = "Text parameter is required for SET_TEXT action";
+                    if (text == null) {
+                        sendActionResult(false, "Text parameter is required for SET_TEXT action");
+                        return;
                     }
+                    action = AccessibilityNodeInfo.ACTION_SET_TEXT;
+                    arguments = new Bundle();
+                    arguments.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, text);
+                    actionName = "Set text";
                     break;
 
                 case "ACTION_CLEAR_TEXT":
                 case "CLEAR_TEXT":
-                    Bundle clearArgs = new Bundle();
-                    clearArgs.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, "");
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, clearArgs);
-                    message = result ? "Clear text action performed successfully" : "Clear text action failed";
+                    action = AccessibilityNodeInfo.ACTION_SET_TEXT;
+                    arguments = new Bundle();
+                    arguments.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, "");
+                    actionName = "Clear text";
                     break;
 
                 case "ACTION_LONG_CLICK":
                 case "LONG_CLICK":
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_LONG_CLICK);
-                    message = result ? "Long click action performed successfully" : "Long click action failed";
+                    action = AccessibilityNodeInfo.ACTION_LONG_CLICK;
+                    actionName = "Long click";
                     break;
 
                 case "ACTION_SCROLL_FORWARD":
                 case "SCROLL_FORWARD":
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_SCROLL_FORWARD);
-                    message = result ? "Scroll forward action performed successfully" : "Scroll forward action failed";
+                    action = AccessibilityNodeInfo.ACTION_SCROLL_FORWARD;
+                    actionName = "Scroll forward";
                     break;
 
                 case "ACTION_SCROLL_BACKWARD":
                 case "SCROLL_BACKWARD":
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD);
-                    message = result ? "Scroll backward action performed successfully" : "Scroll backward action failed";
+                    action = AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD;
+                    actionName = "Scroll backward";
                     break;
 
                 case "ACTION_ACCESSIBILITY_FOCUS":
                 case "ACCESSIBILITY_FOCUS":
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_ACCESSIBILITY_FOCUS);
-                    message = result ? "Accessibility focus action performed successfully" : "Accessibility focus action failed";
+                    action = AccessibilityNodeInfo.ACTION_ACCESSIBILITY_FOCUS;
+                    actionName = "Accessibility focus";
                     break;
 
                 case "ACTION_CLEAR_ACCESSIBILITY_FOCUS":
                 case "CLEAR_ACCESSIBILITY_FOCUS":
-                    result = targetNode.performAction(AccessibilityNodeInfo.ACTION_CLEAR_ACCESSIBILITY_FOCUS);
-                    message = result ? "Clear accessibility focus action performed successfully" : "Clear accessibility focus action failed";
+                    action = AccessibilityNodeInfo.ACTION_CLEAR_ACCESSIBILITY_FOCUS;
+                    actionName = "Clear accessibility focus";
                     break;
 
                 default:
-                    message = "Unknown action type: " + actionType;
-                    break;
+                    sendActionResult(false, "Unknown action type: " + actionType);
+                    return;
+            }
+
+            AccessibilityNodeInfo targetNode = null;
+            boolean fromRegistry = false;
+            String searchCriteria = "";
+            int hashCode = 0;
+
+            // Try the node id first, then the resourceId, then the hashCode
+            if (nodeId != null && !nodeId.isEmpty()) {
+                searchCriteria = "node ID '" + nodeId + "'";
+                targetNode = nodeRegistry.get(nodeId);
+                fromRegistry = targetNode != null;
+                if (targetNode == null) {
+                    targetNode = findNodeByNodeId(nodeId);
+                }
+            } else if (resourceId != null && !resourceId.isEmpty()) {
+                targetNode = findNodeByResourceId(resourceId);
+                searchCriteria = "resource ID '" + resourceId + "'";
+            } else if (hashCodeStr != null && !hashCodeStr.isEmpty()) {
+                try {
+                    hashCode = Integer.parseInt(hashCodeStr);
+                } catch (NumberFormatException e) {
+                    sendActionResult(false, "Invalid hash code format: " + hashCodeStr);
+                    return;
+                }
+                searchCriteria = "hash code '" + hashCodeStr + "'";
+                targetNode = nodeRegistry.getByHashCode(hashCode);
+                fromRegistry = targetNode != null;
+                if (targetNode == null) {
+                    targetNode = findNodeByHashCode(hashCode);
+                }
+            }
+
+            if (targetNode == null) {
+                String errorMsg = searchCriteria.isEmpty() ?
+                        "No search criteria provided (nodeId, resourceId or hashCode required)" :
+                        "Node with " + searchCriteria + " not found";
+                sendActionResult(false, errorMsg);
+                return;
+            }
+
+            boolean result = targetNode.performAction(action, arguments);
+            if (!result && fromRegistry && !targetNode.refresh()) {
+                // The registered handle outlived its node; search the live tree once instead
+                InspectorMetrics.increment("registry.stale");
+                nodeRegistry.remove(NodeRegistry.idOf(targetNode), targetNode);
+                targetNode = nodeId != null && !nodeId.isEmpty() ? findNodeByNodeId(nodeId) : findNodeByHashCode(hashCode);
+                if (targetNode != null) {
+                    result = targetNode.performAction(action, arguments);
+                }
             }
 
+            String message = result ? actionName + " action performed successfully" : actionName + " action failed";
             // Add search criteria info to the message
             if (result) {
                 message += " (target found by " + searchCriteria + ")";
@@ -558,6 +644,25 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         }
     }
 
+    // Helper method to find a node by its stable node ID, searching only the window it belongs to
+    private AccessibilityNodeInfo findNodeByNodeId(String nodeId) {
+        int windowId = NodeRegistry.windowIdOf(nodeId);
+        for (AccessibilityWindowInfo window : getWindows()) {
+            if (window.getId() != windowId) {
+                continue;
+            }
+            AccessibilityNodeInfo rootNode = window.getRoot();
+            if (rootNode != null) {
+                AccessibilityNodeInfo foundNode = CustomNodeFinder.findFirst(rootNode, NodeQuery.nodeId(nodeId));
+                if (foundNode != null) {
+                    nodeRegistry.register(nodeId, foundNode);
+                    return foundNode;
+                }
+            }
+        }
+        return null;
+    }
+
     // Helper method to find a node by its resource ID
     private AccessibilityNodeInfo findNodeByResourceId(String resourceId) {
         List<AccessibilityWindowInfo> windows = getWindows();
@@ -565,7 +670,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         for (AccessibilityWindowInfo window : windows) {
             AccessibilityNodeInfo rootNode = window.getRoot();
             if (rootNode != null) {
-                AccessibilityNodeInfo foundNode = findNodeByResourceIdRecursive(rootNode, resourceId);
+                AccessibilityNodeInfo foundNode = CustomNodeFinder.findFirst(rootNode, NodeQuery.viewId(resourceId));
                 if (foundNode != null) {
                     return foundNode;
                 }
@@ -581,7 +686,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         for (AccessibilityWindowInfo window : windows) {
             AccessibilityNodeInfo rootNode = window.getRoot();
             if (rootNode != null) {
-                AccessibilityNodeInfo foundNode = findNodeByHashCodeRecursive(rootNode, hashCode);
+                AccessibilityNodeInfo foundNode = CustomNodeFinder.findFirst(rootNode, NodeQuery.withHashCode(hashCode));
                 if (foundNode != null) {
                     return foundNode;
                 }
@@ -592,33 +697,26 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
     // Method to find nodes by view ID and return their information
     public void findByViewId(String viewId) {
-        findByViewId(viewId, false);
+        findByViewId(viewId, false, FindOptions.ALL);
     }
     
-    public void findByViewId(String viewId, boolean verbose) {
+    public void findByViewId(String viewId, boolean verbose, FindOptions options) {
         try {
             List<AccessibilityNodeInfo> foundNodes = new ArrayList<>();
-            List<AccessibilityWindowInfo> windows = getWindows();
-
-            Log.d(LOG_TAG, "findByViewId: searching for '" + viewId + "' in " + windows.size() + " windows");
+            SnapshotIndex index = findIndex(options);
+            if (index != null) {
+                foundNodes.addAll(index.restrict(index.findByViewId(viewId), options));
+            } else {
+                Log.d(LOG_TAG, "findByViewId: searching for '" + viewId + "'");
 
-            // Use the native findAccessibilityNodeInfosByViewId method
-            for (int i = 0; i < windows.size(); i++) {
-                AccessibilityWindowInfo window = windows.get(i);
-                if (window != null) {
-                    Log.d(LOG_TAG, "Window " + i + ": type=" + window.getType() + 
-                          ", isActive=" + window.isActive() + 
-                          ", hasRoot=" + (window.getRoot() != null));
-                    
-                    AccessibilityNodeInfo rootNode = window.getRoot();
-                    if (rootNode != null) {
-                        List<AccessibilityNodeInfo> nodesInWindow = rootNode.findAccessibilityNodeInfosByViewId(viewId);
-                        if (nodesInWindow != null && !nodesInWindow.isEmpty()) {
-                            Log.d(LOG_TAG, "Found " + nodesInWindow.size() + " nodes in window " + i + " (type=" + window.getType() + ")");
-                            foundNodes.addAll(nodesInWindow);
-                        }
+                // Use the native findAccessibilityNodeInfosByViewId method
+                foundNodes.addAll(findLive(options, (rootNode, results) -> {
+                    List<AccessibilityNodeInfo> nodesInWindow = rootNode.findAccessibilityNodeInfosByViewId(viewId);
+                    if (nodesInWindow != null && !nodesInWindow.isEmpty()) {
+                        Log.d(LOG_TAG, "Found " + nodesInWindow.size() + " nodes in window " + rootNode.getWindowId());
+                        addAccepted(nodesInWindow, options, results);
                     }
-                }
+                }));
             }
 
             // Build response with found nodes
@@ -627,18 +725,17 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("success", true);
             resultJson.put("viewId", viewId);
             resultJson.put("count", foundNodes.size());
+            putFindSource(resultJson, index, options, foundNodes.size());
 
             JSONArray nodesArray = new JSONArray();
             for (AccessibilityNodeInfo node : foundNodes) {
-                JSONObject nodeInfo = createNodeInfoJson(node, verbose);
+                JSONObject nodeInfo = createNodeInfoJson(node, verbose, index);
                 nodesArray.put(nodeInfo);
             }
             resultJson.put("nodes", nodesArray);
 
             // Send result
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             
             Log.d(LOG_TAG, "Found " + foundNodes.size() + " nodes with viewId: " + viewId);
 
@@ -651,61 +748,37 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
     // Method to find nodes by text and return their information
     public void findByText(String text) {
-        findByText(text, false);
+        findByText(text, false, FindOptions.ALL);
     }
     
-    public void findByText(String text, boolean verbose) {
+    public void findByText(String text, boolean verbose, FindOptions options) {
         try {
             List<AccessibilityNodeInfo> foundNodes = new ArrayList<>();
-            List<AccessibilityWindowInfo> windows = getWindows();
-
-            Log.d(LOG_TAG, "findByText: Starting search for '" + text + "' across " + windows.size() + " windows");
+            SnapshotIndex index = findIndex(options);
+            if (index != null) {
+                foundNodes.addAll(index.restrict(index.findByText(text), options));
+            } else {
+                Log.d(LOG_TAG, "findByText: Starting search for '" + text + "'");
 
-            // Use the native findAccessibilityNodeInfosByText method
-            for (int i = 0; i < windows.size(); i++) {
-                AccessibilityWindowInfo window = windows.get(i);
-                AccessibilityNodeInfo rootNode = window.getRoot();
-                
-                Log.d(LOG_TAG, "findByText: Window " + i + " - Title: " + window.getTitle() + 
-                      ", Type: " + window.getType() + ", Active: " + window.isActive() + 
-                      ", Root null: " + (rootNode == null));
-                
-                if (rootNode != null) {
-                    // Debug: check root node properties
-                    Log.d(LOG_TAG, "findByText: Window " + i + " root - class: " + rootNode.getClassName() + 
-                          ", childCount: " + rootNode.getChildCount() + 
-                          ", text: '" + rootNode.getText() + "'");
-                    
-                    // Test if the native method works at all
+                // Use the native findAccessibilityNodeInfosByText method
+                foundNodes.addAll(findLive(options, (rootNode, results) -> {
                     List<AccessibilityNodeInfo> nodesInWindow = rootNode.findAccessibilityNodeInfosByText(text);
                     int windowNodeCount = (nodesInWindow != null) ? nodesInWindow.size() : 0;
-                    
-                    Log.d(LOG_TAG, "findByText: Window " + i + " found " + windowNodeCount + " nodes");
-                    
-                    // Debug: also try searching for a very common character that should exist
-                    if (i == 3 && windowNodeCount == 0) { // Only for main Slack window
-                        Log.d(LOG_TAG, "findByText: DEBUG - Testing if native method works at all on Slack window");
-                        List<AccessibilityNodeInfo> testNodes = rootNode.findAccessibilityNodeInfosByText("a");
-                        Log.d(LOG_TAG, "findByText: DEBUG - Native method found " + 
-                              ((testNodes != null) ? testNodes.size() : 0) + " nodes for 'a'");
-                        
-                        // Also test our custom method on the same root
-                        List<AccessibilityNodeInfo> customTestNodes = CustomNodeFinder.findNodesByText(rootNode, "Activity");
-                        Log.d(LOG_TAG, "findByText: DEBUG - Custom method found " + customTestNodes.size() + " nodes for 'Activity'");
-                    }
-                    
+
+                    Log.d(LOG_TAG, "findByText: Window " + rootNode.getWindowId() + " found " + windowNodeCount + " nodes");
+
                     if (nodesInWindow != null && !nodesInWindow.isEmpty()) {
-                        foundNodes.addAll(nodesInWindow);
-                        
+                        addAccepted(nodesInWindow, options, results);
+
                         // Log first few nodes found in this window
                         for (int j = 0; j < Math.min(3, nodesInWindow.size()); j++) {
                             AccessibilityNodeInfo node = nodesInWindow.get(j);
-                            Log.d(LOG_TAG, "findByText: Window " + i + " node " + j + " - " + 
-                                  node.getClassName() + " text:'" + node.getText() + 
+                            Log.d(LOG_TAG, "findByText: Window " + rootNode.getWindowId() + " node " + j + " - " +
+                                  node.getClassName() + " text:'" + node.getText() +
                                   "' desc:'" + node.getContentDescription() + "'");
                         }
                     }
-                }
+                }));
             }
 
             // Build response with found nodes
@@ -714,18 +787,17 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("success", true);
             resultJson.put("text", text);
             resultJson.put("count", foundNodes.size());
+            putFindSource(resultJson, index, options, foundNodes.size());
 
             JSONArray nodesArray = new JSONArray();
             for (AccessibilityNodeInfo node : foundNodes) {
-                JSONObject nodeInfo = createNodeInfoJson(node, verbose);
+                JSONObject nodeInfo = createNodeInfoJson(node, verbose, index);
                 nodesArray.put(nodeInfo);
             }
             resultJson.put("nodes", nodesArray);
 
             // Send result
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             
             Log.d(LOG_TAG, "Found " + foundNodes.size() + " nodes with text: " + text);
 
@@ -743,9 +815,16 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
     
     // Helper method to create node info JSON with verbose option
     private JSONObject createNodeInfoJson(AccessibilityNodeInfo node, boolean verbose) throws JSONException {
+        return createNodeInfoJson(node, verbose, null);
+    }
+
+    // With the index a node was found in, its parent comes from there instead of the app
+    private JSONObject createNodeInfoJson(AccessibilityNodeInfo node, boolean verbose, SnapshotIndex index) throws JSONException {
         JSONObject nodeInfo = new JSONObject();
         
         // Basic properties
+        String nodeId = NodeRegistry.idOf(node);
+        nodeInfo.put("nodeId", nodeId);
         nodeInfo.put("hashCode", node.hashCode());
         nodeInfo.put("className", node.getClassName() != null ? node.getClassName().toString() : "");
         nodeInfo.put("text", node.getText() != null ? node.getText().toString() : "");
@@ -753,12 +832,16 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         nodeInfo.put("viewIdResourceName", node.getViewIdResourceName() != null ? node.getViewIdResourceName() : "");
         
         // Parent hashCode
-        AccessibilityNodeInfo parent = node.getParent();
-        if (parent != null) {
-            nodeInfo.put("parentHashCode", parent.hashCode());
-            parent.recycle(); // Important: recycle the parent node after use
+        if (index != null) {
+            nodeInfo.put("parentHashCode", index.getParentHashCode(node));
         } else {
-            nodeInfo.put("parentHashCode", null);
+            AccessibilityNodeInfo parent = node.getParent();
+            if (parent != null) {
+                nodeInfo.put("parentHashCode", parent.hashCode());
+                parent.recycle(); // Important: recycle the parent node after use
+            } else {
+                nodeInfo.put("parentHashCode", null);
+            }
         }
         
         // State properties
@@ -853,6 +936,8 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             nodeInfo.put("childCount", node.getChildCount());
         }
         
+        // Found nodes are usually acted on next
+        nodeRegistry.register(nodeId, node);
         return nodeInfo;
     }
 
@@ -865,9 +950,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("success", success);
             resultJson.put("message", message);
 
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending findByViewId result: " + e.getMessage());
         }
@@ -881,60 +964,12 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("success", success);
             resultJson.put("message", message);
 
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending findByText result: " + e.getMessage());
         }
     }
 
-    // Recursive helper method to search through the node tree by resource ID
-    private AccessibilityNodeInfo findNodeByResourceIdRecursive(AccessibilityNodeInfo node, String resourceId) {
-        if (node == null) return null;
-
-        // Check if current node matches the resource ID
-        if (resourceId.equals(node.getViewIdResourceName())) {
-            return node;
-        }
-
-        // Search through children
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                AccessibilityNodeInfo foundNode = findNodeByResourceIdRecursive(child, resourceId);
-                if (foundNode != null) {
-                    return foundNode;
-                }
-            }
-        }
-
-        return null;
-    }
-
-    // Recursive helper method to search through the node tree by hash code
-    private AccessibilityNodeInfo findNodeByHashCodeRecursive(AccessibilityNodeInfo node, int hashCode) {
-        if (node == null) return null;
-
-        // Check if current node matches the hash code
-        if (node.hashCode() == hashCode) {
-            return node;
-        }
-
-        // Search through children
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                AccessibilityNodeInfo foundNode = findNodeByHashCodeRecursive(child, hashCode);
-                if (foundNode != null) {
-                    return foundNode;
-                }
-            }
-        }
-
-        return null;
-    }
-
     // Send action result back to the client
     public void sendActionResult(boolean success, String message) {
         try {
@@ -943,9 +978,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("success", success);
             resultJson.put("message", message);
 
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             Log.d(LOG_TAG, "Action result sent: " + message);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending action result: " + e.getMessage());
@@ -956,68 +989,227 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
     public void takeScreenshot(int displayId, @NonNull Executor executor, @NonNull TakeScreenshotCallback callback) {
         super.takeScreenshot(displayId, executor, callback);
     }
-    public void sendJSON(JSONObject object) {
-        jsonObject = object;
-    }
-
-    public void hideNotImportant() {
-        int flags = this.getServiceInfo().flags;
-        AccessibilityServiceInfo info = this.getServiceInfo();
-
-        if (flags == allFlags) {
-            info.flags = AccessibilityServiceInfo.DEFAULT
-                    | AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS
-                    | AccessibilityServiceInfo.FEEDBACK_GENERIC
-                    | AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS
-                    | AccessibilityServiceInfo.CAPABILITY_CAN_RETRIEVE_WINDOW_CONTENT;
-            this.setServiceInfo(info);
+    // Hand a payload to the socket server through the in-process message bus
+    private void publishMessage(JSONObject message) {
+        String type = message.optString("type", "");
+        if (type.isEmpty() && message.has("announcement")) {
+            type = "announcement";
+        }
+        MessageBus.getInstance().publish(type, message.toString());
+    }
+
+    // Captures the given windows and sends them as a "tree" message without building JSON objects
+    public void sendTree(List<AccessibilityWindowInfo> windows, CaptureRequest request) {
+        long start = System.nanoTime();
+        long generation = uiGeneration;
+        TreeDebug.CaptureContext context = writeTree(windows, request);
+        String token = savePendingCapture(request, context.getContinuations());
+        if (token != null) {
+            treeWriter.name("continuation").value(token);
+        }
+        treeWriter.endObject();
+        InspectorMetrics.increment("capture.trees");
+        InspectorMetrics.add("capture.treeBytes", treeWriter.size());
+        InspectorMetrics.add("capture.treeMicros", (System.nanoTime() - start) / 1000);
+        byte[] message = treeWriter.toByteArray();
+        if (token == null) {
+            // Partial trees are not worth repeating
+            treeCache.put(request, generation, message);
+        }
+        // Requests that joined while this capture ran get this tree too. Only this send says so;
+        // the cached tree answers later requests, which joined nothing
+        int coalesced = CaptureCoordinator.getInstance().complete(request);
+        if (coalesced > 0) {
+            message = withField(message, "coalesced", coalesced);
+        }
+        MessageBus.getInstance().publishTree("tree", message);
+        Log.d(LOG_TAG, "message sent");
+        if (token != null && request.isAutoContinue()) {
+            // Let pending events through before going on
+            captureHandler.post(() -> continueCapture(token));
+        }
+    }
+
+    // A copy of a JSON object message with a number field added at its end
+    private static byte[] withField(byte[] message, String name, long value) {
+        byte[] field = (",\"" + name + "\":" + value + "}").getBytes(StandardCharsets.UTF_8);
+        byte[] result = Arrays.copyOf(message, message.length - 1 + field.length);
+        System.arraycopy(field, 0, result, message.length - 1, field.length);
+        return result;
+    }
+
+    // Keeps what a capture left out and returns its token, or null if it left nothing out
+    private String savePendingCapture(CaptureRequest request, List<TreeDebug.Continuation> continuations) {
+        if (continuations.isEmpty()) {
+            return null;
+        }
+        String token = "c" + (++continuationTokens);
+        pendingCaptures.put(token, new PendingCapture(request, new ArrayList<>(continuations)));
+        if (pendingCaptures.size() > MAX_PENDING_CAPTURES) {
+            String oldest = pendingCaptures.keySet().iterator().next();
+            pendingCaptures.remove(oldest);
+            InspectorMetrics.increment("capture.continuationsExpired");
+        }
+        return token;
+    }
+
+    /** Resumes a budgeted capture on the main thread, where captures run. Safe to call from any thread. */
+    public void requestContinuation(String token) {
+        captureHandler.post(() -> continueCapture(token));
+    }
+
+    /**
+     * Sends the next part of a budgeted capture as a "treeContinuation" message: the children each
+     * left-out node still had, under the same budgets as the capture. If the budgets run out again
+     * the message carries the next token, and with autoContinue that part follows by itself.
+     */
+    private void continueCapture(String token) {
+        PendingCapture pending = pendingCaptures.remove(token);
+        if (pending == null) {
+            try {
+                JSONObject errorJson = new JSONObject();
+                errorJson.put("type", "treeContinuation");
+                errorJson.put("success", false);
+                errorJson.put("token", token);
+                errorJson.put("message", "Unknown or expired continuation token: " + token);
+                publishMessage(errorJson);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error sending continuation result: " + e.getMessage());
+            }
+            return;
         }
-    }
+        try {
+            long start = System.nanoTime();
+            CaptureRequest request = pending.request;
+            treeWriter.reset();
+            treeWriter.beginObject();
+            treeWriter.name("type").value("treeContinuation");
+            treeWriter.name("success").value(true);
+            treeWriter.name("token").value(token);
+            treeWriter.name("etag").value(uiGeneration);
+            treeWriter.name("generation").value(nodeRegistry.getGeneration());
+            TreeDebug.CaptureContext context = new TreeDebug.CaptureContext(this, request, nodeRegistry.getCurrent());
+            List<TreeDebug.Continuation> left = new ArrayList<>();
+            treeWriter.name("parts").beginArray();
+            for (TreeDebug.Continuation continuation : pending.continuations) {
+                // Once the budget is gone the rest waits for the next part as it is
+                if (!context.getContinuations().isEmpty()) {
+                    left.add(continuation);
+                    continue;
+                }
+                TreeDebug.logContinuation(continuation, context, treeWriter);
+            }
+            treeWriter.endArray();
+            left.addAll(0, context.getContinuations());
+            String next = savePendingCapture(request, left);
+            if (next != null) {
+                treeWriter.name("continuation").value(next);
+            }
+            treeWriter.endObject();
+            InspectorMetrics.increment("capture.continuations");
+            InspectorMetrics.add("capture.treeBytes", treeWriter.size());
+            InspectorMetrics.add("capture.treeMicros", (System.nanoTime() - start) / 1000);
+            MessageBus.getInstance().publishTree("treeContinuation", treeWriter.toByteArray());
+            if (next != null && request.isAutoContinue()) {
+                captureHandler.post(() -> continueCapture(next));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error continuing capture " + token, e);
+        }
+    }
+
+    /** The UI generation, which trees carry as their "etag". */
+    public long getUiGeneration() {
+        return uiGeneration;
+    }
+
+    /**
+     * Whether a client holding the tree for {@code request} tagged {@code etag} already has the
+     * current tree. Safe to call from any thread.
+     */
+    public boolean isTreeCurrent(CaptureRequest request, long etag) {
+        return etag == uiGeneration && treeCache.get(request, etag) != null;
+    }
+
+    // Writes a "tree" message for the request, leaving the object open for the caller to end
+    private TreeDebug.CaptureContext writeTree(List<AccessibilityWindowInfo> windows, CaptureRequest request) {
+        treeWriter.reset();
+        treeWriter.beginObject();
+        treeWriter.name("type").value("tree");
+        treeWriter.name("etag").value(uiGeneration);
+        NodeRegistry.Generation nodes = nodeRegistry.begin();
+        // Expansions of truncated nodes refer to this generation's handles
+        treeWriter.name("generation").value(nodes.getNumber());
+        TreeDebug.CaptureContext context = new TreeDebug.CaptureContext(this, request, nodes);
+        long rootDigest = TreeDebug.logNodeTrees(windows, context, treeWriter);
+        nodeRegistry.publish(nodes);
+        treeWriter.name(NodeHash.KEY).hashValue(rootDigest);
+        return context;
+    }
+
+    /**
+     * Sends the children of a node from an earlier capture as a "subtree" message, for clients that
+     * captured with maxDepth or maxNodes and want to open a node marked "hasMoreChildren". The
+     * node's handle is taken from the capture that listed it, so only the new levels are fetched.
+     * The request gives the same options as for a capture.
+     */
+    public void expandNode(String nodeId, CaptureRequest request) {
+        try {
+            if (nodeId == null || nodeId.isEmpty()) {
+                sendExpandError(nodeId, "nodeId is required");
+                return;
+            }
+            AccessibilityNodeInfo node = nodeRegistry.get(nodeId);
+            if (node != null && !node.refresh()) {
+                InspectorMetrics.increment("registry.stale");
+                nodeRegistry.remove(nodeId, node);
+                node = null;
+            }
+            if (node == null) {
+                node = findNodeByNodeId(nodeId);
+            }
+            if (node == null) {
+                sendExpandError(nodeId, "Node with node ID '" + nodeId + "' not found");
+                return;
+            }
 
-    public void showNotImportant() {
-        int flags = this.getServiceInfo().flags;
-        if (flags != allFlags) {
-            AccessibilityServiceInfo info = this.getServiceInfo();
-            info.flags = allFlags;
-            this.setServiceInfo(info);
+            long start = System.nanoTime();
+            treeWriter.reset();
+            treeWriter.beginObject();
+            treeWriter.name("type").value("subtree");
+            treeWriter.name("success").value(true);
+            treeWriter.name("nodeId").value(nodeId);
+            treeWriter.name("generation").value(nodeRegistry.getGeneration());
+            TreeDebug.CaptureContext context = new TreeDebug.CaptureContext(this, request, nodeRegistry.getCurrent());
+            TreeDebug.logSubtree(AccessibilityNodeInfoCompat.wrap(node), context, treeWriter);
+            treeWriter.endObject();
+            InspectorMetrics.increment("capture.expansions");
+            InspectorMetrics.add("capture.treeMicros", (System.nanoTime() - start) / 1000);
+            MessageBus.getInstance().publishTree("subtree", treeWriter.toByteArray());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error expanding node " + nodeId, e);
+            sendExpandError(nodeId, "Error expanding node: " + e.getMessage());
         }
-
     }
 
-    public void sendTree() {
+    private void sendExpandError(String nodeId, String message) {
         try {
-            JSONObject treeResponse = new JSONObject();
-            treeResponse.put("type", "tree");
-            
-            JSONArray originalChildren = jsonObject.getJSONArray("children");
-            JSONArray children;
-            
-            // Apply filtering only if visibleOnly parameter was set to true
-            if (manualCaptureVisibleOnly) {
-                Log.d(LOG_TAG, "Applying visibleOnly filtering to manual tree capture");
-                children = removeInvisibleLeafNodes(originalChildren);
-            } else {
-                Log.d(LOG_TAG, "Sending full tree (no visibleOnly filtering)");
-                children = originalChildren;
-            }
-            
-            treeResponse.put("children", children);
-            
-            Intent announcementIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            announcementIntent.putExtra("messageData", treeResponse.toString());
-            startService(announcementIntent);
-            Log.d(LOG_TAG, "message sent");
+            JSONObject errorJson = new JSONObject();
+            errorJson.put("type", "subtree");
+            errorJson.put("success", false);
+            errorJson.put("nodeId", nodeId);
+            errorJson.put("message", message);
+            publishMessage(errorJson);
         } catch (Exception e) {
-            Log.e(LOG_TAG,e.getMessage());
+            Log.e(LOG_TAG, "Error sending expand result: " + e.getMessage());
         }
     }
+
     public void sendAnnouncement(String announcement) {
         try {
             JSONObject announcementJson = new JSONObject();
             announcementJson.put("announcement", announcement);
-            Intent announcementIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            announcementIntent.putExtra("messageData", announcementJson.toString());
-            startService(announcementIntent);
+            publishMessage(announcementJson);
             Log.d(LOG_TAG, "announcement sent");
         } catch (Exception e) {
             Log.e(LOG_TAG,e.getMessage());
@@ -1026,35 +1218,32 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
     // Custom recursive find by text (for comparison with native method)
     public void customFindByText(String text) {
-        customFindByText(text, false);
+        customFindByText(text, false, FindOptions.ALL);
     }
     
-    public void customFindByText(String text, boolean verbose) {
+    public void customFindByText(String text, boolean verbose, FindOptions options) {
         try {
             List<AccessibilityNodeInfo> foundNodes = new ArrayList<>();
-            List<AccessibilityWindowInfo> windows = getWindows();
+            // Stats need a walk of every window, so only live searches have them
+            StringBuilder statsBuilder = null;
+            SnapshotIndex index = findIndex(options);
+            if (index != null) {
+                foundNodes.addAll(index.restrict(index.findByExactText(text), options));
+            } else {
+                // Use custom recursive search
+                foundNodes.addAll(findLive(NodeQuery.text(text), options));
 
-            // Use custom recursive search
-            for (AccessibilityWindowInfo window : windows) {
-                AccessibilityNodeInfo rootNode = window.getRoot();
-                if (rootNode != null) {
-                    List<AccessibilityNodeInfo> nodesInWindow = CustomNodeFinder.findNodesByText(rootNode, text);
-                    if (nodesInWindow != null && !nodesInWindow.isEmpty()) {
-                        foundNodes.addAll(nodesInWindow);
+                // Get tree stats for debugging
+                statsBuilder = new StringBuilder();
+                for (AccessibilityWindowInfo window : getWindows()) {
+                    AccessibilityNodeInfo rootNode = window.getRoot();
+                    if (rootNode != null) {
+                        statsBuilder.append("Window: ").append(window.getTitle()).append(" - ");
+                        statsBuilder.append(CustomNodeFinder.getTreeStats(rootNode)).append("; ");
                     }
                 }
             }
             
-            // Get tree stats for debugging
-            StringBuilder statsBuilder = new StringBuilder();
-            for (AccessibilityWindowInfo window : windows) {
-                AccessibilityNodeInfo rootNode = window.getRoot();
-                if (rootNode != null) {
-                    statsBuilder.append("Window: ").append(window.getTitle()).append(" - ");
-                    statsBuilder.append(CustomNodeFinder.getTreeStats(rootNode)).append("; ");
-                }
-            }
-            
             // Build response with found nodes
             JSONObject resultJson = new JSONObject();
             resultJson.put("type", "findResult");
@@ -1062,18 +1251,19 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("method", "customFindByText");
             resultJson.put("text", text);
             resultJson.put("count", foundNodes.size());
-            resultJson.put("stats", statsBuilder.toString());
+            putFindSource(resultJson, index, options, foundNodes.size());
+            if (statsBuilder != null) {
+                resultJson.put("stats", statsBuilder.toString());
+            }
             
             JSONArray nodesArray = new JSONArray();
             for (AccessibilityNodeInfo node : foundNodes) {
-                nodesArray.put(createNodeInfoJson(node, verbose));
+                nodesArray.put(createNodeInfoJson(node, verbose, index));
             }
             resultJson.put("nodes", nodesArray);
             
             // Send result
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error in customFindByText: " + e.getMessage());
@@ -1083,25 +1273,20 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
     // Custom recursive find by viewId (for comparison with native method)
     public void customFindByViewId(String viewId) {
-        customFindByViewId(viewId, false);
+        customFindByViewId(viewId, false, FindOptions.ALL);
     }
     
-    public void customFindByViewId(String viewId, boolean verbose) {
+    public void customFindByViewId(String viewId, boolean verbose, FindOptions options) {
         try {
             List<AccessibilityNodeInfo> foundNodes = new ArrayList<>();
-            List<AccessibilityWindowInfo> windows = getWindows();
-
-            // Use custom recursive search
-            for (AccessibilityWindowInfo window : windows) {
-                AccessibilityNodeInfo rootNode = window.getRoot();
-                if (rootNode != null) {
-                    List<AccessibilityNodeInfo> nodesInWindow = CustomNodeFinder.findNodesByViewId(rootNode, viewId);
-                    if (nodesInWindow != null && !nodesInWindow.isEmpty()) {
-                        foundNodes.addAll(nodesInWindow);
-                    }
-                }
+            SnapshotIndex index = findIndex(options);
+            if (index != null) {
+                foundNodes.addAll(index.restrict(index.findByViewId(viewId), options));
+            } else {
+                // Use custom recursive search
+                foundNodes.addAll(findLive(NodeQuery.viewId(viewId), options));
             }
-            
+
             // Build response with found nodes
             JSONObject resultJson = new JSONObject();
             resultJson.put("type", "findResult");
@@ -1109,17 +1294,16 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("method", "customFindByViewId");
             resultJson.put("viewId", viewId);
             resultJson.put("count", foundNodes.size());
+            putFindSource(resultJson, index, options, foundNodes.size());
             
             JSONArray nodesArray = new JSONArray();
             for (AccessibilityNodeInfo node : foundNodes) {
-                nodesArray.put(createNodeInfoJson(node, verbose));
+                nodesArray.put(createNodeInfoJson(node, verbose, index));
             }
             resultJson.put("nodes", nodesArray);
             
             // Send result
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error in customFindByViewId: " + e.getMessage());
@@ -1129,25 +1313,22 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
     // Custom regex find by text pattern
     public void findByRegex(String regexPattern) {
-        findByRegex(regexPattern, false);
+        findByRegex(regexPattern, false, FindOptions.ALL);
     }
     
-    public void findByRegex(String regexPattern, boolean verbose) {
+    public void findByRegex(String regexPattern, boolean verbose, FindOptions options) {
         try {
             List<AccessibilityNodeInfo> foundNodes = new ArrayList<>();
-            List<AccessibilityWindowInfo> windows = getWindows();
-
-            // Use custom regex search
-            for (AccessibilityWindowInfo window : windows) {
-                AccessibilityNodeInfo rootNode = window.getRoot();
-                if (rootNode != null) {
-                    List<AccessibilityNodeInfo> nodesInWindow = CustomNodeFinder.findNodesByRegex(rootNode, regexPattern);
-                    if (nodesInWindow != null && !nodesInWindow.isEmpty()) {
-                        foundNodes.addAll(nodesInWindow);
-                    }
-                }
+            // Compiled once; an invalid pattern is reported instead of matching nothing
+            NodeQuery query = NodeQuery.regex(regexPattern);
+            SnapshotIndex index = findIndex(options);
+            if (index != null) {
+                foundNodes.addAll(index.restrict(index.find(query, null), options));
+            } else {
+                // Use custom regex search
+                foundNodes.addAll(findLive(query, options));
             }
-            
+
             // Build response with found nodes
             JSONObject resultJson = new JSONObject();
             resultJson.put("type", "findResult");
@@ -1155,17 +1336,16 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("method", "findByRegex");
             resultJson.put("pattern", regexPattern);
             resultJson.put("count", foundNodes.size());
+            putFindSource(resultJson, index, options, foundNodes.size());
             
             JSONArray nodesArray = new JSONArray();
             for (AccessibilityNodeInfo node : foundNodes) {
-                nodesArray.put(createNodeInfoJson(node, verbose));
+                nodesArray.put(createNodeInfoJson(node, verbose, index));
             }
             resultJson.put("nodes", nodesArray);
             
             // Send result
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error in findByRegex: " + e.getMessage());
@@ -1174,25 +1354,21 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
     }
 
     public void findByProps(JSONObject properties) {
-        findByProps(properties, false);
+        findByProps(properties, false, FindOptions.ALL);
     }
     
-    public void findByProps(JSONObject properties, boolean verbose) {
+    public void findByProps(JSONObject properties, boolean verbose, FindOptions options) {
         try {
             List<AccessibilityNodeInfo> foundNodes = new ArrayList<>();
-            List<AccessibilityWindowInfo> windows = getWindows();
-
-            // Use custom properties search
-            for (AccessibilityWindowInfo window : windows) {
-                AccessibilityNodeInfo rootNode = window.getRoot();
-                if (rootNode != null) {
-                    List<AccessibilityNodeInfo> nodesInWindow = CustomNodeFinder.findNodesByProps(rootNode, properties);
-                    if (nodesInWindow != null && !nodesInWindow.isEmpty()) {
-                        foundNodes.addAll(nodesInWindow);
-                    }
-                }
+            NodeQuery query = properties != null ? NodeQuery.props(properties) : NodeQuery.NONE;
+            SnapshotIndex index = findIndex(options);
+            if (index != null) {
+                foundNodes.addAll(index.restrict(index.find(query, properties), options));
+            } else {
+                // Use custom properties search
+                foundNodes.addAll(findLive(query, options));
             }
-            
+
             // Build response with found nodes
             JSONObject resultJson = new JSONObject();
             resultJson.put("type", "findResult");
@@ -1200,17 +1376,16 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("method", "findByProps");
             resultJson.put("properties", properties);
             resultJson.put("count", foundNodes.size());
+            putFindSource(resultJson, index, options, foundNodes.size());
             
             JSONArray nodesArray = new JSONArray();
             for (AccessibilityNodeInfo node : foundNodes) {
-                nodesArray.put(createNodeInfoJson(node, verbose));
+                nodesArray.put(createNodeInfoJson(node, verbose, index));
             }
             resultJson.put("nodes", nodesArray);
             
             // Send result
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
             
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error in findByProps: " + e.getMessage());
@@ -1218,6 +1393,180 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         }
     }
 
+    // The stable tree's index, if a find may use it: the client did not ask for a fresh search of the
+    // live tree, no event has arrived since the stable tree was captured, the index has not expired,
+    // and it holds the scope node
+    private SnapshotIndex findIndex(FindOptions options) {
+        if (!options.isFresh()) {
+            indexWanted = true;
+        }
+        SnapshotIndex index = snapshotIndex;
+        if (options.isFresh() || index == null || index.getUiGeneration() != uiGeneration
+                || index.isExpired(SystemClock.uptimeMillis())
+                || (options.getScopeNodeId() != null && !index.contains(options.getScopeNodeId()))) {
+            InspectorMetrics.increment("find.live");
+            return null;
+        }
+        InspectorMetrics.increment("find.fromIndex");
+        return index;
+    }
+
+    // Says what answered a find, the index of a stable capture or the live tree, and whether it
+    // stopped at its limit
+    private void putFindSource(JSONObject resultJson, SnapshotIndex index, FindOptions options, int count)
+            throws JSONException {
+        resultJson.put("source", index != null ? "index" : "live");
+        resultJson.put("etag", index != null ? index.getUiGeneration() : uiGeneration);
+        if (index != null) {
+            resultJson.put("generation", index.getGeneration());
+        }
+        resultJson.put("limitReached", options.isLimitReached(count));
+    }
+
+    // Searches the live tree for a find with the query
+    private List<AccessibilityNodeInfo> findLive(NodeQuery query, FindOptions options) {
+        return findLive(options, (rootNode, results) -> CustomNodeFinder.findNodes(rootNode, query, options, results));
+    }
+
+    // Runs a search from the scope node, or from the root of each window the options allow until
+    // the limit is reached; windows that cannot hold a match are skipped before their root is fetched
+    private List<AccessibilityNodeInfo> findLive(FindOptions options,
+                                                 BiConsumer<AccessibilityNodeInfo, List<AccessibilityNodeInfo>> search) {
+        List<AccessibilityNodeInfo> results = new ArrayList<>();
+        String scopeNodeId = options.getScopeNodeId();
+        if (scopeNodeId != null) {
+            AccessibilityNodeInfo scopeNode = nodeRegistry.get(scopeNodeId);
+            if (scopeNode == null || !scopeNode.refresh()) {
+                scopeNode = findNodeByNodeId(scopeNodeId);
+            }
+            if (scopeNode == null) {
+                throw new IllegalArgumentException("Scope node " + scopeNodeId + " not found");
+            }
+            search.accept(scopeNode, results);
+            return results;
+        }
+        Rect bounds = new Rect();
+        for (AccessibilityWindowInfo window : getWindows()) {
+            if (options.isLimitReached(results.size())) {
+                break;
+            }
+            if (!options.mayContain(window, bounds)) {
+                InspectorMetrics.increment("find.skippedWindows");
+                continue;
+            }
+            AccessibilityNodeInfo rootNode = window.getRoot();
+            if (rootNode != null) {
+                search.accept(rootNode, results);
+            }
+        }
+        return results;
+    }
+
+    // Native finds return all of a window's matches at once, so the options can only filter them
+    private static void addAccepted(List<AccessibilityNodeInfo> nodes, FindOptions options,
+                                    List<AccessibilityNodeInfo> results) {
+        Rect bounds = new Rect();
+        for (AccessibilityNodeInfo node : nodes) {
+            if (options.isLimitReached(results.size())) {
+                return;
+            }
+            if (options.accepts(node, bounds)) {
+                results.add(node);
+            }
+        }
+    }
+
+    // Evaluate named selectors in a single traversal of every window, see Selector
+    public void query(JSONObject selectors, boolean verbose) {
+        try {
+            Selector.Group group = Selector.Group.parse(selectors);
+            Map<String, List<AccessibilityNodeInfo>> results = group.newResults();
+            for (AccessibilityWindowInfo window : getWindows()) {
+                AccessibilityNodeInfo rootNode = window.getRoot();
+                if (rootNode != null) {
+                    CustomNodeFinder.query(rootNode, group, results);
+                }
+            }
+
+            JSONObject resultJson = new JSONObject();
+            resultJson.put("type", "queryResult");
+            resultJson.put("success", true);
+            JSONObject resultsJson = new JSONObject();
+            for (Map.Entry<String, List<AccessibilityNodeInfo>> entry : results.entrySet()) {
+                JSONObject selectorJson = new JSONObject();
+                selectorJson.put("selector", group.getSelectors().get(entry.getKey()).toString());
+                selectorJson.put("count", entry.getValue().size());
+                JSONArray nodesArray = new JSONArray();
+                for (AccessibilityNodeInfo node : entry.getValue()) {
+                    nodesArray.put(createNodeInfoJson(node, verbose));
+                }
+                selectorJson.put("nodes", nodesArray);
+                resultsJson.put(entry.getKey(), selectorJson);
+            }
+            resultJson.put("results", resultsJson);
+
+            publishMessage(resultJson);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error in query: " + e.getMessage());
+            try {
+                JSONObject errorJson = new JSONObject();
+                errorJson.put("type", "queryResult");
+                errorJson.put("success", false);
+                errorJson.put("message", e.getMessage());
+                publishMessage(errorJson);
+            } catch (JSONException jsonException) {
+                Log.e(LOG_TAG, "Error sending query result: " + jsonException.getMessage());
+            }
+        }
+    }
+
+    // Wait on the main thread for a selector to appear, disappear or reach a value, see NodeWaiter
+    public void waitFor(WaitRequest request) {
+        captureHandler.post(() -> nodeWaiter.add(request));
+    }
+
+    @Override
+    public void onWaitFinished(WaitRequest request, List<AccessibilityNodeInfo> matches, long elapsedMillis, int checks) {
+        try {
+            JSONObject resultJson = new JSONObject();
+            resultJson.put("type", "waitForResult");
+            resultJson.put("success", matches != null);
+            request.putTo(resultJson);
+            resultJson.put("timedOut", matches == null);
+            resultJson.put("elapsedMs", elapsedMillis);
+            resultJson.put("checks", checks);
+            if (matches == null) {
+                resultJson.put("message", "Timed out after " + request.getTimeoutMillis() + " ms");
+            } else {
+                resultJson.put("count", matches.size());
+                JSONArray nodesArray = new JSONArray();
+                for (AccessibilityNodeInfo node : matches) {
+                    nodesArray.put(createNodeInfoJson(node, request.isVerbose()));
+                }
+                resultJson.put("nodes", nodesArray);
+            }
+            publishMessage(resultJson);
+            Log.d(LOG_TAG, "waitFor " + request + (matches != null ? " satisfied" : " timed out")
+                    + " after " + elapsedMillis + " ms and " + checks + " checks");
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Error sending waitFor result: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onWaitRejected(WaitRequest request, String message) {
+        try {
+            JSONObject errorJson = new JSONObject();
+            errorJson.put("type", "waitForResult");
+            errorJson.put("success", false);
+            request.putTo(errorJson);
+            errorJson.put("message", message);
+            publishMessage(errorJson);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Error sending waitFor result: " + e.getMessage());
+        }
+    }
+
     // Send error result for custom find commands
     private void sendCustomFindResult(boolean success, String method, String message) {
         try {
@@ -1227,9 +1576,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("method", method);
             resultJson.put("message", message);
 
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            resultIntent.putExtra("messageData", resultJson.toString());
-            startService(resultIntent);
+            publishMessage(resultJson);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending custom find result: " + e.getMessage());
         }
@@ -1248,19 +1595,34 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
                 List<AccessibilityWindowInfo> windows = getWindows();
                 
                 if (windows != null && !windows.isEmpty()) {
-                    // Use fast tree capture for stable trees
-                    TreeDebug.logNodeTreesFast(windows, this);
-                    
-                    // TreeDebug calls sendJSON() which stores tree in jsonObject
-                    if (jsonObject != null) {
-                        // Compare with previous tree to detect actual changes
-                        if (stableUITree == null || hasTreeChanged(stableUITree, jsonObject)) {
-                            JSONObject oldTree = stableUITree; // Keep reference for diff logging
-                            stableUITree = new JSONObject(jsonObject.toString()); // Deep copy
-                            stableTreeTimestamp = System.currentTimeMillis();
-                            
-                            sendStableTree();
+                    // Capture into a snapshot; filtering and serialization run on it later
+                    NodeRegistry.Generation nodes = nodeRegistry.begin();
+                    long generation = uiGeneration;
+                    // Invisible leaves are pruned while capturing, so they are never read or compared
+                    TreeSnapshot captured = snapshotCapturer.capture(windows, nodes, true);
+                    // Finds see every node in every window, visible, important for accessibility or not.
+                    // That is a second walk, so it is only made if a find came since the last one.
+                    if (indexWanted) {
+                        indexWanted = false;
+                        snapshotIndex = SnapshotIndex.build(indexCapturer.capture(windows, nodes, false), nodes, generation);
+                        InspectorMetrics.add("find.indexedNodes", snapshotIndex.size());
+                    } else {
+                        snapshotIndex = null;
+                        indexMirror.clear();
+                    }
+                    // The stable tree shows what screen readers see, so only nodes important for accessibility
+                    TreeSnapshot snapshot = captured.collapse(SnapshotFilter.IMPORTANT);
+                    nodeRegistry.publish(nodes);
+
+                    // Compare root hashes with the previous tree to detect actual changes
+                    if (stableSnapshot == null || snapshot.getRootHash() != stableSnapshot.getRootHash()) {
+                        stableSnapshot = snapshot;
+                        stableTreeTimestamp = System.currentTimeMillis();
+                        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                            Log.v(LOG_TAG, "Stable tree changed:\n" + SnapshotSerializer.TEXT.serialize(snapshot, null));
                         }
+
+                        sendStableTree();
                     }
                 }
             } catch (Exception e) {
@@ -1399,9 +1761,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         try {
             JSONObject eventJson = createBaseEventJson(event);
 
-            Intent eventIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            eventIntent.putExtra("messageData", eventJson.toString());
-            startService(eventIntent);
+            publishMessage(eventJson);
             Log.d(LOG_TAG, "Window state change event sent");
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending window state event: " + e.getMessage(), e);
@@ -1414,9 +1774,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         try {
             JSONObject eventJson = createBaseEventJson(event);
             
-            Intent eventIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            eventIntent.putExtra("messageData", eventJson.toString());
-            startService(eventIntent);
+            publishMessage(eventJson);
             Log.d(LOG_TAG, "Accessibility event sent: " + getEventTypeName(event.getEventType()));
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending accessibility event: " + e.getMessage(), e);
@@ -1426,59 +1784,17 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
     // Send stable tree to all clients
     private void sendStableTree() {
         try {
-            JSONObject treeResponse = new JSONObject();
-            treeResponse.put("type", "stableTree");
-            treeResponse.put("timestamp", stableTreeTimestamp);
+            JSONObject header = new JSONObject();
+            header.put("type", "stableTree");
+            header.put("timestamp", stableTreeTimestamp);
+            header.put("generation", ++stableTreeGeneration);
             
-            // Filter out invisible leaf nodes to reduce size while preserving structure
-            JSONArray originalChildren = stableUITree.getJSONArray("children");
-            JSONArray filteredChildren = removeInvisibleLeafNodes(originalChildren);
-            treeResponse.put("children", filteredChildren);
-            
-            Intent treeIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            treeIntent.putExtra("messageData", treeResponse.toString());
-            startService(treeIntent);
+            MessageBus.getInstance().publishSnapshot("stableTree", stableSnapshot, header);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error sending stable tree: " + e.getMessage(), e);
         }
     }
     
-    // Remove invisible leaf nodes recursively while preserving tree structure
-    private JSONArray removeInvisibleLeafNodes(JSONArray children) throws Exception {
-        JSONArray filtered = new JSONArray();
-        
-        for (int i = 0; i < children.length(); i++) {
-            JSONObject child = children.getJSONObject(i);
-            
-            // First, recursively process this node's children
-            if (child.has("children")) {
-                JSONArray childChildren = child.getJSONArray("children");
-                JSONArray filteredChildChildren = removeInvisibleLeafNodes(childChildren);
-                child.put("children", filteredChildChildren);
-            }
-            
-            // Check if this node is invisible
-            boolean isVisible = true;
-            if (child.has("metadata")) {
-                JSONObject metadata = child.getJSONObject("metadata");
-                if (metadata.has("visibility") && "invisible".equals(metadata.getString("visibility"))) {
-                    isVisible = false;
-                }
-            }
-            
-            // Only remove invisible nodes that are now leaf nodes (no children after filtering)
-            boolean hasChildren = child.has("children") && child.getJSONArray("children").length() > 0;
-            
-            if (isVisible || hasChildren) {
-                // Keep visible nodes and invisible nodes that have children (structural containers)
-                filtered.put(child);
-            }
-            // Skip invisible leaf nodes (they serve no structural purpose)
-        }
-        
-        return filtered;
-    }
-
     // Create base event JSON without tree
     private JSONObject createBaseEventJson(AccessibilityEvent event) throws Exception {
         JSONObject eventJson = new JSONObject();
@@ -1607,9 +1923,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
                 // No longer using before-tree logic
             }
 
-            Intent eventIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            eventIntent.putExtra("messageData", eventJson.toString());
-            startService(eventIntent);
+            publishMessage(eventJson);
             Log.d(LOG_TAG, "Scroll sequence ended - X: " + totalScrollX + ", Y: " + totalScrollY + ", Events: " + scrollEventCount);
             
         } catch (Exception e) {
@@ -1658,7 +1972,10 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             AccessibilityWindowInfo window = activeTextField.getWindow();
             if (window != null) {
                 List<AccessibilityWindowInfo> windows = List.of(window);
-                TreeDebug.logNodeTrees(windows, this);
+                writeTree(windows, CaptureRequest.DEFAULT);
+                treeWriter.endObject();
+                // Only the field's window, so it is neither cached nor given to coalesced requests
+                MessageBus.getInstance().publishUnsolicitedTree("tree", treeWriter.toByteArray());
                 // Store tree capture flag
                 textFieldTree = new JSONObject();
                 textFieldTree.put("captured", true);
@@ -1718,9 +2035,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
                 eventJson.put("hasTree", true);
             }
 
-            Intent eventIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-            eventIntent.putExtra("messageData", eventJson.toString());
-            startService(eventIntent);
+            publishMessage(eventJson);
             Log.d(LOG_TAG, "Text session ended - Text: '" + sessionText.toString() + "', Events: " + textEventCount);
             
         } catch (Exception e) {
@@ -1787,61 +2102,6 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         }
     }
 
-    // Check if tree content has meaningfully changed (ignoring volatile node IDs)
-    private boolean hasTreeChanged(JSONObject oldTree, JSONObject newTree) {
-        try {
-            // Remove volatile IDs before comparison
-            JSONObject oldClean = removeNodeIds(oldTree);
-            JSONObject newClean = removeNodeIds(newTree);
-            
-            String oldStr = oldClean.toString();
-            String newStr = newClean.toString();
-            return !oldStr.equals(newStr);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Error comparing trees: " + e.getMessage());
-            return true; // Assume changed if we can't compare
-        }
-    }
-    
-    // Remove volatile node IDs from tree for comparison
-    private JSONObject removeNodeIds(JSONObject tree) throws Exception {
-        JSONObject cleaned = new JSONObject();
-        
-        // Copy all properties except "id"
-        java.util.Iterator<String> keys = tree.keys();
-        while (keys.hasNext()) {
-            String key = keys.next();
-            if (!key.equals("id")) {
-                Object value = tree.get(key);
-                if (value instanceof JSONArray) {
-                    cleaned.put(key, removeNodeIdsFromArray((JSONArray) value));
-                } else if (value instanceof JSONObject) {
-                    cleaned.put(key, removeNodeIds((JSONObject) value));
-                } else {
-                    cleaned.put(key, value);
-                }
-            }
-        }
-        
-        return cleaned;
-    }
-    
-    // Remove node IDs from array of objects
-    private JSONArray removeNodeIdsFromArray(JSONArray array) throws Exception {
-        JSONArray cleaned = new JSONArray();
-        for (int i = 0; i < array.length(); i++) {
-            Object item = array.get(i);
-            if (item instanceof JSONObject) {
-                cleaned.put(removeNodeIds((JSONObject) item));
-            } else if (item instanceof JSONArray) {
-                cleaned.put(removeNodeIdsFromArray((JSONArray) item));
-            } else {
-                cleaned.put(item);
-            }
-        }
-        return cleaned;
-    }
-
     // Log differences between trees to help debug what's changing
     private void logTreeDifferences(JSONObject oldTree, JSONObject newTree) {
         try {
@@ -2015,8 +2275,15 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
         }
     }
 
-    public void startCapture() {
+    public void startCapture(CaptureRequest request) {
         try {
+            // Nothing happened since this tree was captured, so it is still the tree
+            byte[] cached = treeCache.get(request, uiGeneration);
+            if (cached != null) {
+                InspectorMetrics.increment("capture.cacheHits");
+                MessageBus.getInstance().publishTree("tree", cached);
+                return;
+            }
             List<AccessibilityWindowInfo> windows = getWindows();
             
             if (windows == null || windows.isEmpty()) {
@@ -2026,19 +2293,16 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
 
             Log.d(LOG_TAG, "Total windows found: " + windows.size());
 
-            // Filter out null windows and windows with null root nodes
+            // Filter out null windows. Roots are fetched by the capture itself, and only for the
+            // windows its window policy keeps
             List<AccessibilityWindowInfo> validWindows = new ArrayList<>();
             for (AccessibilityWindowInfo window : windows) {
                 if (window != null) {
                     // Log window details
                     Log.d(LOG_TAG, "Window type: " + window.getType() + 
                           ", isActive: " + window.isActive() + 
-                          ", isFocused: " + window.isFocused() + 
-                          ", hasRoot: " + (window.getRoot() != null));
-                    
-                    if (window.getRoot() != null) {
-                        validWindows.add(window);
-                    }
+                          ", isFocused: " + window.isFocused());
+                    validWindows.add(window);
                 } else {
                     Log.w(LOG_TAG, "Found null window");
                 }
@@ -2047,12 +2311,11 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             Log.d(LOG_TAG, "Valid windows for capture: " + validWindows.size());
 
             if (validWindows.isEmpty()) {
-                Log.w(LOG_TAG, "No valid windows with root nodes available for capture");
+                Log.w(LOG_TAG, "No windows available for capture");
                 return;
             }
 
-            TreeDebug.logNodeTrees(validWindows, _this);
-            sendTree();
+            sendTree(validWindows, request);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error during capture: " + e.getMessage(), e);
             // Send error response to client
@@ -2060,8 +2323,7 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
                 JSONObject errorJson = new JSONObject();
                 errorJson.put("type", "captureError");
                 errorJson.put("message", "Capture failed: " + e.getMessage());
-                sendJSON(errorJson);
-                sendTree();
+                publishMessage(errorJson);
             } catch (Exception sendError) {
                 Log.e(LOG_TAG, "Failed to send error response: " + sendError.getMessage());
             }
@@ -2236,14 +2498,8 @@ public class AccessibilityInspector extends AccessibilityService implements Obse
             resultJson.put("success", success);
             resultJson.put("message", message);
 
-            Log.d(LOG_TAG, "Creating result intent for gesture result");
-            Intent resultIntent = new Intent(SocketService.BROADCAST_MESSAGE, null, this, SocketService.class);
-
-            Log.d(LOG_TAG, "Compressing gesture result JSON: " + resultJson.toString());
-            resultIntent.putExtra("messageData", resultJson.toString());
-
-            Log.d(LOG_TAG, "Starting service to send gesture result");
-            startService(resultIntent);
+            Log.d(LOG_TAG, "Publishing gesture result JSON: " + resultJson.toString());
+            publishMessage(resultJson);
 
             Log.d(LOG_TAG, "Gesture result sent successfully: " + message);
         } catch (Exception e) {
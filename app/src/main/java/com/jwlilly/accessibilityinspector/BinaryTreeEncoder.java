@@ -0,0 +1,408 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encodes tree messages into the compact binary frame clients can opt into with
+ * {"message":"hello","encoding":"binary"}. Decoding a frame gives back the same JSON structure
+ * the text encoding would have sent.
+ *
+ * <pre>
+ * frame    := "A11T" version:u8 stringCount:varint string* node
+ * string   := byteLength:varint utf8-bytes
+ * node     := flags:varint [id:zigzag] name:ref resourceId:ref [properties:varint]
+ *             [x1:zigzag y1:zigzag width:zigzag height:zigzag]
+ *             metadataCount:varint (key:ref value)* extraCount:varint (key:ref value)*
+ *             childCount:varint node*
+ * ref      := 0 for absent, otherwise string table index + 1
+ * value    := tag:u8 payload, see the TAG_ constants
+ * </pre>
+ *
+ * Node flags say which optional parts are present. The known entries of the "properties" array are
+ * packed into a bitset in {@link #PROPERTY_NAMES} order, and the metadata bounds x1/y1/x2/y2 are
+ * packed as origin plus size. Every other metadata and node field is written as a tagged key/value
+ * pair, so fields added to the tree later still round-trip. The message itself is encoded as the
+ * root node: its "type", "timestamp" and similar fields become extras and its windows its children.
+ */
+public class BinaryTreeEncoder {
+    public static final byte[] MAGIC = {'A', '1', '1', 'T'};
+    public static final int VERSION = 1;
+
+    static final int FLAG_ID = 1;
+    static final int FLAG_METADATA = 1 << 1;
+    static final int FLAG_BOUNDS = 1 << 2;
+    static final int FLAG_PROPERTIES = 1 << 3;
+    static final int FLAG_INVISIBLE = 1 << 4;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_FALSE = 1;
+    static final int TAG_TRUE = 2;
+    static final int TAG_INT = 3;
+    static final int TAG_FLOAT = 4;
+    static final int TAG_DOUBLE = 5;
+    static final int TAG_STRING = 6;
+    static final int TAG_ARRAY = 7;
+    static final int TAG_OBJECT = 8;
+
+    /** Bit positions of the boolean node properties, in the order TreeDebug emits them. */
+    static final List<String> PROPERTY_NAMES = Arrays.asList(
+            "focusable", "screen reader focusable", "focused", "selected", "scrollable",
+            "clickable", "long clickable", "accessibility focused", "disabled");
+
+    private static final String[] BOUNDS_KEYS = {"x1", "y1", "x2", "y2"};
+
+    private final HashMap<String, Integer> stringIndex = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final ByteSink body = new ByteSink(64 * 1024);
+
+    /** Encodes a tree message such as {"type":"tree","children":[...]}. */
+    public static byte[] encode(JSONObject message) throws JSONException {
+        BinaryTreeEncoder encoder = new BinaryTreeEncoder();
+        encoder.writeNode(message);
+        return encoder.toFrame();
+    }
+
+    /** Encodes a snapshot into the same frame {@link #encode(JSONObject)} gives for its JSON tree. */
+    public static byte[] encode(TreeSnapshot snapshot, JSONObject header) throws JSONException {
+        BinaryTreeEncoder encoder = new BinaryTreeEncoder();
+        encoder.writeSnapshotRoot(snapshot, header);
+        return encoder.toFrame();
+    }
+
+    private byte[] toFrame() {
+        ByteSink frame = new ByteSink(body.size + strings.size() * 16 + 16);
+        frame.writeBytes(MAGIC, MAGIC.length);
+        frame.writeByte(VERSION);
+        frame.writeVarint(strings.size());
+        for (String string : strings) {
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            frame.writeVarint(utf8.length);
+            frame.writeBytes(utf8, utf8.length);
+        }
+        frame.writeBytes(body.buffer, body.size);
+        return frame.toByteArray();
+    }
+
+    private void writeNode(JSONObject node) throws JSONException {
+        JSONObject metadata = node.optJSONObject("metadata");
+        Object id = node.opt("id");
+        boolean hasId = id instanceof Integer || id instanceof Long;
+        boolean hasBounds = metadata != null && hasIntBounds(metadata);
+        int propertyBits = metadata != null ? packProperties(metadata.optJSONArray("properties")) : -1;
+        boolean invisible = metadata != null && "invisible".equals(metadata.opt("visibility"));
+
+        int flags = 0;
+        if (hasId) flags |= FLAG_ID;
+        if (metadata != null) flags |= FLAG_METADATA;
+        if (hasBounds) flags |= FLAG_BOUNDS;
+        if (propertyBits >= 0) flags |= FLAG_PROPERTIES;
+        if (invisible) flags |= FLAG_INVISIBLE;
+        body.writeVarint(flags);
+
+        if (hasId) {
+            body.writeZigzag(((Number) id).longValue());
+        }
+        writeRef(node.opt("name"));
+        writeRef(node.opt("resourceId"));
+        if (propertyBits >= 0) {
+            body.writeVarint(propertyBits);
+        }
+        if (hasBounds) {
+            int x1 = metadata.getInt("x1");
+            int y1 = metadata.getInt("y1");
+            body.writeZigzag(x1);
+            body.writeZigzag(y1);
+            body.writeZigzag(metadata.getInt("x2") - x1);
+            body.writeZigzag(metadata.getInt("y2") - y1);
+        }
+
+        if (metadata != null) {
+            List<String> metadataKeys = new ArrayList<>();
+            Iterator<String> keys = metadata.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (isPackedMetadata(key, hasBounds, propertyBits >= 0, invisible)) {
+                    continue;
+                }
+                metadataKeys.add(key);
+            }
+            body.writeVarint(metadataKeys.size());
+            for (String key : metadataKeys) {
+                writeRef(key);
+                writeValue(metadata.get(key));
+            }
+        }
+
+        List<String> extraKeys = new ArrayList<>();
+        Iterator<String> keys = node.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key.equals("metadata") || key.equals("children") || key.equals("name") || key.equals("resourceId")
+                    || (key.equals("id") && hasId)) {
+                continue;
+            }
+            extraKeys.add(key);
+        }
+        body.writeVarint(extraKeys.size());
+        for (String key : extraKeys) {
+            writeRef(key);
+            writeValue(node.get(key));
+        }
+
+        JSONArray children = node.optJSONArray("children");
+        int childCount = children != null ? children.length() : 0;
+        body.writeVarint(childCount);
+        for (int i = 0; i < childCount; i++) {
+            writeNode(children.getJSONObject(i));
+        }
+    }
+
+    private void writeSnapshotRoot(TreeSnapshot snapshot, JSONObject header) throws JSONException {
+        body.writeVarint(0);
+        writeRef(null);
+        writeRef(null);
+        List<String> headerKeys = new ArrayList<>();
+        if (header != null) {
+            Iterator<String> keys = header.keys();
+            while (keys.hasNext()) {
+                headerKeys.add(keys.next());
+            }
+        }
+        body.writeVarint(headerKeys.size() + 1);
+        for (String key : headerKeys) {
+            writeRef(key);
+            writeValue(header.get(key));
+        }
+        writeRef(NodeHash.KEY);
+        writeValue(NodeHash.toHex(snapshot.getRootHash()));
+        writeSnapshotChildren(snapshot, snapshot.getWindows());
+    }
+
+    private void writeSnapshotNode(TreeSnapshot snapshot, int index) throws JSONException {
+        NodeSnapshot node = snapshot.getNode(index);
+        int propertyBits = 0;
+        if (node.hasFlag(NodeSnapshot.FLAG_CLICKABLE)) propertyBits |= 1 << PROPERTY_NAMES.indexOf("clickable");
+        if (node.hasFlag(NodeSnapshot.FLAG_SCROLLABLE)) propertyBits |= 1 << PROPERTY_NAMES.indexOf("scrollable");
+        if (node.hasFlag(NodeSnapshot.FLAG_FOCUSED)) propertyBits |= 1 << PROPERTY_NAMES.indexOf("focused");
+        if (!node.hasFlag(NodeSnapshot.FLAG_ENABLED)) propertyBits |= 1 << PROPERTY_NAMES.indexOf("disabled");
+
+        int flags = FLAG_ID | FLAG_METADATA;
+        if (!node.isWindow() && propertyBits != 0) flags |= FLAG_PROPERTIES;
+        if (!node.isWindow() && !node.isVisible()) flags |= FLAG_INVISIBLE;
+        body.writeVarint(flags);
+        body.writeZigzag(node.getId());
+        writeRef(node.getRole());
+        writeRef(node.getResourceId());
+        if ((flags & FLAG_PROPERTIES) != 0) {
+            body.writeVarint(propertyBits);
+        }
+
+        if (node.isWindow()) {
+            body.writeVarint(node.getTitle() != null ? 3 : 2);
+            writeRef("windowId");
+            writeValue(node.getWindowId());
+            writeRef("role");
+            writeValue(node.getRole());
+            if (node.getTitle() != null) {
+                writeRef("title");
+                writeValue(node.getTitle());
+            }
+        } else {
+            body.writeVarint(2 + (node.getText() != null ? 1 : 0) + (node.getContentDescription() != null ? 1 : 0));
+            writeRef("hashCode");
+            writeValue(node.getId());
+            writeRef("role");
+            writeValue(node.getRole());
+            if (node.getText() != null) {
+                writeRef("text");
+                writeValue(node.getText());
+            }
+            if (node.getContentDescription() != null) {
+                writeRef("content");
+                writeValue(node.getContentDescription());
+            }
+        }
+
+        body.writeVarint(node.getNodeId() != null ? 2 : 1);
+        if (node.getNodeId() != null) {
+            writeRef("nodeId");
+            writeValue(node.getNodeId());
+        }
+        writeRef(NodeHash.KEY);
+        writeValue(NodeHash.toHex(snapshot.getHash(index)));
+        writeSnapshotChildren(snapshot, snapshot.getChildren(index));
+    }
+
+    private void writeSnapshotChildren(TreeSnapshot snapshot, int[] children) throws JSONException {
+        body.writeVarint(children.length);
+        for (int child : children) {
+            writeSnapshotNode(snapshot, child);
+        }
+    }
+
+    private static boolean isPackedMetadata(String key, boolean hasBounds, boolean hasProperties, boolean invisible) {
+        switch (key) {
+            case "x1":
+            case "y1":
+            case "x2":
+            case "y2":
+                return hasBounds;
+            case "properties":
+                return hasProperties;
+            case "visibility":
+                return invisible;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasIntBounds(JSONObject metadata) {
+        for (String key : BOUNDS_KEYS) {
+            if (!(metadata.opt(key) instanceof Integer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the property bitset, or -1 if the array is missing or has entries without a bit
+    private static int packProperties(JSONArray properties) {
+        if (properties == null) {
+            return -1;
+        }
+        int bits = 0;
+        for (int i = 0; i < properties.length(); i++) {
+            int bit = PROPERTY_NAMES.indexOf(properties.optString(i));
+            if (bit < 0) {
+                return -1;
+            }
+            bits |= 1 << bit;
+        }
+        return bits;
+    }
+
+    private void writeRef(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            body.writeVarint(0);
+            return;
+        }
+        body.writeVarint(intern(value.toString()) + 1);
+    }
+
+    private int intern(String string) {
+        Integer index = stringIndex.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndex.put(string, index);
+        }
+        return index;
+    }
+
+    private void writeValue(Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            body.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            body.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            body.writeByte(TAG_INT);
+            body.writeZigzag(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if ((double) (float) number == number) {
+                body.writeByte(TAG_FLOAT);
+                body.writeFixed32(Float.floatToIntBits((float) number));
+            } else {
+                body.writeByte(TAG_DOUBLE);
+                long bits = Double.doubleToLongBits(number);
+                body.writeFixed32((int) (bits >>> 32));
+                body.writeFixed32((int) bits);
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            body.writeByte(TAG_ARRAY);
+            body.writeVarint(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(array.get(i));
+            }
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            body.writeByte(TAG_OBJECT);
+            body.writeVarint(object.length());
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writeRef(key);
+                writeValue(object.get(key));
+            }
+        } else {
+            body.writeByte(TAG_STRING);
+            body.writeVarint(intern(value.toString()));
+        }
+    }
+
+    /** Minimal growable byte buffer with varint helpers. */
+    static class ByteSink {
+        byte[] buffer;
+        int size;
+
+        ByteSink(int initialCapacity) {
+            buffer = new byte[Math.max(16, initialCapacity)];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, 0, buffer, size, length);
+            size += length;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeZigzag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeFixed32(int value) {
+            ensureCapacity(4);
+            buffer[size++] = (byte) (value >>> 24);
+            buffer[size++] = (byte) (value >>> 16);
+            buffer[size++] = (byte) (value >>> 8);
+            buffer[size++] = (byte) value;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
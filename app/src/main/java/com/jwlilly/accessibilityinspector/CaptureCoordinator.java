@@ -0,0 +1,59 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Single-flight for manual captures. A capture request whose options equal those of a capture
+ * that was started but has not been sent yet joins that capture instead of walking the tree
+ * again; the one tree message it sends answers all of them.
+ *
+ * <p>Requests are joined on the socket threads and captures completed on the main thread.
+ */
+public class CaptureCoordinator {
+    // A capture not completed by then is assumed lost, say because the broadcast never arrived
+    static final long ABANDONED_AFTER_MS = 30_000;
+
+    private static final CaptureCoordinator instance = new CaptureCoordinator();
+
+    private static final class InFlight {
+        final long startedAt;
+        int joined;
+
+        InFlight(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final HashMap<CaptureRequest, InFlight> inFlight = new HashMap<>();
+
+    public static CaptureCoordinator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns true if the caller has to start a capture for the request, or false if it joined a
+     * capture with the same options that is already under way.
+     */
+    public synchronized boolean join(CaptureRequest request) {
+        long now = SystemClock.uptimeMillis();
+        InFlight capture = inFlight.get(request);
+        if (capture != null && now - capture.startedAt < ABANDONED_AFTER_MS) {
+            capture.joined++;
+            InspectorMetrics.increment("capture.coalesced");
+            return false;
+        }
+        inFlight.put(request, new InFlight(now));
+        return true;
+    }
+
+    /**
+     * Ends the capture for a request, so the next equal request starts a new one. Returns how many
+     * requests joined it, or 0 if it was already completed.
+     */
+    public synchronized int complete(CaptureRequest request) {
+        InFlight capture = inFlight.remove(request);
+        return capture != null ? capture.joined : 0;
+    }
+}
@@ -0,0 +1,181 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.content.Intent;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Objects;
+
+/**
+ * The options of one manual capture. Each capture works from its own request instead of fields on
+ * the service, and requests with equal options are the same capture as far as
+ * {@link CaptureCoordinator} is concerned.
+ */
+public final class CaptureRequest {
+    static final String ACTION = "A11yInspector";
+    static final String ACTION_NOT_IMPORTANT = "A11yInspectorImportant";
+    private static final String LOG_TAG = "CaptureRequest";
+
+    /** A full capture of the important nodes, for captures the service starts itself. */
+    public static final CaptureRequest DEFAULT = new CaptureRequest(false, false, Projection.FULL, 0, 0, 0, false,
+            WindowPolicy.DEFAULT);
+
+    private final boolean includeNotImportant;
+    private final boolean visibleOnly;
+    private final Projection projection;
+    private final int maxDepth;
+    private final int maxNodes;
+    private final int timeBudgetMillis;
+    private final boolean autoContinue;
+    private final WindowPolicy windowPolicy;
+
+    public CaptureRequest(boolean includeNotImportant, boolean visibleOnly, Projection projection,
+                          int maxDepth, int maxNodes, int timeBudgetMillis, boolean autoContinue,
+                          WindowPolicy windowPolicy) {
+        this.includeNotImportant = includeNotImportant;
+        this.visibleOnly = visibleOnly;
+        this.projection = projection;
+        this.maxDepth = Math.max(0, maxDepth);
+        this.maxNodes = Math.max(0, maxNodes);
+        this.timeBudgetMillis = Math.max(0, timeBudgetMillis);
+        this.autoContinue = autoContinue;
+        this.windowPolicy = windowPolicy;
+    }
+
+    /**
+     * Reads a "capture" or "captureNotImportant" message.
+     *
+     * @throws IllegalArgumentException for an invalid projection or window policy
+     */
+    public static CaptureRequest fromJson(JSONObject json, boolean includeNotImportant) {
+        int timeBudgetMillis = json.optInt("timeBudgetMs", 0);
+        // A node limit alone asks for the top of the tree, so only time-budgeted captures go on by default
+        return new CaptureRequest(includeNotImportant, json.optBoolean("visibleOnly", false),
+                Projection.parse(json.opt("projection")), json.optInt("maxDepth", 0), json.optInt("maxNodes", 0),
+                timeBudgetMillis, json.optBoolean("autoContinue", timeBudgetMillis > 0),
+                WindowPolicy.parse(json.optJSONObject("windows")));
+    }
+
+    public static CaptureRequest fromIntent(Intent intent) {
+        return new CaptureRequest(
+                intent.getBooleanExtra("includeNotImportant", ACTION_NOT_IMPORTANT.equalsIgnoreCase(intent.getAction())),
+                intent.getBooleanExtra("visibleOnly", false),
+                Projection.of(intent.getIntExtra("projection", Projection.FULL.getFields())),
+                intent.getIntExtra("maxDepth", 0), intent.getIntExtra("maxNodes", 0),
+                intent.getIntExtra("timeBudgetMs", 0), intent.getBooleanExtra("autoContinue", false),
+                windowPolicyFrom(intent));
+    }
+
+    private static WindowPolicy windowPolicyFrom(Intent intent) {
+        String json = intent.getStringExtra("windows");
+        if (json == null) {
+            return WindowPolicy.DEFAULT;
+        }
+        try {
+            return WindowPolicy.parse(new JSONObject(json));
+        } catch (JSONException | IllegalArgumentException e) {
+            // Checked when the request came in, so this does not happen
+            Log.e(LOG_TAG, "Invalid window policy " + json + ": " + e.getMessage());
+            return WindowPolicy.DEFAULT;
+        }
+    }
+
+    /** The broadcast that starts this capture in {@link AccessibilityInspector}. */
+    public Intent toIntent() {
+        Intent intent = new Intent("com.jwlilly.accessibilityinspector");
+        intent.setAction(includeNotImportant ? ACTION_NOT_IMPORTANT : ACTION);
+        intent.putExtra("includeNotImportant", includeNotImportant);
+        intent.putExtra("visibleOnly", visibleOnly);
+        intent.putExtra("projection", projection.getFields());
+        intent.putExtra("maxDepth", maxDepth);
+        intent.putExtra("maxNodes", maxNodes);
+        intent.putExtra("timeBudgetMs", timeBudgetMillis);
+        intent.putExtra("autoContinue", autoContinue);
+        intent.putExtra("windows", windowPolicy.toJson().toString());
+        return intent;
+    }
+
+    public boolean includesNotImportant() {
+        return includeNotImportant;
+    }
+
+    public boolean isVisibleOnly() {
+        return visibleOnly;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /** Levels below each window to capture, zero for no limit. */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Nodes to capture in all, zero for no limit. */
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    /** How long one pass over the tree may take before it yields, zero for no limit. */
+    public int getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+
+    /**
+     * Whether the parts a budget left out are captured and sent on their own after yielding to the
+     * main looper, rather than when the client sends the continuation token.
+     */
+    public boolean isAutoContinue() {
+        return autoContinue;
+    }
+
+    public WindowPolicy getWindowPolicy() {
+        return windowPolicy;
+    }
+
+    /**
+     * This request with only the options that change how a window is written, for
+     * {@link WindowTreeCache}: budgets and the window policy decide which windows and how much of
+     * them get written, not what a fully written window looks like.
+     */
+    public CaptureRequest windowOptions() {
+        return new CaptureRequest(includeNotImportant, visibleOnly, projection, maxDepth, 0, 0, false,
+                WindowPolicy.DEFAULT);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CaptureRequest)) {
+            return false;
+        }
+        CaptureRequest other = (CaptureRequest) o;
+        return includeNotImportant == other.includeNotImportant
+                && visibleOnly == other.visibleOnly
+                && projection.getFields() == other.projection.getFields()
+                && maxDepth == other.maxDepth
+                && maxNodes == other.maxNodes
+                && timeBudgetMillis == other.timeBudgetMillis
+                && autoContinue == other.autoContinue
+                && windowPolicy.equals(other.windowPolicy);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(includeNotImportant, visibleOnly, projection.getFields(), maxDepth, maxNodes,
+                timeBudgetMillis, autoContinue, windowPolicy);
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureRequest{includeNotImportant=" + includeNotImportant + ", visibleOnly=" + visibleOnly
+                + ", projection=" + projection.getName() + ", maxDepth=" + maxDepth + ", maxNodes=" + maxNodes
+                + ", timeBudgetMs=" + timeBudgetMillis + ", autoContinue=" + autoContinue
+                + ", windows=" + windowPolicy.toJson() + "}";
+    }
+}
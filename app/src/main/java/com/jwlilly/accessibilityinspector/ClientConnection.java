@@ -0,0 +1,383 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.koushikdutta.async.http.WebSocket;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * One connected client and its bounded send queue.
+ *
+ * <p>Messages are written to the socket only while AndroidAsync is not already buffering for it,
+ * so a slow host stalls its own queue rather than delivery to every client. What happens to a
+ * message when the queue is over its caps depends on its type, see {@link #policyFor(String)}.
+ *
+ * <p>Clients that opt into compression get messages above a size threshold as a binary frame:
+ * <pre>
+ * frame := "A11Z" content:u8 originalLength:varint zlib-stream
+ * </pre>
+ * where content is {@link #CONTENT_JSON} for JSON text or {@link #CONTENT_BINARY_TREE} for a
+ * {@link BinaryTreeEncoder} frame.
+ */
+public class ClientConnection {
+    private static final String LOG_TAG = "ClientConnection";
+
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 64;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 8L * 1024 * 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 16 * 1024;
+
+    public static final byte[] COMPRESSED_MAGIC = {'A', '1', '1', 'Z'};
+    static final int CONTENT_JSON = 0;
+    static final int CONTENT_BINARY_TREE = 1;
+
+    /** How a message may be treated when the client falls behind. */
+    enum DeliveryPolicy {
+        /** Never dropped, even past the queue caps (results of client requests). */
+        RELIABLE,
+        /** A newer message of the same type replaces one that has not been sent yet. */
+        COALESCE,
+        /** Dropped, and counted, when the queue is over its caps. */
+        DROPPABLE
+    }
+
+    /** Whether stableTree messages are sent in full or as patches, see {@link StableTreeHistory}. */
+    enum TreeMode {
+        FULL,
+        DELTA
+    }
+
+    /** Wire format for tree messages, chosen by the client in its "hello" message. */
+    enum Encoding {
+        JSON,
+        BINARY
+    }
+
+    private final WebSocket webSocket;
+    private final StableTreeHistory stableTrees;
+    private final ArrayDeque<OutboundMessage> pending = new ArrayDeque<>();
+    private volatile Encoding encoding = Encoding.JSON;
+    private volatile TreeMode treeMode = TreeMode.FULL;
+    private volatile long ackedGeneration = -1;
+    private volatile boolean compression = false;
+    private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    // Only touched on the server thread, so they are reused for every compressed message
+    private Deflater deflater;
+    private byte[] deflateChunk;
+    private BinaryTreeEncoder.ByteSink compressedFrame;
+    private int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    private long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private long queuedBytes = 0;
+    private boolean behind = false;
+    private boolean pumpScheduled = false;
+    private long droppedMessages = 0;
+    private long coalescedMessages = 0;
+
+    public ClientConnection(WebSocket webSocket, StableTreeHistory stableTrees) {
+        this.webSocket = webSocket;
+        this.stableTrees = stableTrees;
+        webSocket.setWriteableCallback(this::schedulePump);
+    }
+
+    public WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    static DeliveryPolicy policyFor(String type) {
+        switch (type) {
+            case "stableTree":
+                return DeliveryPolicy.COALESCE;
+            case "accessibilityEvent":
+            case "announcement":
+                return DeliveryPolicy.DROPPABLE;
+            default:
+                return DeliveryPolicy.RELIABLE;
+        }
+    }
+
+    /** Applies the settings from a client "hello" message and describes the result. */
+    public synchronized void configure(JSONObject settings, JSONObject response) throws JSONException {
+        if (settings.has("encoding")) {
+            String requested = settings.getString("encoding");
+            if (requested.equalsIgnoreCase("binary")) {
+                encoding = Encoding.BINARY;
+            } else if (requested.equalsIgnoreCase("json")) {
+                encoding = Encoding.JSON;
+            } else {
+                response.put("warning", "Unknown encoding '" + requested + "', keeping " + encoding.name().toLowerCase());
+            }
+        }
+        if (settings.has("treeMode")) {
+            String requested = settings.getString("treeMode");
+            if (requested.equalsIgnoreCase("delta")) {
+                treeMode = TreeMode.DELTA;
+            } else if (requested.equalsIgnoreCase("full")) {
+                treeMode = TreeMode.FULL;
+            } else {
+                response.put("warning", "Unknown treeMode '" + requested + "', keeping " + treeMode.name().toLowerCase());
+            }
+        }
+        if (settings.has("compression")) {
+            String requested = settings.getString("compression");
+            if (requested.equalsIgnoreCase("deflate")) {
+                compression = true;
+            } else if (requested.equalsIgnoreCase("none")) {
+                compression = false;
+            } else {
+                response.put("warning", "Unknown compression '" + requested + "', keeping " + (compression ? "deflate" : "none"));
+            }
+        }
+        if (settings.has("compressionThreshold")) {
+            compressionThreshold = Math.max(0, settings.getInt("compressionThreshold"));
+        }
+        queuedBytes = 0;
+        for (OutboundMessage queued : pending) {
+            if (!"backpressure".equals(queued.getType())) {
+                queuedBytes += sizeOf(queued);
+            }
+        }
+        if (settings.has("maxQueuedMessages")) {
+            maxQueuedMessages = Math.max(1, settings.getInt("maxQueuedMessages"));
+        }
+        if (settings.has("maxQueuedBytes")) {
+            maxQueuedBytes = Math.max(1024, settings.getLong("maxQueuedBytes"));
+        }
+        response.put("encoding", encoding.name().toLowerCase());
+        response.put("binaryVersion", BinaryTreeEncoder.VERSION);
+        response.put("treeMode", treeMode.name().toLowerCase());
+        response.put("compression", compression ? "deflate" : "none");
+        response.put("compressionThreshold", compressionThreshold);
+        response.put("maxQueuedMessages", maxQueuedMessages);
+        response.put("maxQueuedBytes", maxQueuedBytes);
+    }
+
+    private long sizeOf(OutboundMessage message) {
+        return message.getSizeBytes(encoding == Encoding.BINARY);
+    }
+
+    /**
+     * Records that the client has applied the stableTree of the given generation, so later trees
+     * can be sent as a patch against it. Returns false if that generation is no longer known.
+     */
+    public boolean acknowledge(long generation) {
+        if (!stableTrees.contains(generation)) {
+            return false;
+        }
+        ackedGeneration = generation;
+        return true;
+    }
+
+    /** Forgets the acknowledged tree and queues the newest stableTree in full. */
+    public boolean resync() {
+        ackedGeneration = -1;
+        OutboundMessage latest = stableTrees.latest();
+        if (latest == null) {
+            return false;
+        }
+        enqueue(latest);
+        return true;
+    }
+
+    /** Queues a message for this client according to its delivery policy. */
+    public void enqueue(OutboundMessage message) {
+        synchronized (this) {
+            DeliveryPolicy policy = policyFor(message.getType());
+            if (policy == DeliveryPolicy.COALESCE && replacePending(message)) {
+                coalescedMessages++;
+                InspectorMetrics.increment("client.coalesced");
+            } else if (policy == DeliveryPolicy.DROPPABLE && isOverCaps(message)) {
+                droppedMessages++;
+                InspectorMetrics.increment("client.dropped");
+                fallBehind();
+            } else {
+                if (isOverCaps(message)) {
+                    evictDroppable(message);
+                }
+                pending.addLast(message);
+                queuedBytes += sizeOf(message);
+                if (isOverCaps(null)) {
+                    fallBehind();
+                }
+            }
+        }
+        schedulePump();
+    }
+
+    private boolean replacePending(OutboundMessage message) {
+        Iterator<OutboundMessage> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            OutboundMessage queued = iterator.next();
+            if (queued.getType().equals(message.getType())) {
+                queuedBytes -= sizeOf(queued);
+                iterator.remove();
+                // Keep the newest payload but deliver it after whatever was queued before
+                pending.addLast(message);
+                queuedBytes += sizeOf(message);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isOverCaps(OutboundMessage incoming) {
+        long incomingBytes = incoming != null ? sizeOf(incoming) : 0;
+        int incomingCount = incoming != null ? 1 : 0;
+        return pending.size() + incomingCount > maxQueuedMessages
+                || queuedBytes + incomingBytes > maxQueuedBytes;
+    }
+
+    // Make room for a message that must not be dropped by discarding queued droppable ones
+    private void evictDroppable(OutboundMessage incoming) {
+        Iterator<OutboundMessage> iterator = pending.iterator();
+        while (iterator.hasNext() && isOverCaps(incoming)) {
+            OutboundMessage queued = iterator.next();
+            if (policyFor(queued.getType()) == DeliveryPolicy.DROPPABLE) {
+                queuedBytes -= sizeOf(queued);
+                iterator.remove();
+                droppedMessages++;
+                InspectorMetrics.increment("client.dropped");
+            }
+        }
+        fallBehind();
+    }
+
+    private void fallBehind() {
+        if (behind) {
+            return;
+        }
+        behind = true;
+        InspectorMetrics.increment("client.backpressureEpisodes");
+        Log.w(LOG_TAG, "Client fell behind: " + pending.size() + " messages, " + queuedBytes + " bytes queued");
+        // Status messages jump the queue so the client learns about the backlog right away
+        pending.addFirst(backpressureMessage("behind"));
+    }
+
+    private OutboundMessage backpressureMessage(String state) {
+        try {
+            JSONObject status = new JSONObject();
+            status.put("type", "backpressure");
+            status.put("state", state);
+            status.put("queuedMessages", pending.size());
+            status.put("queuedBytes", queuedBytes);
+            status.put("droppedMessages", droppedMessages);
+            status.put("coalescedMessages", coalescedMessages);
+            return new OutboundMessage("backpressure", status.toString());
+        } catch (JSONException e) {
+            return new OutboundMessage("backpressure", "{\"type\":\"backpressure\",\"state\":\"" + state + "\"}");
+        }
+    }
+
+    private void schedulePump() {
+        synchronized (this) {
+            if (pumpScheduled) {
+                return;
+            }
+            pumpScheduled = true;
+        }
+        // All writes happen on the socket's server thread
+        webSocket.getServer().post(this::pump);
+    }
+
+    private void pump() {
+        while (true) {
+            OutboundMessage next;
+            synchronized (this) {
+                if (!webSocket.isOpen() || webSocket.isBuffering() || pending.isEmpty()) {
+                    pumpScheduled = false;
+                    return;
+                }
+                next = pending.pollFirst();
+                if (!"backpressure".equals(next.getType())) {
+                    queuedBytes -= sizeOf(next);
+                }
+                if (behind && pending.isEmpty()) {
+                    behind = false;
+                    pending.addLast(backpressureMessage("recovered"));
+                }
+            }
+            send(next);
+            long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - next.getEnqueuedAtNanos());
+            InspectorMetrics.increment("client.sent");
+            InspectorMetrics.add("client.latencyTotalMicros", latencyMicros);
+            InspectorMetrics.max("client.latencyMaxMicros", latencyMicros);
+        }
+    }
+
+    private void send(OutboundMessage message) {
+        if (treeMode == TreeMode.DELTA && message.getType().equals("stableTree")) {
+            // Decided at send time so the patch is against whatever the client acknowledged last
+            OutboundMessage patch = stableTrees.deltaFor(ackedGeneration, message);
+            if (patch != null) {
+                message = patch;
+            }
+        }
+        if (encoding == Encoding.BINARY && message.hasTree()) {
+            byte[] frame = message.getBinaryPayload();
+            if (frame.length > 0) {
+                if (shouldCompress(frame.length)) {
+                    sendCompressed(frame, CONTENT_BINARY_TREE);
+                } else {
+                    webSocket.send(frame);
+                }
+                return;
+            }
+        }
+        byte[] json = message.getUtf8Payload();
+        if (shouldCompress(json.length)) {
+            sendCompressed(json, CONTENT_JSON);
+        } else {
+            webSocket.send(message.getPayload());
+        }
+    }
+
+    private boolean shouldCompress(int length) {
+        return compression && length >= compressionThreshold;
+    }
+
+    // The websocket copies the payload into its own frame, so the output buffer is sent as is
+    private void sendCompressed(byte[] content, int contentType) {
+        long cpuStart = Debug.threadCpuTimeNanos();
+        if (deflater == null) {
+            // Transfer time dominates, but the device CPU is shared with the app under test
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflateChunk = new byte[32 * 1024];
+            compressedFrame = new BinaryTreeEncoder.ByteSink(content.length / 4);
+        }
+        deflater.reset();
+        deflater.setInput(content);
+        deflater.finish();
+        compressedFrame.reset();
+        compressedFrame.writeBytes(COMPRESSED_MAGIC, COMPRESSED_MAGIC.length);
+        compressedFrame.writeByte(contentType);
+        compressedFrame.writeVarint(content.length);
+        while (!deflater.finished()) {
+            int written = deflater.deflate(deflateChunk);
+            compressedFrame.writeBytes(deflateChunk, written);
+        }
+        InspectorMetrics.add("compression.cpuMicros", (Debug.threadCpuTimeNanos() - cpuStart) / 1000);
+        InspectorMetrics.increment("compression.frames");
+        InspectorMetrics.add("compression.inputBytes", content.length);
+        InspectorMetrics.add("compression.outputBytes", compressedFrame.size);
+        webSocket.send(compressedFrame.buffer, 0, compressedFrame.size);
+    }
+
+    /** Releases anything still queued once the socket has closed. */
+    public synchronized void close() {
+        pending.clear();
+        queuedBytes = 0;
+        // The deflater belongs to the server thread, so release its native memory there
+        webSocket.getServer().post(() -> {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        });
+    }
+}
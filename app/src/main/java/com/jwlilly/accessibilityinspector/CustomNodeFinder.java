@@ -1,13 +1,15 @@
 package com.jwlilly.accessibilityinspector;
 
+import android.graphics.Rect;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.view.accessibility.AccessibilityWindowInfo;
 
 import org.json.JSONObject;
-import org.json.JSONException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Custom recursive implementations of node finding to compare with Android's native methods
@@ -15,268 +17,148 @@ import java.util.List;
 public class CustomNodeFinder {
     
     /**
-     * Recursively find all nodes with exact text match (case-sensitive) in either text or contentDescription
+     * Find all nodes the query matches, in one pass over the tree. The query is compiled before
+     * the first node is visited, so each node only costs the getters the query needs.
      */
-    public static List<AccessibilityNodeInfo> findNodesByText(AccessibilityNodeInfo root, String searchText) {
+    public static List<AccessibilityNodeInfo> findNodes(AccessibilityNodeInfo root, NodeQuery query) {
         List<AccessibilityNodeInfo> results = new ArrayList<>();
-        if (root == null || searchText == null) {
-            return results;
-        }
-        
-        findNodesByTextRecursive(root, searchText, results);
+        findNodes(root, query, FindOptions.ALL, results);
         return results;
     }
     
-    private static void findNodesByTextRecursive(AccessibilityNodeInfo node, String searchText, List<AccessibilityNodeInfo> results) {
-        if (node == null) return;
-        
-        // Check text field (exact match, case-sensitive)
-        CharSequence nodeText = node.getText();
-        if (nodeText != null) {
-            String textStr = nodeText.toString();
-            if (textStr.equals(searchText)) {
-                results.add(node);
-            }
-        }
-        
-        // Check content description (exact match, case-sensitive)
-        CharSequence contentDesc = node.getContentDescription();
-        if (contentDesc != null) {
-            String descStr = contentDesc.toString();
-            if (descStr.equals(searchText)) {
-                // Only add if not already added from text match
-                if (!results.contains(node)) {
-                    results.add(node);
-                }
-            }
+    /**
+     * Adds the nodes under {@code root}, itself included, that the query matches and the options
+     * accept to {@code results}. The walk stops as soon as {@code results} holds the limit, and
+     * skips the subtrees of nodes lying outside the options' bounds.
+     */
+    public static void findNodes(AccessibilityNodeInfo root, NodeQuery query, FindOptions options, List<AccessibilityNodeInfo> results) {
+        if (root == null || query == null || options.isLimitReached(results.size())) {
+            return;
         }
         
-        // Recursively search children
-        int childCount = node.getChildCount();
-        for (int i = 0; i < childCount; i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                findNodesByTextRecursive(child, searchText, results);
-            }
+        Rect bounds = new Rect();
+        if (options.isBreadthFirst()) {
+            findNodesBreadthFirst(root, query, options, bounds, results);
+        } else {
+            findNodesRecursive(root, query, options, bounds, results);
         }
     }
     
-    /**
-     * Recursively find all nodes matching regex pattern in either text or contentDescription
-     */
-    public static List<AccessibilityNodeInfo> findNodesByRegex(AccessibilityNodeInfo root, String regexPattern) {
-        List<AccessibilityNodeInfo> results = new ArrayList<>();
-        if (root == null || regexPattern == null) {
-            return results;
-        }
-        
-        findNodesByRegexRecursive(root, regexPattern, results);
-        return results;
+    /** The first node under {@code root} the query matches, in document order, or null. */
+    public static AccessibilityNodeInfo findFirst(AccessibilityNodeInfo root, NodeQuery query) {
+        List<AccessibilityNodeInfo> results = new ArrayList<>(1);
+        findNodes(root, query, FindOptions.FIRST, results);
+        return results.isEmpty() ? null : results.get(0);
     }
     
-    private static void findNodesByRegexRecursive(AccessibilityNodeInfo node, String regexPattern, List<AccessibilityNodeInfo> results) {
-        if (node == null) return;
-        
-        try {
-            // Check text field
-            CharSequence nodeText = node.getText();
-            if (nodeText != null) {
-                String textStr = nodeText.toString();
-                if (textStr.matches(regexPattern)) {
-                    results.add(node);
-                }
-            }
-            
-            // Check content description
-            CharSequence contentDesc = node.getContentDescription();
-            if (contentDesc != null) {
-                String descStr = contentDesc.toString();
-                if (descStr.matches(regexPattern)) {
-                    // Only add if not already added from text match
-                    if (!results.contains(node)) {
-                        results.add(node);
-                    }
-                }
+    // Returns false once the limit is reached, to stop the walk
+    private static boolean findNodesRecursive(AccessibilityNodeInfo node, NodeQuery query, FindOptions options,
+                                              Rect bounds, List<AccessibilityNodeInfo> results) {
+        if (!options.mayContain(node, bounds)) {
+            return true;
+        }
+        // Each node is visited once, so it can only be added once
+        if (query.matches(node) && options.accepts(node, bounds)) {
+            results.add(node);
+            if (options.isLimitReached(results.size())) {
+                return false;
             }
-        } catch (Exception e) {
-            // Invalid regex - skip this node but continue searching
         }
         
         // Recursively search children
         int childCount = node.getChildCount();
         for (int i = 0; i < childCount; i++) {
             AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                findNodesByRegexRecursive(child, regexPattern, results);
+            if (child != null && !findNodesRecursive(child, query, options, bounds, results)) {
+                return false;
             }
         }
+        return true;
     }
     
-    /**
-     * Recursively find all nodes with the specified viewId
-     */
-    public static List<AccessibilityNodeInfo> findNodesByViewId(AccessibilityNodeInfo root, String viewId) {
-        List<AccessibilityNodeInfo> results = new ArrayList<>();
-        if (root == null || viewId == null) {
-            return results;
-        }
-        
-        findNodesByViewIdRecursive(root, viewId, results);
-        return results;
-    }
-    
-    private static void findNodesByViewIdRecursive(AccessibilityNodeInfo node, String viewId, List<AccessibilityNodeInfo> results) {
-        if (node == null) return;
-        
-        // Check viewId
-        String nodeViewId = node.getViewIdResourceName();
-        if (nodeViewId != null && nodeViewId.equals(viewId)) {
-            results.add(node);
-        }
-        
-        // Recursively search children
-        int childCount = node.getChildCount();
-        for (int i = 0; i < childCount; i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                findNodesByViewIdRecursive(child, viewId, results);
+    private static void findNodesBreadthFirst(AccessibilityNodeInfo root, NodeQuery query, FindOptions options,
+                                              Rect bounds, List<AccessibilityNodeInfo> results) {
+        ArrayDeque<AccessibilityNodeInfo> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            AccessibilityNodeInfo node = queue.poll();
+            if (!options.mayContain(node, bounds)) {
+                continue;
+            }
+            if (query.matches(node) && options.accepts(node, bounds)) {
+                results.add(node);
+                if (options.isLimitReached(results.size())) {
+                    return;
+                }
+            }
+            int childCount = node.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child != null) {
+                    queue.add(child);
+                }
             }
         }
     }
     
     /**
-     * Recursively find all nodes matching specified properties
-     * Example properties: {"text": "Submit", "isClickable": true, "viewIdResourceName": "com.Slack:id/button"}
+     * Adds the nodes under {@code root} that each selector of the group matches to its list in
+     * {@code results}, from {@link Selector.Group#newResults()}. One traversal answers every
+     * selector, however many there are.
      */
-    public static List<AccessibilityNodeInfo> findNodesByProps(AccessibilityNodeInfo root, JSONObject properties) {
-        List<AccessibilityNodeInfo> results = new ArrayList<>();
-        if (root == null || properties == null) {
-            return results;
+    public static void query(AccessibilityNodeInfo root, Selector.Group group, Map<String, List<AccessibilityNodeInfo>> results) {
+        if (root == null) {
+            return;
         }
         
-        findNodesByPropsRecursive(root, properties, results);
-        return results;
+        queryRecursive(group.root(root), group, results);
     }
     
-    private static void findNodesByPropsRecursive(AccessibilityNodeInfo node, JSONObject properties, List<AccessibilityNodeInfo> results) {
-        if (node == null) return;
-        
-        boolean matches = true;
-        int propertyCount = 0;
-        
-        // Check each property requirement
-        java.util.Iterator<String> keys = properties.keys();
-        while (keys.hasNext()) {
-            String property = keys.next();
-            propertyCount++;
-            try {
-                Object expectedValue = properties.get(property);
-                
-                
-                if (!nodeMatchesProperty(node, property, expectedValue)) {
-                    matches = false;
-                    break;
-                }
-            } catch (JSONException e) {
-                matches = false;
-                break;
-            }
-        }
+    private static void queryRecursive(Selector.Frame frame, Selector.Group group, Map<String, List<AccessibilityNodeInfo>> results) {
+        group.collect(frame, results);
         
-        // Don't match if no properties were specified
-        if (propertyCount == 0) {
-            matches = false;
-        }
-        
-        if (matches) {
-            results.add(node);
-        }
-        
-        // Recursively search children
-        int childCount = node.getChildCount();
+        // Children know their earlier siblings, for the sibling combinators
+        Selector.Frame previous = null;
+        int childCount = frame.node.getChildCount();
         for (int i = 0; i < childCount; i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
+            AccessibilityNodeInfo child = frame.node.getChild(i);
             if (child != null) {
-                findNodesByPropsRecursive(child, properties, results);
+                Selector.Frame childFrame = group.child(child, frame, previous, i);
+                queryRecursive(childFrame, group, results);
+                previous = childFrame;
             }
         }
     }
     
     /**
-     * Check if a node matches a specific property requirement
+     * Recursively find all nodes with exact text match (case-sensitive) in either text or contentDescription
      */
-    private static boolean nodeMatchesProperty(AccessibilityNodeInfo node, String property, Object expectedValue) {
-        try {
-            
-            switch (property.toLowerCase()) {
-                case "classname":
-                    return matchesStringValue(node.getClassName(), expectedValue);
-                case "text":
-                    return matchesStringValue(node.getText(), expectedValue);
-                case "contentdescription":
-                    return matchesStringValue(node.getContentDescription(), expectedValue);
-                case "viewid":
-                case "viewidresourcename":
-                case "resourceid":
-                    return matchesStringValue(node.getViewIdResourceName(), expectedValue);
-                case "isclickable":
-                    return matchesBooleanValue(node.isClickable(), expectedValue);
-                case "isenabled":
-                    return matchesBooleanValue(node.isEnabled(), expectedValue);
-                case "isfocusable":
-                    return matchesBooleanValue(node.isFocusable(), expectedValue);
-                case "isfocused":
-                    return matchesBooleanValue(node.isFocused(), expectedValue);
-                case "isscrollable":
-                    return matchesBooleanValue(node.isScrollable(), expectedValue);
-                case "ischeckable":
-                    return matchesBooleanValue(node.isCheckable(), expectedValue);
-                case "ischecked":
-                    return matchesBooleanValue(node.isChecked(), expectedValue);
-                case "isselected":
-                    return matchesBooleanValue(node.isSelected(), expectedValue);
-                case "childcount":
-                    return matchesIntValue(node.getChildCount(), expectedValue);
-                default:
-                    // Unknown property - ignore (return true to continue matching other properties)
-                    return true;
-            }
-        } catch (Exception e) {
-            // Error checking property - assume no match
-            return false;
-        }
+    public static List<AccessibilityNodeInfo> findNodesByText(AccessibilityNodeInfo root, String searchText) {
+        return searchText == null ? new ArrayList<>() : findNodes(root, NodeQuery.text(searchText));
     }
     
-    private static boolean matchesStringValue(CharSequence nodeValue, Object expectedValue) {
-        if (nodeValue == null && expectedValue == null) return true;
-        if (nodeValue == null || expectedValue == null) return false;
-        
-        String nodeStr = nodeValue.toString();
-        String expectedStr = expectedValue.toString();
-        
-        return nodeStr.equals(expectedStr);
+    /**
+     * Recursively find all nodes matching regex pattern in either text or contentDescription
+     *
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public static List<AccessibilityNodeInfo> findNodesByRegex(AccessibilityNodeInfo root, String regexPattern) {
+        return regexPattern == null ? new ArrayList<>() : findNodes(root, NodeQuery.regex(regexPattern));
     }
     
-    private static boolean matchesBooleanValue(boolean nodeValue, Object expectedValue) {
-        if (expectedValue instanceof Boolean) {
-            return nodeValue == (Boolean) expectedValue;
-        } else if (expectedValue instanceof String) {
-            return nodeValue == Boolean.parseBoolean((String) expectedValue);
-        }
-        return false;
+    /**
+     * Recursively find all nodes with the specified viewId
+     */
+    public static List<AccessibilityNodeInfo> findNodesByViewId(AccessibilityNodeInfo root, String viewId) {
+        return viewId == null ? new ArrayList<>() : findNodes(root, NodeQuery.viewId(viewId));
     }
     
-    private static boolean matchesIntValue(int nodeValue, Object expectedValue) {
-        if (expectedValue instanceof Integer) {
-            return nodeValue == (Integer) expectedValue;
-        } else if (expectedValue instanceof String) {
-            try {
-                return nodeValue == Integer.parseInt((String) expectedValue);
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-        return false;
+    /**
+     * Recursively find all nodes matching specified properties
+     * Example properties: {"text": "Submit", "isClickable": true, "viewIdResourceName": "com.Slack:id/button"}
+     */
+    public static List<AccessibilityNodeInfo> findNodesByProps(AccessibilityNodeInfo root, JSONObject properties) {
+        return properties == null ? new ArrayList<>() : findNodes(root, NodeQuery.props(properties));
     }
 
     /**
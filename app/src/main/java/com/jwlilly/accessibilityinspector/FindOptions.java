@@ -0,0 +1,143 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Where a find looks and when it stops: at most {@code limit} matches, in one window, inside
+ * some bounds or below some node, in depth-first or breadth-first order. A find stops walking the
+ * tree as soon as it has its limit, and does not walk windows and subtrees that lie entirely
+ * outside the bounds.
+ */
+public final class FindOptions {
+    /** Every match in every window, from the stable tree's index when it is current. */
+    public static final FindOptions ALL = new FindOptions(0, -1, null, null, false, false);
+    /** The first match in document order of the live tree, for finding a node to act on. */
+    public static final FindOptions FIRST = new FindOptions(1, -1, null, null, false, true);
+
+    private final int limit;
+    private final int windowId;
+    private final Rect withinBounds;
+    private final String scopeNodeId;
+    private final boolean breadthFirst;
+    private final boolean fresh;
+
+    public FindOptions(int limit, int windowId, Rect withinBounds, String scopeNodeId, boolean breadthFirst,
+                       boolean fresh) {
+        this.limit = Math.max(0, limit);
+        this.windowId = windowId;
+        this.withinBounds = withinBounds;
+        this.scopeNodeId = scopeNodeId;
+        this.breadthFirst = breadthFirst;
+        this.fresh = fresh;
+    }
+
+    /**
+     * Reads the options of a find message: "limit", "windowId", "withinBounds" as
+     * {"left","top","right","bottom"} or [left,top,right,bottom], "scopeNodeId", "order" ("dfs" or
+     * "bfs") and "fresh".
+     *
+     * @throws IllegalArgumentException for malformed bounds or an unknown order
+     */
+    public static FindOptions fromJson(JSONObject json) {
+        String order = json.optString("order", "dfs");
+        if (!order.equalsIgnoreCase("dfs") && !order.equalsIgnoreCase("bfs")) {
+            throw new IllegalArgumentException("Unknown order: " + order + " (expected dfs or bfs)");
+        }
+        String scopeNodeId = json.optString("scopeNodeId", "");
+        return new FindOptions(json.optInt("limit", 0), json.optInt("windowId", -1), bounds(json.opt("withinBounds")),
+                scopeNodeId.isEmpty() ? null : scopeNodeId, order.equalsIgnoreCase("bfs"),
+                json.optBoolean("fresh", false));
+    }
+
+    private static Rect bounds(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return null;
+        }
+        if (value instanceof JSONArray && ((JSONArray) value).length() == 4) {
+            JSONArray array = (JSONArray) value;
+            return new Rect(array.optInt(0), array.optInt(1), array.optInt(2), array.optInt(3));
+        }
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            if (object.has("left") && object.has("top") && object.has("right") && object.has("bottom")) {
+                return new Rect(object.optInt("left"), object.optInt("top"), object.optInt("right"),
+                        object.optInt("bottom"));
+            }
+        }
+        throw new IllegalArgumentException("withinBounds is {\"left\",\"top\",\"right\",\"bottom\"} or [left,top,right,bottom]");
+    }
+
+    /** Matches to stop at, zero for all of them. */
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isLimitReached(int matches) {
+        return limit > 0 && matches >= limit;
+    }
+
+    /** The window to search, or -1 for all of them. */
+    public int getWindowId() {
+        return windowId;
+    }
+
+    /** The node whose subtree, itself included, is searched, or null for whole windows. */
+    public String getScopeNodeId() {
+        return scopeNodeId;
+    }
+
+    public boolean isBreadthFirst() {
+        return breadthFirst;
+    }
+
+    /** Whether the live tree has to be searched even if the stable tree's index is current. */
+    public boolean isFresh() {
+        return fresh;
+    }
+
+    /** Whether the window may hold matches: it is the one asked for and overlaps the bounds. */
+    public boolean mayContain(AccessibilityWindowInfo window, Rect scratch) {
+        if (windowId != -1 && window.getId() != windowId) {
+            return false;
+        }
+        if (withinBounds == null) {
+            return true;
+        }
+        window.getBoundsInScreen(scratch);
+        return Rect.intersects(scratch, withinBounds);
+    }
+
+    /**
+     * Whether the subtree of a node may hold matches. Nodes without a size are kept, as their
+     * children can still have one.
+     */
+    public boolean mayContain(AccessibilityNodeInfo node, Rect scratch) {
+        if (withinBounds == null) {
+            return true;
+        }
+        node.getBoundsInScreen(scratch);
+        return scratch.isEmpty() || Rect.intersects(scratch, withinBounds);
+    }
+
+    /** Whether a match counts: it is in the window asked for and entirely inside the bounds. */
+    public boolean accepts(AccessibilityNodeInfo node, Rect scratch) {
+        if (windowId != -1 && node.getWindowId() != windowId) {
+            return false;
+        }
+        if (withinBounds == null) {
+            return true;
+        }
+        node.getBoundsInScreen(scratch);
+        return withinBounds.contains(scratch);
+    }
+
+    /** Whether the options narrow a find at all beyond stopping at a limit. */
+    public boolean isScoped() {
+        return windowId != -1 || withinBounds != null || scopeNodeId != null;
+    }
+}
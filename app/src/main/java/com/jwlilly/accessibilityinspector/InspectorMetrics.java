@@ -0,0 +1,85 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters for the transport and capture pipeline, reported to clients through the
+ * "metrics" command. Counter names are dotted ("bus.enqueued") and grouped by prefix in the report.
+ */
+public class InspectorMetrics {
+
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private InspectorMetrics() {}
+
+    private static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, key -> new AtomicLong());
+        }
+        return counter;
+    }
+
+    public static void increment(String name) {
+        counter(name).incrementAndGet();
+    }
+
+    public static void add(String name, long delta) {
+        counter(name).addAndGet(delta);
+    }
+
+    /** Sets a gauge-style value that reflects the current state rather than a running total. */
+    public static void set(String name, long value) {
+        counter(name).set(value);
+    }
+
+    /** Keeps the largest value seen so far under the given name. */
+    public static void max(String name, long value) {
+        AtomicLong counter = counter(name);
+        long current = counter.get();
+        while (value > current && !counter.compareAndSet(current, value)) {
+            current = counter.get();
+        }
+    }
+
+    public static long get(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    public static void reset() {
+        counters.clear();
+    }
+
+    /** Builds the report sent for the "metrics" command, grouping counters by their prefix. */
+    public static JSONObject toJson() throws JSONException {
+        Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().get());
+        }
+
+        JSONObject report = new JSONObject();
+        for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+            String name = entry.getKey();
+            int dot = name.indexOf('.');
+            if (dot < 0) {
+                report.put(name, entry.getValue());
+                continue;
+            }
+            String group = name.substring(0, dot);
+            JSONObject groupJson = report.optJSONObject(group);
+            if (groupJson == null) {
+                groupJson = new JSONObject();
+                report.put(group, groupJson);
+            }
+            groupJson.put(name.substring(dot + 1), entry.getValue());
+        }
+        return report;
+    }
+}
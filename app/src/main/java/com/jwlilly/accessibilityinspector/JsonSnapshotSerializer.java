@@ -0,0 +1,125 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+import java.util.Iterator;
+
+/**
+ * Writes a snapshot as the JSON tree clients have always received, straight to text without
+ * building an intermediate JSONObject graph.
+ */
+public class JsonSnapshotSerializer implements SnapshotSerializer<String> {
+    private final boolean includeBounds;
+
+    public JsonSnapshotSerializer(boolean includeBounds) {
+        this.includeBounds = includeBounds;
+    }
+
+    @Override
+    public String serialize(TreeSnapshot snapshot, JSONObject header) throws JSONException {
+        JSONStringer writer = new JSONStringer();
+        writer.object();
+        if (header != null) {
+            Iterator<String> keys = header.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writer.key(key).value(header.get(key));
+            }
+        }
+        writeChildren(writer, snapshot, snapshot.getWindows());
+        writer.key(NodeHash.KEY).value(NodeHash.toHex(snapshot.getRootHash()));
+        writer.endObject();
+        return writer.toString();
+    }
+
+    /** The fields of one node without "children" and "hash", as used in tree patches. */
+    public JSONObject nodeFields(NodeSnapshot node) throws JSONException {
+        JSONStringer writer = new JSONStringer();
+        writer.object();
+        writeFields(writer, node);
+        writer.endObject();
+        return new JSONObject(writer.toString());
+    }
+
+    private void writeNode(JSONStringer writer, TreeSnapshot snapshot, int index) throws JSONException {
+        writer.object();
+        writeFields(writer, snapshot.getNode(index));
+        int[] children = snapshot.getChildren(index);
+        if (children.length > 0) {
+            writeChildren(writer, snapshot, children);
+        }
+        writer.key(NodeHash.KEY).value(NodeHash.toHex(snapshot.getHash(index)));
+        writer.endObject();
+    }
+
+    private void writeChildren(JSONStringer writer, TreeSnapshot snapshot, int[] children) throws JSONException {
+        writer.key("children").array();
+        for (int child : children) {
+            writeNode(writer, snapshot, child);
+        }
+        writer.endArray();
+    }
+
+    private void writeFields(JSONStringer writer, NodeSnapshot node) throws JSONException {
+        writer.key("id").value(node.getId());
+        if (node.getNodeId() != null) {
+            writer.key("nodeId").value(node.getNodeId());
+        }
+        if (node.getResourceId() != null) {
+            writer.key("resourceId").value(node.getResourceId());
+        }
+        writer.key("name").value(node.getRole());
+        writer.key("metadata").object();
+        if (node.isWindow()) {
+            writer.key("windowId").value(node.getWindowId());
+            writer.key("role").value(node.getRole());
+            if (node.getTitle() != null) {
+                writer.key("title").value(node.getTitle());
+            }
+        } else {
+            writer.key("hashCode").value(node.getId());
+            writer.key("role").value(node.getRole());
+            if (!node.isVisible()) {
+                writer.key("visibility").value("invisible");
+            }
+            if (node.getText() != null) {
+                writer.key("text").value(node.getText());
+            }
+            if (node.getContentDescription() != null) {
+                writer.key("content").value(node.getContentDescription());
+            }
+            writeProperties(writer, node);
+        }
+        if (includeBounds) {
+            writer.key("x1").value(node.getLeft());
+            writer.key("y1").value(node.getTop());
+            writer.key("x2").value(node.getRight());
+            writer.key("y2").value(node.getBottom());
+        }
+        writer.endObject();
+    }
+
+    private void writeProperties(JSONStringer writer, NodeSnapshot node) throws JSONException {
+        boolean disabled = !node.hasFlag(NodeSnapshot.FLAG_ENABLED);
+        if (!node.hasFlag(NodeSnapshot.FLAG_CLICKABLE) && !node.hasFlag(NodeSnapshot.FLAG_SCROLLABLE)
+                && !node.hasFlag(NodeSnapshot.FLAG_FOCUSED) && !disabled) {
+            return;
+        }
+        writer.key("properties").array();
+        if (node.hasFlag(NodeSnapshot.FLAG_CLICKABLE)) {
+            writer.value("clickable");
+        }
+        if (node.hasFlag(NodeSnapshot.FLAG_SCROLLABLE)) {
+            writer.value("scrollable");
+        }
+        if (node.hasFlag(NodeSnapshot.FLAG_FOCUSED)) {
+            writer.value("focused");
+        }
+        if (disabled) {
+            writer.value("disabled");
+        }
+        writer.endArray();
+    }
+}
@@ -0,0 +1,172 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-process queue between {@link AccessibilityInspector} and {@link SocketService}.
+ *
+ * <p>Both services run in the same process, so payloads are handed over directly instead of being
+ * put into an Intent extra and relayed through startService(), which cost a Binder round trip and
+ * a Parcel copy per message and failed for trees larger than the ~1 MB transaction limit.
+ * Messages are delivered to the consumer in order on a dedicated dispatch thread.
+ */
+public class MessageBus {
+    private static final String LOG_TAG = "MessageBus";
+    private static final int DEFAULT_CAPACITY = 256;
+    // Room beyond the capacity that only results of client requests may use
+    static final int RESULT_RESERVE = 64;
+
+    private static final MessageBus instance = new MessageBus(DEFAULT_CAPACITY);
+
+    /** Receives every message published on the bus, in publish order. */
+    public interface Consumer {
+        void onMessage(OutboundMessage message);
+    }
+
+    private final int capacity;
+    private final LinkedBlockingDeque<OutboundMessage> queue;
+    private volatile Consumer consumer;
+
+    MessageBus(int capacity) {
+        this.capacity = capacity;
+        queue = new LinkedBlockingDeque<>(capacity + RESULT_RESERVE);
+        Thread dispatchThread = new Thread(this::dispatchLoop, "A11yMessageBus");
+        dispatchThread.setDaemon(true);
+        dispatchThread.start();
+    }
+
+    public static MessageBus getInstance() {
+        return instance;
+    }
+
+    /** Registers the socket side of the bus. Pass null when the socket server shuts down. */
+    public void setConsumer(Consumer consumer) {
+        this.consumer = consumer;
+        if (consumer == null) {
+            int discarded = queue.size();
+            queue.clear();
+            InspectorMetrics.add("bus.dropped", discarded);
+            InspectorMetrics.set("bus.depth", 0);
+        }
+    }
+
+    /**
+     * Queues a payload for delivery. Never blocks the caller. When the queue is full the oldest
+     * pending unsolicited message, a stableTree or an event notification, is dropped, as a newer one
+     * supersedes it. Results of client requests are never dropped to make room, and may go past the
+     * capacity by {@link #RESULT_RESERVE}. Returns false if the message could not be queued.
+     */
+    public boolean publish(String type, String payload) {
+        if (payload == null) {
+            return false;
+        }
+        return publish(new OutboundMessage(type, payload));
+    }
+
+    /** Queues a tree message written as UTF-8 JSON; other encodings are only made if clients ask. */
+    public boolean publishTree(String type, byte[] treeJson) {
+        if (treeJson == null) {
+            return false;
+        }
+        return publish(new OutboundMessage(type, treeJson));
+    }
+
+    /** Queues a tree message no client asked for, which a full queue may drop like an event. */
+    public boolean publishUnsolicitedTree(String type, byte[] treeJson) {
+        if (treeJson == null) {
+            return false;
+        }
+        return publish(new OutboundMessage(type, treeJson).markUnsolicited());
+    }
+
+    /** Queues a snapshot message; it is only serialized for the encodings clients asked for. */
+    public boolean publishSnapshot(String type, TreeSnapshot snapshot, JSONObject header) {
+        if (snapshot == null) {
+            return false;
+        }
+        return publish(new OutboundMessage(type, snapshot, header));
+    }
+
+    public boolean publish(OutboundMessage message) {
+        if (consumer == null) {
+            // No socket server running, so there is nobody to deliver to
+            InspectorMetrics.increment("bus.droppedNoConsumer");
+            return false;
+        }
+        if (isEvictable(message)) {
+            // Unsolicited messages stay within the capacity, leaving the reserve to results
+            while (queue.size() >= capacity && evictOldestUnsolicited()) {
+                // Keep evicting until there is room
+            }
+            if (queue.size() >= capacity || !queue.offerLast(message)) {
+                InspectorMetrics.increment("bus.dropped");
+                Log.w(LOG_TAG, "Queue full of results, dropped new '" + message.getType() + "' message");
+                return false;
+            }
+        } else if (!queue.offerLast(message) && !(evictOldestUnsolicited() && queue.offerLast(message))) {
+            InspectorMetrics.increment("bus.droppedResults");
+            Log.e(LOG_TAG, "Queue and reserve full of results, dropped '" + message.getType() + "' result");
+            return false;
+        }
+        InspectorMetrics.increment("bus.enqueued");
+        InspectorMetrics.set("bus.depth", queue.size());
+        InspectorMetrics.max("bus.maxDepth", queue.size());
+        return true;
+    }
+
+    // Messages no client is waiting for; a client that misses one gets the next
+    private static boolean isEvictable(OutboundMessage message) {
+        return message.isUnsolicited()
+                || ClientConnection.policyFor(message.getType()) != ClientConnection.DeliveryPolicy.RELIABLE;
+    }
+
+    private boolean evictOldestUnsolicited() {
+        for (OutboundMessage queued : queue) {
+            if (isEvictable(queued) && queue.removeFirstOccurrence(queued)) {
+                InspectorMetrics.increment("bus.dropped");
+                Log.w(LOG_TAG, "Queue full, dropped pending '" + queued.getType() + "' message");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Called by the consumer once a message has actually been handed to the sockets. */
+    public void recordSent(OutboundMessage message) {
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - message.getEnqueuedAtNanos());
+        InspectorMetrics.increment("bus.sent");
+        InspectorMetrics.add("bus.latencyTotalMicros", latencyMicros);
+        InspectorMetrics.max("bus.latencyMaxMicros", latencyMicros);
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            OutboundMessage message;
+            try {
+                message = queue.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            InspectorMetrics.set("bus.depth", queue.size());
+            Consumer current = consumer;
+            if (current == null) {
+                InspectorMetrics.increment("bus.droppedNoConsumer");
+                continue;
+            }
+            try {
+                current.onMessage(message);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error delivering '" + message.getType() + "' message", e);
+            }
+        }
+    }
+}
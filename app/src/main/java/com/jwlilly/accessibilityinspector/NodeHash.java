@@ -0,0 +1,114 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Merkle-style hashes for captured trees.
+ *
+ * <p>Every node gets a "hash" field holding a 64-bit hash, as hex, of its own fields folded together
+ * with the hashes of its children in order. The tree message carries the same for its windows. Two
+ * trees are identical exactly when (barring collisions) their root hashes are, and a client or the
+ * delta code can skip any subtree whose hash did not change.
+ *
+ * <p>The "id" field is left out, like the old string comparison did, since full captures used to
+ * assign random ids. Field order matters, which is fine as TreeDebug always builds nodes the same way.
+ * {@link TreeSnapshot} folds hashes the same way, starting from {@link NodeSnapshot}'s typed fields.
+ */
+public class NodeHash {
+    public static final String KEY = "hash";
+
+    /** The children digest of a node without children. */
+    public static final long NO_CHILDREN = 0x9E3779B97F4A7C15L;
+
+    private static final long MULTIPLIER = 0xBF58476D1CE4E5B9L;
+    private static final long STRING_PRIME = 0x100000001B3L;
+
+    private NodeHash() {}
+
+    /** Folds one more child's subtree hash into a children digest that started at {@link #NO_CHILDREN}. */
+    public static long addChild(long childrenDigest, long childHash) {
+        return mix(childrenDigest, childHash);
+    }
+
+    /**
+     * Hash of the node's own fields, ignoring "id", "hash" and its children. A node's subtree hash
+     * is {@code mix(contentHash, childrenDigest)}; {@link Utf8JsonWriter} computes the same content
+     * hash while a capture is written.
+     */
+    public static long contentHash(JSONObject node) {
+        long hash = NO_CHILDREN;
+        Iterator<String> keys = node.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key.equals("id") || key.equals(KEY) || key.equals("children")) {
+                continue;
+            }
+            hash = hashString(hash, key);
+            hash = hashValue(hash, node.opt(key));
+        }
+        return hash;
+    }
+
+    private static long hashValue(long hash, Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return mix(hash, 'n');
+        } else if (value instanceof Boolean) {
+            return mix(hash, (Boolean) value ? 't' : 'f');
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return mix(mix(hash, 'i'), ((Number) value).longValue());
+        } else if (value instanceof Number) {
+            return mix(mix(hash, 'd'), Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            hash = mix(hash, 'o');
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                hash = hashString(hash, key);
+                hash = hashValue(hash, object.opt(key));
+            }
+            return mix(hash, object.length());
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            hash = mix(hash, 'a');
+            for (int i = 0; i < array.length(); i++) {
+                hash = hashValue(hash, array.opt(i));
+            }
+            return mix(hash, array.length());
+        }
+        return hashString(mix(hash, 's'), value.toString());
+    }
+
+    /** Folds a string, which may be null, into a hash. */
+    public static long hashString(long hash, String string) {
+        if (string == null) {
+            return mix(hash, 'n');
+        }
+        long stringHash = 0xCBF29CE484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            stringHash = (stringHash ^ string.charAt(i)) * STRING_PRIME;
+        }
+        return mix(hash, stringHash ^ string.length());
+    }
+
+    /** Folds a value into a hash. */
+    public static long mix(long hash, long value) {
+        long mixed = (hash ^ value) * MULTIPLIER;
+        return mixed ^ (mixed >>> 31);
+    }
+
+    public static String toHex(long hash) {
+        return Long.toHexString(hash);
+    }
+
+    public static long parse(String hex) {
+        try {
+            return Long.parseUnsignedLong(hex, 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A find request compiled into a predicate over nodes. Patterns are compiled, property names
+ * resolved to their getters and expected values converted once, when the query is built, so
+ * matching a node does no parsing and only reads the fields the query is about.
+ */
+public abstract class NodeQuery {
+    /** Matches no node. */
+    public static final NodeQuery NONE = new NodeQuery() {
+        @Override
+        public boolean matches(AccessibilityNodeInfo node) {
+            return false;
+        }
+    };
+
+    /** Matches every node. */
+    public static final NodeQuery ANY = new NodeQuery() {
+        @Override
+        public boolean matches(AccessibilityNodeInfo node) {
+            return true;
+        }
+    };
+
+    public abstract boolean matches(AccessibilityNodeInfo node);
+
+    /** The node properties a query can test, by the names find requests use. */
+    public enum Property {
+        CLASS_NAME, TEXT, CONTENT_DESCRIPTION, VIEW_ID, CLICKABLE, ENABLED, FOCUSABLE, FOCUSED,
+        SCROLLABLE, CHECKABLE, CHECKED, SELECTED, CHILD_COUNT;
+
+        /** The property for a name, ignoring case, or null if there is none. */
+        public static Property forName(String name) {
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "classname":
+                    return CLASS_NAME;
+                case "text":
+                    return TEXT;
+                case "contentdescription":
+                    return CONTENT_DESCRIPTION;
+                case "viewid":
+                case "viewidresourcename":
+                case "resourceid":
+                    return VIEW_ID;
+                case "isclickable":
+                case "clickable":
+                    return CLICKABLE;
+                case "isenabled":
+                case "enabled":
+                    return ENABLED;
+                case "isfocusable":
+                case "focusable":
+                    return FOCUSABLE;
+                case "isfocused":
+                case "focused":
+                    return FOCUSED;
+                case "isscrollable":
+                case "scrollable":
+                    return SCROLLABLE;
+                case "ischeckable":
+                case "checkable":
+                    return CHECKABLE;
+                case "ischecked":
+                case "checked":
+                    return CHECKED;
+                case "isselected":
+                case "selected":
+                    return SELECTED;
+                case "childcount":
+                    return CHILD_COUNT;
+                default:
+                    return null;
+            }
+        }
+
+        public boolean isText() {
+            return this == CLASS_NAME || this == TEXT || this == CONTENT_DESCRIPTION || this == VIEW_ID;
+        }
+
+        public boolean isBoolean() {
+            return !isText() && this != CHILD_COUNT;
+        }
+
+        public CharSequence text(AccessibilityNodeInfo node) {
+            switch (this) {
+                case CLASS_NAME:
+                    return node.getClassName();
+                case TEXT:
+                    return node.getText();
+                case CONTENT_DESCRIPTION:
+                    return node.getContentDescription();
+                case VIEW_ID:
+                    return node.getViewIdResourceName();
+                default:
+                    throw new IllegalStateException(this + " is not a text property");
+            }
+        }
+
+        public boolean flag(AccessibilityNodeInfo node) {
+            switch (this) {
+                case CLICKABLE:
+                    return node.isClickable();
+                case ENABLED:
+                    return node.isEnabled();
+                case FOCUSABLE:
+                    return node.isFocusable();
+                case FOCUSED:
+                    return node.isFocused();
+                case SCROLLABLE:
+                    return node.isScrollable();
+                case CHECKABLE:
+                    return node.isCheckable();
+                case CHECKED:
+                    return node.isChecked();
+                case SELECTED:
+                    return node.isSelected();
+                default:
+                    throw new IllegalStateException(this + " is not a boolean property");
+            }
+        }
+    }
+
+    /** Text or content description equal to {@code text}, case-sensitive. */
+    public static NodeQuery text(String text) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                return equal(node.getText(), text) || equal(node.getContentDescription(), text);
+            }
+        };
+    }
+
+    /**
+     * Text or content description matching {@code regex} as a whole.
+     *
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public static NodeQuery regex(String regex) {
+        Pattern pattern = Pattern.compile(regex);
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                CharSequence text = node.getText();
+                if (text != null && pattern.matcher(text).matches()) {
+                    return true;
+                }
+                CharSequence description = node.getContentDescription();
+                return description != null && pattern.matcher(description).matches();
+            }
+        };
+    }
+
+    public static NodeQuery viewId(String viewId) {
+        return textEquals(Property.VIEW_ID, viewId);
+    }
+
+    /** The node with a {@link NodeRegistry} id. */
+    public static NodeQuery nodeId(String nodeId) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                return nodeId.equals(NodeRegistry.idOf(node));
+            }
+        };
+    }
+
+    /** The node with a hash code, as find results and trees report it. */
+    public static NodeQuery withHashCode(int hashCode) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                return node.hashCode() == hashCode;
+            }
+        };
+    }
+
+    /** A text property equal to {@code expected}, case-sensitive. */
+    public static NodeQuery textEquals(Property property, String expected) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                return equal(property.text(node), expected);
+            }
+        };
+    }
+
+    /** A text property matching {@code pattern} as a whole. */
+    public static NodeQuery textMatches(Property property, Pattern pattern) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                CharSequence value = property.text(node);
+                return value != null && pattern.matcher(value).matches();
+            }
+        };
+    }
+
+    /** A text property in which {@code pattern} is found. */
+    public static NodeQuery textFinds(Property property, Pattern pattern) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                CharSequence value = property.text(node);
+                return value != null && pattern.matcher(value).find();
+            }
+        };
+    }
+
+    /**
+     * A class name of {@code name}, or with a package before it: "Button" matches
+     * android.widget.Button, "android.widget.Button" only that class.
+     */
+    public static NodeQuery simpleClassName(String name) {
+        String suffix = "." + name;
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                CharSequence className = node.getClassName();
+                if (className == null) {
+                    return false;
+                }
+                String value = className.toString();
+                return value.equals(name) || value.endsWith(suffix);
+            }
+        };
+    }
+
+    public static NodeQuery flag(Property property, boolean expected) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                return property.flag(node) == expected;
+            }
+        };
+    }
+
+    public static NodeQuery childCount(int expected) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                return node.getChildCount() == expected;
+            }
+        };
+    }
+
+    /**
+     * Nodes with all of the given properties, as in {"text": "Submit", "isClickable": true}.
+     * Unknown properties are ignored, and no properties at all match no node. A value of the wrong
+     * type for its property matches no node either.
+     */
+    public static NodeQuery props(JSONObject properties) {
+        List<NodeQuery> queries = new ArrayList<>();
+        Iterator<String> keys = properties.keys();
+        if (!keys.hasNext()) {
+            return NONE;
+        }
+        while (keys.hasNext()) {
+            String name = keys.next();
+            Property property = Property.forName(name);
+            if (property == null) {
+                continue;
+            }
+            Object expected;
+            try {
+                expected = properties.get(name);
+            } catch (JSONException e) {
+                return NONE;
+            }
+            NodeQuery query = property(property, expected);
+            if (query == NONE) {
+                return NONE;
+            }
+            queries.add(query);
+        }
+        return all(queries);
+    }
+
+    private static NodeQuery property(Property property, Object expected) {
+        if (property.isText()) {
+            return textEquals(property, expected.toString());
+        }
+        if (property.isBoolean()) {
+            if (expected instanceof Boolean) {
+                return flag(property, (Boolean) expected);
+            }
+            return expected instanceof String ? flag(property, Boolean.parseBoolean((String) expected)) : NONE;
+        }
+        if (expected instanceof Integer) {
+            return childCount((Integer) expected);
+        }
+        if (expected instanceof String) {
+            try {
+                return childCount(Integer.parseInt((String) expected));
+            } catch (NumberFormatException e) {
+                return NONE;
+            }
+        }
+        return NONE;
+    }
+
+    /** Nodes every one of {@code queries} matches; cheap queries should come first. */
+    public static NodeQuery all(List<NodeQuery> queries) {
+        if (queries.isEmpty()) {
+            return ANY;
+        }
+        if (queries.size() == 1) {
+            return queries.get(0);
+        }
+        NodeQuery[] parts = queries.toArray(new NodeQuery[0]);
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                for (NodeQuery part : parts) {
+                    if (!part.matches(node)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    public static NodeQuery not(NodeQuery query) {
+        return new NodeQuery() {
+            @Override
+            public boolean matches(AccessibilityNodeInfo node) {
+                return !query.matches(node);
+            }
+        };
+    }
+
+    private static boolean equal(CharSequence value, String expected) {
+        return value != null && value.toString().equals(expected);
+    }
+}
@@ -0,0 +1,171 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stable node ids, and the live node handles of the last capture by id, so actions can go
+ * straight to a node instead of searching every window for it.
+ *
+ * <p>A node id is "windowId:viewId", or "windowId:viewId:virtualId" for virtual views, taken from
+ * the node's source id. Unlike hash codes these do not collide, and they stay the same across
+ * captures for as long as the view exists. Where the source id cannot be read the id falls back to
+ * "windowId:h" + hash code.
+ *
+ * <p>Each capture fills a new {@link Generation} and publishes it when done; lookups only see the
+ * newest published one, so handles never outlive the capture after the one they came from.
+ */
+public class NodeRegistry {
+    private static final String LOG_TAG = "NodeRegistry";
+    // AccessibilityNodeProvider.HOST_VIEW_ID, the virtual id of a real view
+    private static final int HOST_VIEW_ID = -1;
+    private static final Method getSourceNodeId = sourceNodeIdMethod();
+    private static final AtomicLong generations = new AtomicLong();
+
+    /** The handles registered by one capture. Safe to fill from several capture threads. */
+    public static final class Generation {
+        private final long number;
+        private final ConcurrentHashMap<String, AccessibilityNodeInfo> byId;
+        private final ConcurrentHashMap<Integer, AccessibilityNodeInfo> byHashCode;
+
+        private Generation(long number, int expectedSize) {
+            this.number = number;
+            this.byId = new ConcurrentHashMap<>(expectedSize);
+            this.byHashCode = new ConcurrentHashMap<>(expectedSize);
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public int size() {
+            return byId.size();
+        }
+
+        /** The handle registered for a node id in this capture, or null. */
+        public AccessibilityNodeInfo get(String nodeId) {
+            return byId.get(nodeId);
+        }
+
+        /** Keeps the handle of a captured node. The node must not be recycled afterwards. */
+        public void register(String nodeId, AccessibilityNodeInfo node) {
+            byId.put(nodeId, node);
+            byHashCode.put(node.hashCode(), node);
+        }
+    }
+
+    private volatile Generation current = new Generation(0, 16);
+
+    /** Starts collecting the handles of a new capture, sized for about as many nodes as the last one. */
+    public Generation begin() {
+        return new Generation(generations.incrementAndGet(), Math.max(16, current.size()));
+    }
+
+    /** Makes a finished capture's handles the ones lookups see, unless a newer capture got there first. */
+    public synchronized void publish(Generation generation) {
+        if (generation.number > current.number) {
+            current = generation;
+            InspectorMetrics.add("registry.nodes", generation.size());
+        }
+    }
+
+    /** Adds a node found outside a capture, such as a find result, to the current handles. */
+    public void register(String nodeId, AccessibilityNodeInfo node) {
+        current.register(nodeId, node);
+    }
+
+    public long getGeneration() {
+        return current.number;
+    }
+
+    /** The handles lookups currently see, for work that adds to the last capture, such as expanding a node. */
+    public Generation getCurrent() {
+        return current;
+    }
+
+    /** The handle registered for a node id, or null if the last capture did not see it. */
+    public AccessibilityNodeInfo get(String nodeId) {
+        return count(current.byId.get(nodeId));
+    }
+
+    public AccessibilityNodeInfo getByHashCode(int hashCode) {
+        return count(current.byHashCode.get(hashCode));
+    }
+
+    /** Forgets a handle whose node no longer exists. */
+    public void remove(String nodeId, AccessibilityNodeInfo node) {
+        Generation generation = current;
+        generation.byId.remove(nodeId, node);
+        generation.byHashCode.remove(node.hashCode(), node);
+    }
+
+    private static AccessibilityNodeInfo count(AccessibilityNodeInfo node) {
+        InspectorMetrics.increment(node != null ? "registry.hits" : "registry.misses");
+        return node;
+    }
+
+    /** The stable id of a node, see the class comment. */
+    public static String idOf(AccessibilityNodeInfo node) {
+        return appendId(new StringBuilder(24), node).toString();
+    }
+
+    public static StringBuilder appendId(StringBuilder sb, AccessibilityNodeInfo node) {
+        sb.append(node.getWindowId()).append(':');
+        long sourceNodeId = sourceNodeId(node);
+        if (sourceNodeId == -1) {
+            return sb.append('h').append(node.hashCode());
+        }
+        // AccessibilityNodeInfo.makeNodeId: the virtual id in the high half, the view id in the low
+        int viewId = (int) sourceNodeId;
+        int virtualId = (int) (sourceNodeId >> 32);
+        sb.append(viewId);
+        if (virtualId != HOST_VIEW_ID) {
+            sb.append(':').append(virtualId);
+        }
+        return sb;
+    }
+
+    /** The window id a node id starts with, or -1 if it is not a node id. */
+    public static int windowIdOf(String nodeId) {
+        int colon = nodeId.indexOf(':');
+        if (colon <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(nodeId.substring(0, colon));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // AccessibilityNodeInfo.UNDEFINED_NODE_ID is -1 as well
+    private static long sourceNodeId(AccessibilityNodeInfo node) {
+        if (getSourceNodeId == null) {
+            return -1;
+        }
+        try {
+            return (Long) getSourceNodeId.invoke(node);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // getSourceNodeId is hidden API (@hide, on the unsupported-app-usage list), so it is looked up
+    // once by reflection. Where hidden API checks block it, the lookup or the call throws and node
+    // ids fall back to "windowId:h" + hash code: still the same across captures, as the hash code is
+    // computed from the same source id, but two nodes can then share an id.
+    private static Method sourceNodeIdMethod() {
+        try {
+            Method method = AccessibilityNodeInfo.class.getDeclaredMethod("getSourceNodeId");
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.w(LOG_TAG, "Source node ids unavailable, node ids fall back to hash codes: " + e);
+            return null;
+        }
+    }
+}
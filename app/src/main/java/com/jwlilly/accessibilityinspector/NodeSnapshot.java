@@ -0,0 +1,166 @@
+package com.jwlilly.accessibilityinspector;
+
+/**
+ * One captured node, or the window containing a node tree, copied out of its
+ * AccessibilityNodeInfo so it can be filtered, compared and serialized without further IPC.
+ *
+ * <p>Instances are immutable and hold no tree structure; parents and children are kept by the
+ * {@link TreeSnapshot} they belong to, so filtered snapshots can share the same nodes.
+ */
+public final class NodeSnapshot {
+    public static final int FLAG_VISIBLE = 1;
+    public static final int FLAG_ENABLED = 1 << 1;
+    public static final int FLAG_CLICKABLE = 1 << 2;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 3;
+    public static final int FLAG_SCROLLABLE = 1 << 4;
+    public static final int FLAG_FOCUSABLE = 1 << 5;
+    public static final int FLAG_FOCUSED = 1 << 6;
+    public static final int FLAG_SELECTED = 1 << 7;
+    public static final int FLAG_CHECKABLE = 1 << 8;
+    public static final int FLAG_CHECKED = 1 << 9;
+    public static final int FLAG_EDITABLE = 1 << 10;
+    public static final int FLAG_ACCESSIBILITY_FOCUSED = 1 << 11;
+    public static final int FLAG_IMPORTANT = 1 << 12;
+
+    /** Flags that appear in the stable tree, and therefore in the content hash. */
+    static final int REPORTED_FLAGS = FLAG_VISIBLE | FLAG_ENABLED | FLAG_CLICKABLE | FLAG_SCROLLABLE | FLAG_FOCUSED;
+
+    private final boolean window;
+    private final int id;
+    private final String nodeId;
+    private final int windowId;
+    private final String role;
+    private final String resourceId;
+    private final String text;
+    private final String contentDescription;
+    private final String title;
+    private final int flags;
+    private final int left;
+    private final int top;
+    private final int right;
+    private final int bottom;
+    private final long contentHash;
+
+    private NodeSnapshot(boolean window, int id, String nodeId, int windowId, String role, String resourceId,
+                         String text, String contentDescription, String title, int flags,
+                         int left, int top, int right, int bottom) {
+        this.window = window;
+        this.id = id;
+        this.nodeId = nodeId;
+        this.windowId = windowId;
+        this.role = role;
+        this.resourceId = resourceId;
+        this.text = text;
+        this.contentDescription = contentDescription;
+        this.title = title;
+        this.flags = flags;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.contentHash = computeContentHash();
+    }
+
+    /** A node inside a window. Strings should come from the capturer's pool so repeats are shared. */
+    static NodeSnapshot node(int id, String nodeId, int windowId, String role, String resourceId, String text,
+                             String contentDescription, int flags, int left, int top, int right, int bottom) {
+        return new NodeSnapshot(false, id, nodeId, windowId, role, resourceId, text, contentDescription, null,
+                flags, left, top, right, bottom);
+    }
+
+    /** A window; its id is the hash code of its root node, as in the JSON tree. */
+    static NodeSnapshot window(int rootId, int windowId, String title, int left, int top, int right, int bottom) {
+        return new NodeSnapshot(true, rootId, null, windowId, "Window", null, null, null, title,
+                FLAG_VISIBLE | FLAG_ENABLED, left, top, right, bottom);
+    }
+
+    // Covers exactly what the stable tree reports, so an identical hash means an identical tree
+    private long computeContentHash() {
+        long hash = NodeHash.NO_CHILDREN;
+        hash = NodeHash.mix(hash, window ? 'w' : 'n');
+        hash = NodeHash.mix(hash, window ? windowId : id);
+        hash = NodeHash.hashString(hash, nodeId);
+        hash = NodeHash.hashString(hash, role);
+        hash = NodeHash.hashString(hash, resourceId);
+        hash = NodeHash.hashString(hash, text);
+        hash = NodeHash.hashString(hash, contentDescription);
+        hash = NodeHash.hashString(hash, title);
+        return NodeHash.mix(hash, flags & REPORTED_FLAGS);
+    }
+
+    public boolean isWindow() {
+        return window;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** Stable id from {@link NodeRegistry#idOf}, null for windows. */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getWindowId() {
+        return windowId;
+    }
+
+    /** Simple class name, "??" if the node had none, or "Window". */
+    public String getRole() {
+        return role;
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getContentDescription() {
+        return contentDescription;
+    }
+
+    /** Window title, null for nodes. */
+    public String getTitle() {
+        return title;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public boolean isVisible() {
+        return hasFlag(FLAG_VISIBLE);
+    }
+
+    public boolean isImportantForAccessibility() {
+        return hasFlag(FLAG_IMPORTANT);
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getRight() {
+        return right;
+    }
+
+    public int getBottom() {
+        return bottom;
+    }
+
+    /** Hash of the reported fields, without children; see {@link NodeHash}. */
+    public long getContentHash() {
+        return contentHash;
+    }
+}
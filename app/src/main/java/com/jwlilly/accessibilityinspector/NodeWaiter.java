@@ -0,0 +1,160 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server-side waits, so clients need not poll finds until something shows up. A wait is checked
+ * when it starts, and after that only when an event that can change the tree arrives, at most once
+ * per {@link #CHECK_DELAY_MS} however many arrive. Each check answers every pending wait in one
+ * traversal, as a {@link Selector.Group}. A wait is answered once: when its condition holds, or
+ * when its timeout runs out.
+ *
+ * <p>Main thread only.
+ */
+public final class NodeWaiter {
+    private static final String LOG_TAG = "NodeWaiter";
+    static final long CHECK_DELAY_MS = 100;
+    static final int MAX_WAITS = 16;
+    // Events that can change what a selector matches; focus and announcements do not
+    private static final int RELEVANT_EVENTS = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED
+            | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SELECTED
+            | AccessibilityEvent.TYPE_VIEW_CLICKED
+            | AccessibilityEvent.TYPE_VIEW_FOCUSED
+            | AccessibilityEvent.TYPE_VIEW_SCROLLED;
+
+    /** Where the waiter gets the tree from and sends its answers to. */
+    public interface Host {
+        List<AccessibilityWindowInfo> getWindows();
+
+        /** A wait ended: {@code matches} satisfy its condition, or are null if it timed out. */
+        void onWaitFinished(WaitRequest request, List<AccessibilityNodeInfo> matches, long elapsedMillis, int checks);
+
+        /** A wait could not be started. */
+        void onWaitRejected(WaitRequest request, String message);
+    }
+
+    private static final class Wait {
+        final WaitRequest request;
+        final long startedAt;
+        Runnable timeout;
+        int checks;
+
+        Wait(WaitRequest request, long startedAt) {
+            this.request = request;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final Handler handler;
+    private final Host host;
+    // Pending waits by a key of their own, as clients need not give ids
+    private final LinkedHashMap<String, Wait> waits = new LinkedHashMap<>();
+    private final Runnable check = this::checkAll;
+    private boolean checkScheduled;
+    private long nextKey;
+
+    public NodeWaiter(Handler handler, Host host) {
+        this.handler = handler;
+        this.host = host;
+    }
+
+    /** Starts a wait, answering it straight away if its condition already holds. */
+    public void add(WaitRequest request) {
+        if (waits.size() >= MAX_WAITS) {
+            host.onWaitRejected(request, "Too many pending waits (" + MAX_WAITS + ")");
+            return;
+        }
+        String key = Long.toString(nextKey++);
+        Wait wait = new Wait(request, SystemClock.uptimeMillis());
+        wait.timeout = () -> timeOut(key);
+        waits.put(key, wait);
+        InspectorMetrics.increment("waitFor.started");
+        handler.postDelayed(wait.timeout, request.getTimeoutMillis());
+        checkAll();
+    }
+
+    public void onEvent(AccessibilityEvent event) {
+        if (waits.isEmpty() || checkScheduled || (event.getEventType() & RELEVANT_EVENTS) == 0) {
+            return;
+        }
+        checkScheduled = true;
+        handler.postDelayed(check, CHECK_DELAY_MS);
+    }
+
+    /** Drops every pending wait without answering it, for when the service goes away. */
+    public void clear() {
+        for (Wait wait : waits.values()) {
+            handler.removeCallbacks(wait.timeout);
+        }
+        waits.clear();
+        handler.removeCallbacks(check);
+        checkScheduled = false;
+    }
+
+    private void timeOut(String key) {
+        // Events may have arrived since the last check; they get their check before the wait ends
+        if (checkScheduled) {
+            handler.removeCallbacks(check);
+            checkAll();
+        }
+        Wait wait = waits.remove(key);
+        if (wait != null) {
+            InspectorMetrics.increment("waitFor.timedOut");
+            host.onWaitFinished(wait.request, null, SystemClock.uptimeMillis() - wait.startedAt, wait.checks);
+        }
+    }
+
+    private void checkAll() {
+        checkScheduled = false;
+        if (waits.isEmpty()) {
+            return;
+        }
+        LinkedHashMap<String, Selector> selectors = new LinkedHashMap<>();
+        for (Map.Entry<String, Wait> entry : waits.entrySet()) {
+            selectors.put(entry.getKey(), entry.getValue().request.getSelector());
+        }
+        Selector.Group group = new Selector.Group(selectors);
+        Map<String, List<AccessibilityNodeInfo>> results = group.newResults();
+        try {
+            for (AccessibilityWindowInfo window : host.getWindows()) {
+                AccessibilityNodeInfo rootNode = window.getRoot();
+                if (rootNode != null) {
+                    CustomNodeFinder.query(rootNode, group, results);
+                }
+            }
+        } catch (RuntimeException e) {
+            // A tree changing under the walk; the next event checks again
+            Log.e(LOG_TAG, "Error checking waits: " + e.getMessage());
+            return;
+        }
+        InspectorMetrics.increment("waitFor.checks");
+
+        long now = SystemClock.uptimeMillis();
+        Iterator<Map.Entry<String, Wait>> iterator = waits.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Wait> entry = iterator.next();
+            Wait wait = entry.getValue();
+            wait.checks++;
+            List<AccessibilityNodeInfo> matches = wait.request.satisfiedBy(results.get(entry.getKey()));
+            if (matches != null) {
+                iterator.remove();
+                handler.removeCallbacks(wait.timeout);
+                InspectorMetrics.increment("waitFor.satisfied");
+                host.onWaitFinished(wait.request, matches, now - wait.startedAt, wait.checks);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A payload on its way from the accessibility service to connected clients.
+ *
+ * <p>Tree messages keep their {@link TreeSnapshot}, or the UTF-8 JSON a capture was written as, so
+ * each encoding is produced lazily, at most once, and only if some client asked for it.
+ */
+public class OutboundMessage {
+    private static final String LOG_TAG = "OutboundMessage";
+
+    private final String type;
+    private final byte[] treeJson;
+    private final TreeSnapshot snapshot;
+    private final JSONObject header;
+    private final long enqueuedAtNanos;
+    private volatile boolean unsolicited;
+    private String payload;
+    private byte[] utf8Payload;
+    private byte[] binaryPayload;
+
+    public OutboundMessage(String type, String payload) {
+        this.type = type != null ? type : "";
+        this.treeJson = null;
+        this.snapshot = null;
+        this.header = null;
+        this.payload = payload;
+        this.enqueuedAtNanos = System.nanoTime();
+    }
+
+    /** A tree message already written as UTF-8 JSON, see {@link Utf8JsonWriter}. */
+    public OutboundMessage(String type, byte[] treeJson) {
+        this.type = type != null ? type : "";
+        this.treeJson = treeJson;
+        this.snapshot = null;
+        this.header = null;
+        this.enqueuedAtNanos = System.nanoTime();
+    }
+
+    /** A snapshot message; the header holds the fields written before the tree, such as "type". */
+    public OutboundMessage(String type, TreeSnapshot snapshot, JSONObject header) {
+        this.type = type != null ? type : "";
+        this.treeJson = null;
+        this.snapshot = snapshot;
+        this.header = header;
+        this.enqueuedAtNanos = System.nanoTime();
+    }
+
+    /** The "type" field of the JSON payload, used for routing without re-parsing it. */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Marks a message of a type that normally answers a request as sent without one, so a full
+     * {@link MessageBus} may drop it like an event.
+     */
+    OutboundMessage markUnsolicited() {
+        unsolicited = true;
+        return this;
+    }
+
+    public boolean isUnsolicited() {
+        return unsolicited;
+    }
+
+    /** Whether the message carries a tree and can be sent with the binary tree encoding. */
+    public boolean hasTree() {
+        return treeJson != null || snapshot != null;
+    }
+
+    /** The snapshot of a snapshot message, or null. */
+    public TreeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** The "generation" of a stableTree message, or -1 if it has none. */
+    public long getGeneration() {
+        return header != null ? header.optLong("generation", -1) : -1;
+    }
+
+    /** A header field of a snapshot message, or null. */
+    public Object getField(String name) {
+        return header != null ? header.opt(name) : null;
+    }
+
+    /** The JSON text of the message. */
+    public synchronized String getPayload() {
+        if (payload == null) {
+            if (snapshot != null) {
+                try {
+                    payload = SnapshotSerializer.JSON.serialize(snapshot, header);
+                } catch (JSONException e) {
+                    Log.e(LOG_TAG, "Failed to serialize snapshot: " + e.getMessage());
+                    payload = "{\"type\":\"" + type + "\",\"children\":[]}";
+                }
+            } else {
+                payload = new String(treeJson, StandardCharsets.UTF_8);
+            }
+        }
+        return payload;
+    }
+
+    /** The JSON text of the message as UTF-8, without copying it for tree messages. */
+    public synchronized byte[] getUtf8Payload() {
+        if (treeJson != null) {
+            return treeJson;
+        }
+        if (utf8Payload == null) {
+            utf8Payload = getPayload().getBytes(StandardCharsets.UTF_8);
+        }
+        return utf8Payload;
+    }
+
+    /** The binary tree frame, see {@link BinaryTreeEncoder}. Only valid if {@link #hasTree()}. */
+    public synchronized byte[] getBinaryPayload() {
+        if (binaryPayload == null) {
+            try {
+                long start = System.nanoTime();
+                // A tree written as JSON has to be parsed back once for binary clients
+                binaryPayload = snapshot != null ? SnapshotSerializer.BINARY.serialize(snapshot, header)
+                        : BinaryTreeEncoder.encode(new JSONObject(getPayload()));
+                InspectorMetrics.increment("encoding.binaryFrames");
+                InspectorMetrics.add("encoding.binaryBytes", binaryPayload.length);
+                InspectorMetrics.add("encoding.binaryMicros", (System.nanoTime() - start) / 1000);
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, "Failed to encode binary tree: " + e.getMessage());
+                binaryPayload = new byte[0];
+            }
+        }
+        return binaryPayload;
+    }
+
+    /** Size in bytes of the frame for the given encoding, before compression. */
+    public long getSizeBytes(boolean binary) {
+        if (binary && hasTree()) {
+            return getBinaryPayload().length;
+        }
+        return getUtf8Payload().length;
+    }
+
+    public long getEnqueuedAtNanos() {
+        return enqueuedAtNanos;
+    }
+}
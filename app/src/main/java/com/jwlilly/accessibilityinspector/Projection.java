@@ -0,0 +1,123 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONArray;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The node fields a capture writes, so clients that only need a few of them do not pay for
+ * reading the rest. Every node always has "id", "nodeId", "name", "hash" and its children, and
+ * "hashCode" and "role" in its metadata; everything else is one of {@link #FIELD_NAMES}.
+ *
+ * <p>A capture request names a profile ("structure", "interactive" or "full", the default) or
+ * lists the fields it wants. Fields are named after their JSON keys, except that "bounds" stands
+ * for x1/y1/x2/y2, "scaledSize" for scaledWidth/scaledHeight/dpScaleFactor, and "labeledBy" and
+ * "state" include labeledById and stateDescription.
+ */
+public final class Projection {
+    public static final int RESOURCE_ID = 1;
+    public static final int ROLE_DESCRIPTION = 1 << 1;
+    public static final int CONTENT_INVALID = 1 << 2;
+    public static final int ERROR_MESSAGE = 1 << 3;
+    public static final int TOOLTIP = 1 << 4;
+    public static final int VISIBILITY = 1 << 5;
+    public static final int IMPORTANT_FOR_ACCESSIBILITY = 1 << 6;
+    public static final int BOUNDS = 1 << 7;
+    public static final int SCALED_SIZE = 1 << 8;
+    public static final int PANE_TITLE = 1 << 9;
+    public static final int LINKS = 1 << 10;
+    public static final int LOCALES = 1 << 11;
+    public static final int TEXT = 1 << 12;
+    public static final int LABELED_BY = 1 << 13;
+    public static final int HINT = 1 << 14;
+    public static final int CONTENT = 1 << 15;
+    public static final int STATE = 1 << 16;
+    public static final int CHECKABLE = 1 << 17;
+    public static final int ACTIONS = 1 << 18;
+    public static final int PROPERTIES = 1 << 19;
+    public static final int COLLECTION_INFO = 1 << 20;
+    public static final int HEADING = 1 << 21;
+    public static final int COLLECTION_ITEM_INFO = 1 << 22;
+
+    /** Field names in bit order. */
+    public static final List<String> FIELD_NAMES = Arrays.asList(
+            "resourceId", "roleDescription", "contentInvalid", "errorMessage", "tooltip", "visibility",
+            "importantForAccessibility", "bounds", "scaledSize", "paneTitle", "links", "locales", "text",
+            "labeledBy", "hint", "content", "state", "checkable", "actions", "properties",
+            "collectionInfo", "heading", "collectionItemInfo");
+
+    public static final Projection FULL = new Projection("full", (1 << 23) - 1);
+    /** The shape of the tree and where things are. */
+    public static final Projection STRUCTURE = new Projection("structure", RESOURCE_ID | VISIBILITY | BOUNDS);
+    /** What an automated client needs to find and operate controls. */
+    public static final Projection INTERACTIVE = new Projection("interactive",
+            STRUCTURE.fields | TEXT | CONTENT | HINT | STATE | CHECKABLE | PROPERTIES);
+
+    private final String name;
+    private final int fields;
+
+    private Projection(String name, int fields) {
+        this.name = name;
+        this.fields = fields;
+    }
+
+    /** A projection from its {@link #getFields()} bits, as passed along with a capture request. */
+    public static Projection of(int fields) {
+        for (Projection profile : new Projection[] {FULL, STRUCTURE, INTERACTIVE}) {
+            if (profile.fields == fields) {
+                return profile;
+            }
+        }
+        return new Projection("custom", fields & FULL.fields);
+    }
+
+    /**
+     * Parses the "projection" of a capture request: null for the full projection, a profile name,
+     * or an array of field names.
+     *
+     * @throws IllegalArgumentException for an unknown profile or field
+     */
+    public static Projection parse(Object value) {
+        if (value == null) {
+            return FULL;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray names = (JSONArray) value;
+            int fields = 0;
+            for (int i = 0; i < names.length(); i++) {
+                int bit = FIELD_NAMES.indexOf(names.optString(i));
+                if (bit < 0) {
+                    throw new IllegalArgumentException("Unknown projection field: " + names.opt(i)
+                            + " (expected one of " + FIELD_NAMES + ")");
+                }
+                fields |= 1 << bit;
+            }
+            return of(fields);
+        }
+        switch (value.toString()) {
+            case "full":
+                return FULL;
+            case "structure":
+                return STRUCTURE;
+            case "interactive":
+                return INTERACTIVE;
+            default:
+                throw new IllegalArgumentException("Unknown projection: " + value
+                        + " (expected structure, interactive, full or a list of fields)");
+        }
+    }
+
+    public boolean has(int field) {
+        return (fields & field) != 0;
+    }
+
+    public int getFields() {
+        return fields;
+    }
+
+    /** The profile name, or "custom" for an explicit field list. */
+    public String getName() {
+        return name;
+    }
+}
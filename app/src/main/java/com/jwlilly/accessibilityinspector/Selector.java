@@ -0,0 +1,499 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A CSS-like selector over the accessibility tree, compiled into {@link NodeQuery} tests, such as
+ * {@code Button[clickable][text~="Sign in"] > TextView}.
+ *
+ * <p>A selector is a chain of steps joined by combinators: whitespace (descendant), {@code >}
+ * (child), {@code +} (next sibling) and {@code ~} (any later sibling), and a comma separates
+ * alternatives. A step is a class name or {@code *}, followed by any number of tests:
+ * <ul>
+ * <li>{@code [name]}: a boolean property is true, or a text property not empty
+ * <li>{@code [name=value]} and {@code [name!=value]}; {@code [name=/regex/]} matches the whole value
+ * <li>{@code [name~=value]} contains value ignoring case, {@code [name*=value]} contains it,
+ * {@code [name^=value]} starts and {@code [name$=value]} ends with it
+ * <li>{@code [n]} or {@code :nth-child(n)}: the n-th child of its parent, from 1, and
+ * {@code :first-child}, {@code :last-child}
+ * </ul>
+ * "Button" matches any class named Button, "android.widget.Button" only that one. Property names
+ * are those of findByProps (see {@link NodeQuery.Property}); values may be quoted.
+ */
+public final class Selector {
+    private static final Pattern NOT_EMPTY = Pattern.compile(".", Pattern.DOTALL);
+    private static final int LAST_CHILD = -1;
+
+    /** One step of a chain: the tests on a node and how it relates to the step before it. */
+    private static final class Step {
+        final NodeQuery test;
+        // Position among the parent's children from 1, LAST_CHILD or 0 for any
+        final int nthChild;
+        // ' ', '>', '+' or '~' between the previous step and this one, 0 for the first step
+        final char combinator;
+        // Index among all steps of the selector, for the per-node memo
+        final int id;
+
+        Step(NodeQuery test, int nthChild, char combinator, int id) {
+            this.test = test;
+            this.nthChild = nthChild;
+            this.combinator = combinator;
+            this.id = id;
+        }
+    }
+
+    /**
+     * A node as a traversal sees it, with its ancestors and earlier siblings, which the
+     * combinators look at. Remembers which steps it matched, so each test runs once per node
+     * however many chains look at it.
+     */
+    public static final class Frame {
+        public final AccessibilityNodeInfo node;
+        final Frame parent;
+        final Frame previousSibling;
+        final int index;
+        final int siblingCount;
+        // 0 not tested yet, 1 matched, 2 did not
+        private final byte[] memo;
+
+        Frame(AccessibilityNodeInfo node, Frame parent, Frame previousSibling, int index, int siblingCount,
+              int steps) {
+            this.node = node;
+            this.parent = parent;
+            this.previousSibling = previousSibling;
+            this.index = index;
+            this.siblingCount = siblingCount;
+            this.memo = new byte[steps];
+        }
+
+        boolean test(Step step, int offset) {
+            int slot = offset + step.id;
+            if (memo[slot] == 0) {
+                memo[slot] = (byte) (position(step) && step.test.matches(node) ? 1 : 2);
+            }
+            return memo[slot] == 1;
+        }
+
+        private boolean position(Step step) {
+            if (step.nthChild == 0) {
+                return true;
+            }
+            if (parent == null) {
+                return false;
+            }
+            return step.nthChild == LAST_CHILD ? index == siblingCount - 1 : index == step.nthChild - 1;
+        }
+    }
+
+    /**
+     * Named selectors evaluated together, so one traversal answers all of them: each node is
+     * visited once and checked against every selector.
+     */
+    public static final class Group {
+        private final LinkedHashMap<String, Selector> selectors;
+        private final int[] offsets;
+        private final int steps;
+
+        public Group(LinkedHashMap<String, Selector> selectors) {
+            this.selectors = selectors;
+            this.offsets = new int[selectors.size()];
+            int steps = 0;
+            int i = 0;
+            for (Selector selector : selectors.values()) {
+                offsets[i++] = steps;
+                steps += selector.steps;
+            }
+            this.steps = steps;
+        }
+
+        /**
+         * Compiles {"name": "selector", ...}.
+         *
+         * @throws IllegalArgumentException naming the first selector that is invalid
+         */
+        public static Group parse(JSONObject selectors) {
+            LinkedHashMap<String, Selector> parsed = new LinkedHashMap<>();
+            Iterator<String> names = selectors.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                String source = selectors.optString(name, "");
+                try {
+                    parsed.put(name, Selector.parse(source));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid selector '" + name + "': " + e.getMessage());
+                }
+            }
+            return new Group(parsed);
+        }
+
+        public Map<String, Selector> getSelectors() {
+            return selectors;
+        }
+
+        /** An empty result list for every selector, in the order they were given. */
+        public LinkedHashMap<String, List<AccessibilityNodeInfo>> newResults() {
+            LinkedHashMap<String, List<AccessibilityNodeInfo>> results = new LinkedHashMap<>();
+            for (String name : selectors.keySet()) {
+                results.put(name, new ArrayList<>());
+            }
+            return results;
+        }
+
+        /** The frame of a window root. */
+        public Frame root(AccessibilityNodeInfo node) {
+            return new Frame(node, null, null, 0, 1, steps);
+        }
+
+        /** The frame of the {@code index}th child of {@code parent}, after {@code previousSibling}. */
+        public Frame child(AccessibilityNodeInfo node, Frame parent, Frame previousSibling, int index) {
+            return new Frame(node, parent, previousSibling, index, parent.node.getChildCount(), steps);
+        }
+
+        /** Adds the frame's node to the results of every selector it matches. */
+        public void collect(Frame frame, Map<String, List<AccessibilityNodeInfo>> results) {
+            int i = 0;
+            for (Map.Entry<String, Selector> entry : selectors.entrySet()) {
+                if (entry.getValue().matches(frame, offsets[i++])) {
+                    results.get(entry.getKey()).add(frame.node);
+                }
+            }
+        }
+    }
+
+    private final String source;
+    private final List<List<Step>> alternatives;
+    private final int steps;
+
+    private Selector(String source, List<List<Step>> alternatives, int steps) {
+        this.source = source;
+        this.alternatives = alternatives;
+        this.steps = steps;
+    }
+
+    /**
+     * Compiles a selector.
+     *
+     * @throws IllegalArgumentException with the position of the first error
+     */
+    public static Selector parse(String source) {
+        return new Parser(source).parse();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private boolean matches(Frame frame, int offset) {
+        for (List<Step> chain : alternatives) {
+            if (matches(chain, chain.size() - 1, frame, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Right to left, as browsers do: the last step decides most nodes without looking further
+    private static boolean matches(List<Step> chain, int i, Frame frame, int offset) {
+        Step step = chain.get(i);
+        if (!frame.test(step, offset)) {
+            return false;
+        }
+        if (i == 0) {
+            return true;
+        }
+        switch (step.combinator) {
+            case '>':
+                return frame.parent != null && matches(chain, i - 1, frame.parent, offset);
+            case '+':
+                return frame.previousSibling != null && matches(chain, i - 1, frame.previousSibling, offset);
+            case '~':
+                for (Frame sibling = frame.previousSibling; sibling != null; sibling = sibling.previousSibling) {
+                    if (matches(chain, i - 1, sibling, offset)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                for (Frame ancestor = frame.parent; ancestor != null; ancestor = ancestor.parent) {
+                    if (matches(chain, i - 1, ancestor, offset)) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    private static final class Parser {
+        private final String source;
+        private int pos;
+        private int steps;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        Selector parse() {
+            List<List<Step>> alternatives = new ArrayList<>();
+            List<Step> chain = new ArrayList<>();
+            char combinator = 0;
+            skipSpaces();
+            while (true) {
+                chain.add(step(combinator));
+                boolean spaced = skipSpaces();
+                if (pos == source.length()) {
+                    break;
+                }
+                char c = source.charAt(pos);
+                if (c == ',') {
+                    pos++;
+                    skipSpaces();
+                    alternatives.add(chain);
+                    chain = new ArrayList<>();
+                    combinator = 0;
+                } else if (c == '>' || c == '+' || c == '~') {
+                    pos++;
+                    skipSpaces();
+                    combinator = c;
+                } else if (spaced) {
+                    combinator = ' ';
+                } else {
+                    throw error("Unexpected '" + c + "'");
+                }
+            }
+            alternatives.add(chain);
+            return new Selector(source, alternatives, steps);
+        }
+
+        private Step step(char combinator) {
+            List<NodeQuery> tests = new ArrayList<>();
+            int nthChild = 0;
+            int start = pos;
+            if (peek('*')) {
+                pos++;
+            } else {
+                String name = identifier();
+                if (!name.isEmpty()) {
+                    tests.add(name.indexOf('.') >= 0
+                            ? NodeQuery.textEquals(NodeQuery.Property.CLASS_NAME, name) : NodeQuery.simpleClassName(name));
+                }
+            }
+            while (pos < source.length()) {
+                if (peek('[')) {
+                    pos++;
+                    skipSpaces();
+                    String name = identifier();
+                    if (!name.isEmpty() && name.chars().allMatch(Character::isDigit)) {
+                        nthChild = position(name);
+                        skipSpaces();
+                        expect(']');
+                    } else {
+                        tests.add(attribute(name));
+                    }
+                } else if (peek(':')) {
+                    pos++;
+                    String pseudo = identifier();
+                    if (pseudo.equals("first-child")) {
+                        nthChild = 1;
+                    } else if (pseudo.equals("last-child")) {
+                        nthChild = LAST_CHILD;
+                    } else if (pseudo.equals("nth-child")) {
+                        expect('(');
+                        skipSpaces();
+                        nthChild = position(identifier());
+                        skipSpaces();
+                        expect(')');
+                    } else {
+                        throw error("Unknown pseudo-class :" + pseudo);
+                    }
+                } else {
+                    break;
+                }
+            }
+            if (pos == start) {
+                throw error(pos == source.length() ? "Expected a step" : "Unexpected '" + source.charAt(pos) + "'");
+            }
+            return new Step(NodeQuery.all(tests), nthChild, combinator, steps++);
+        }
+
+        private NodeQuery attribute(String name) {
+            NodeQuery.Property property = NodeQuery.Property.forName(name);
+            if (property == null) {
+                throw error("Unknown property '" + name + "'");
+            }
+            skipSpaces();
+            if (peek(']')) {
+                pos++;
+                if (property.isText()) {
+                    return NodeQuery.textFinds(property, NOT_EMPTY);
+                }
+                if (property.isBoolean()) {
+                    return NodeQuery.flag(property, true);
+                }
+                throw error("[" + name + "] needs a value");
+            }
+            String operator = operator();
+            skipSpaces();
+            boolean regex = peek('/');
+            String value = value();
+            skipSpaces();
+            expect(']');
+            if (property.isText()) {
+                return textTest(property, operator, value, regex);
+            }
+            if (regex || !(operator.equals("=") || operator.equals("!="))) {
+                throw error(name + " only takes = and !=");
+            }
+            NodeQuery query;
+            if (property.isBoolean()) {
+                if (!value.equals("true") && !value.equals("false")) {
+                    throw error(name + " is true or false");
+                }
+                query = NodeQuery.flag(property, Boolean.parseBoolean(value));
+            } else {
+                try {
+                    query = NodeQuery.childCount(Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    throw error(name + " is a number");
+                }
+            }
+            return operator.equals("=") ? query : NodeQuery.not(query);
+        }
+
+        private NodeQuery textTest(NodeQuery.Property property, String operator, String value, boolean regex) {
+            if (regex) {
+                if (!operator.equals("=") && !operator.equals("!=")) {
+                    throw error("A regex only takes = and !=");
+                }
+                Pattern pattern;
+                try {
+                    pattern = Pattern.compile(value);
+                } catch (PatternSyntaxException e) {
+                    throw error("Invalid regex: " + e.getDescription());
+                }
+                NodeQuery query = NodeQuery.textMatches(property, pattern);
+                return operator.equals("=") ? query : NodeQuery.not(query);
+            }
+            String quoted = Pattern.quote(value);
+            switch (operator) {
+                case "=":
+                    return NodeQuery.textEquals(property, value);
+                case "!=":
+                    return NodeQuery.not(NodeQuery.textEquals(property, value));
+                case "~=":
+                    return NodeQuery.textFinds(property,
+                            Pattern.compile(quoted, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+                case "*=":
+                    return NodeQuery.textFinds(property, Pattern.compile(quoted));
+                case "^=":
+                    return NodeQuery.textFinds(property, Pattern.compile("^" + quoted));
+                default:
+                    return NodeQuery.textFinds(property, Pattern.compile(quoted + "$"));
+            }
+        }
+
+        private String operator() {
+            if (peek('=')) {
+                pos++;
+                return "=";
+            }
+            if (pos + 1 < source.length() && source.charAt(pos + 1) == '='
+                    && "!~*^$".indexOf(source.charAt(pos)) >= 0) {
+                pos += 2;
+                return source.substring(pos - 2, pos);
+            }
+            throw error("Expected ], =, !=, ~=, *=, ^= or $=");
+        }
+
+        // A quoted string, a /regex/ or a bare word, without the quotes or slashes
+        private String value() {
+            if (pos == source.length()) {
+                throw error("Expected a value");
+            }
+            char quote = source.charAt(pos);
+            if (quote != '"' && quote != '\'' && quote != '/') {
+                int start = pos;
+                while (pos < source.length() && source.charAt(pos) != ']' && !Character.isWhitespace(source.charAt(pos))) {
+                    pos++;
+                }
+                if (pos == start) {
+                    throw error("Expected a value");
+                }
+                return source.substring(start, pos);
+            }
+            pos++;
+            StringBuilder value = new StringBuilder();
+            while (pos < source.length() && source.charAt(pos) != quote) {
+                char c = source.charAt(pos++);
+                if (c == '\\' && pos < source.length()) {
+                    char next = source.charAt(pos++);
+                    // A regex keeps its escapes, apart from the one for the closing slash
+                    if (quote == '/' && next != '/') {
+                        value.append(c);
+                    }
+                    c = next;
+                }
+                value.append(c);
+            }
+            expect(quote);
+            return value.toString();
+        }
+
+        private int position(String digits) {
+            try {
+                int position = Integer.parseInt(digits);
+                if (position > 0) {
+                    return position;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw error("Expected a child position from 1");
+        }
+
+        private String identifier() {
+            int start = pos;
+            while (pos < source.length()) {
+                char c = source.charAt(pos);
+                if (!Character.isLetterOrDigit(c) && c != '.' && c != '_' && c != '-') {
+                    break;
+                }
+                pos++;
+            }
+            return source.substring(start, pos);
+        }
+
+        private boolean skipSpaces() {
+            int start = pos;
+            while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+                pos++;
+            }
+            return pos > start;
+        }
+
+        private boolean peek(char c) {
+            return pos < source.length() && source.charAt(pos) == c;
+        }
+
+        private void expect(char c) {
+            if (!peek(c)) {
+                throw error("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos + " of \"" + source + "\"");
+        }
+    }
+}
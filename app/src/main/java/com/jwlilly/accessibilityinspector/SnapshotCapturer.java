@@ -0,0 +1,250 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.graphics.Rect;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+
+import com.google.android.accessibility.utils.AccessibilityNodeInfoUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Captures the stable tree into a {@link TreeSnapshot}, reading each node's properties exactly
+ * once. Filtering, change detection and serialization then work on the snapshot instead of
+ * re-walking JSON.
+ *
+ * <p>Nodes are kept in a {@link TreeMirror} between captures. Only nodes and subtrees that events
+ * marked stale are read from the app again; the rest of the snapshot reuses the previous nodes.
+ *
+ * <p>Keeps the windows its {@link WindowPolicy} allows that have nodes. The stable tree uses
+ * {@link WindowPolicy#DEFAULT}, the same windows as the old fast JSON capture.
+ */
+public class SnapshotCapturer {
+    private static final String LOG_TAG = "SnapshotCapturer";
+    private static final int MAX_POOLED_STRINGS = 8192;
+
+    // Class names and resource ids repeat a lot between nodes and between captures
+    private final HashMap<String, String> stringPool = new HashMap<>();
+    private final Rect bounds = new Rect();
+    private final Rect windowBounds = new Rect();
+    private final TreeMirror mirror;
+    private final WindowPolicy policy;
+    private boolean visibleOnly;
+    private int lastSize = 256;
+    // Per capture counts, for the metrics
+    private int reusedNodes;
+    private int fetchedNodes;
+    private int prunedNodes;
+
+    public SnapshotCapturer(TreeMirror mirror, WindowPolicy policy) {
+        this.mirror = mirror;
+        this.policy = policy;
+    }
+
+    /**
+     * Captures the windows, each from its own root, registering every node's handle in {@code nodes} if it is not null.
+     * With {@code visibleOnly}, invisible nodes without visible descendants are left out while
+     * walking the tree, as {@link SnapshotFilter#VISIBLE_OR_CONTAINER} would, but invisible leaves
+     * are never read and invisible nodes entirely outside the window are dropped without fetching
+     * their children.
+     */
+    public TreeSnapshot capture(List<AccessibilityWindowInfo> windows, NodeRegistry.Generation nodes,
+                                boolean visibleOnly) {
+        this.visibleOnly = visibleOnly;
+        TreeSnapshot.Builder builder = new TreeSnapshot.Builder(lastSize);
+        if (stringPool.size() > MAX_POOLED_STRINGS) {
+            stringPool.clear();
+        }
+        reusedNodes = 0;
+        fetchedNodes = 0;
+        prunedNodes = 0;
+        HashSet<Integer> capturedWindows = new HashSet<>();
+        if (windows != null) {
+            for (AccessibilityWindowInfo window : windows) {
+                // The policy is checked before the root is fetched, so the navigation bar is never walked
+                if (window == null || policy.skipReason(window) != null) {
+                    continue;
+                }
+                AccessibilityNodeInfo rootInfo = window.getRoot();
+                if (rootInfo == null || (policy.checksPaneTitle()
+                        && policy.skipReasonForPaneTitle(WindowPolicy.firstPaneTitle(rootInfo)) != null)) {
+                    continue;
+                }
+                AccessibilityNodeInfoCompat root = AccessibilityNodeInfoCompat.wrap(rootInfo);
+                capturedWindows.add(window.getId());
+                int mark = builder.size();
+                try {
+                    captureWindow(builder, window, root, nodes);
+                } catch (RuntimeException e) {
+                    // The window changed underneath us; drop what we have of it
+                    Log.e(LOG_TAG, "Error capturing window " + window.getId() + ": " + e.getMessage());
+                    builder.truncate(mark);
+                    mirror.dropWindow(window.getId());
+                }
+            }
+        }
+        mirror.retainWindows(capturedWindows);
+        InspectorMetrics.add("mirror.reusedNodes", reusedNodes);
+        InspectorMetrics.add("mirror.fetchedNodes", fetchedNodes);
+        InspectorMetrics.add("capture.prunedNodes", prunedNodes);
+        TreeSnapshot snapshot = builder.build();
+        lastSize = Math.max(256, snapshot.size());
+        return snapshot;
+    }
+
+    private void captureWindow(TreeSnapshot.Builder builder, AccessibilityWindowInfo window, AccessibilityNodeInfoCompat root,
+                               NodeRegistry.Generation nodes) {
+        String title = window.getTitle() != null ? window.getTitle().toString() : null;
+        root.getBoundsInScreen(windowBounds);
+        int windowIndex = builder.add(NodeSnapshot.window(root.hashCode(), window.getId(), title,
+                windowBounds.left, windowBounds.top, windowBounds.right, windowBounds.bottom), -1);
+        TreeMirror.Node rootNode = mirror.root(window.getId(), root);
+        HashSet<String> seen = new HashSet<>();
+        seen.add(rootNode.nodeId);
+        captureChildren(builder, rootNode, windowIndex, window.getId(), seen, nodes);
+
+        if (builder.size() == windowIndex + 1) {
+            builder.truncate(windowIndex);
+        }
+    }
+
+    private void captureChildren(TreeSnapshot.Builder builder, TreeMirror.Node node, int index,
+                                 int windowId, HashSet<String> seen, NodeRegistry.Generation nodes) {
+        if (node.children == null || node.subtreeStale) {
+            fetchChildren(node);
+        }
+        node.handleCurrent = false;
+        for (int i = 0; i < node.children.size(); i++) {
+            TreeMirror.Node child = node.children.get(i);
+            boolean changed = child.snapshot == null || child.stale;
+            if (changed && !child.handleCurrent && !child.handle.refresh()) {
+                // Gone without the parent being told; fetch the parent's children next time
+                node.subtreeStale = true;
+                continue;
+            }
+            if (visibleOnly && isPrunable(child, changed)) {
+                // Stays stale if it was, so it is read once it becomes visible
+                child.handleCurrent = false;
+                prunedNodes++;
+                continue;
+            }
+            if (changed) {
+                child.snapshot = snapshotOf(child.handle, child.nodeId, windowId);
+                child.stale = false;
+                fetchedNodes++;
+            } else {
+                reusedNodes++;
+            }
+            if (nodes != null) {
+                nodes.register(child.nodeId, child.handle.unwrap());
+            }
+            int childIndex = builder.add(child.snapshot, index);
+            if (seen.add(child.nodeId)) {
+                captureChildren(builder, child, childIndex, windowId, seen, nodes);
+            } else {
+                child.handleCurrent = false;
+            }
+            // Invisible containers are only kept for the visible nodes inside them
+            if (visibleOnly && !child.snapshot.isVisible() && builder.size() == childIndex + 1) {
+                builder.truncate(childIndex);
+            }
+        }
+    }
+
+    /**
+     * Whether a visible-only capture can leave out a node without reading it: an invisible leaf, or
+     * an invisible node entirely outside the window, whose children are then never fetched.
+     */
+    private boolean isPrunable(TreeMirror.Node node, boolean changed) {
+        boolean visible = changed ? node.handle.isVisibleToUser() : node.snapshot.isVisible();
+        if (visible) {
+            return false;
+        }
+        int childCount = node.children != null && !node.subtreeStale ? node.children.size() : node.handle.getChildCount();
+        if (childCount == 0) {
+            return true;
+        }
+        if (changed) {
+            node.handle.getBoundsInScreen(bounds);
+        } else {
+            NodeSnapshot snapshot = node.snapshot;
+            bounds.set(snapshot.getLeft(), snapshot.getTop(), snapshot.getRight(), snapshot.getBottom());
+        }
+        return !Rect.intersects(bounds, windowBounds);
+    }
+
+    private void fetchChildren(TreeMirror.Node node) {
+        // An older handle still lists the children it had when it was fetched
+        if (!node.handleCurrent && !node.handle.refresh()) {
+            mirror.setChildren(node, Collections.emptyList());
+            return;
+        }
+        node.handleCurrent = true;
+        int childCount = node.handle.getChildCount();
+        List<AccessibilityNodeInfoCompat> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; ++i) {
+            AccessibilityNodeInfoCompat child = node.handle.getChild(i);
+            if (child != null) {
+                children.add(child);
+            }
+        }
+        mirror.setChildren(node, children);
+    }
+
+    private NodeSnapshot snapshotOf(AccessibilityNodeInfoCompat node, String nodeId, int windowId) {
+        CharSequence className = node.getClassName();
+        String role = className != null ? pooled(simpleName(className)) : "??";
+        CharSequence text = AccessibilityNodeInfoUtils.getText(node);
+        CharSequence contentDescription = node.getContentDescription();
+
+        int flags = 0;
+        if (node.isVisibleToUser()) flags |= NodeSnapshot.FLAG_VISIBLE;
+        if (node.isEnabled()) flags |= NodeSnapshot.FLAG_ENABLED;
+        if (node.isClickable()) flags |= NodeSnapshot.FLAG_CLICKABLE;
+        if (node.isLongClickable()) flags |= NodeSnapshot.FLAG_LONG_CLICKABLE;
+        if (node.isScrollable()) flags |= NodeSnapshot.FLAG_SCROLLABLE;
+        if (node.isFocusable()) flags |= NodeSnapshot.FLAG_FOCUSABLE;
+        if (node.isFocused()) flags |= NodeSnapshot.FLAG_FOCUSED;
+        if (node.isSelected()) flags |= NodeSnapshot.FLAG_SELECTED;
+        if (node.isCheckable()) flags |= NodeSnapshot.FLAG_CHECKABLE;
+        if (node.isChecked()) flags |= NodeSnapshot.FLAG_CHECKED;
+        if (node.isEditable()) flags |= NodeSnapshot.FLAG_EDITABLE;
+        if (node.isAccessibilityFocused()) flags |= NodeSnapshot.FLAG_ACCESSIBILITY_FOCUSED;
+        if (node.isImportantForAccessibility()) flags |= NodeSnapshot.FLAG_IMPORTANT;
+
+        node.getBoundsInScreen(bounds);
+        return NodeSnapshot.node(node.hashCode(), nodeId, windowId, role, pooled(node.getViewIdResourceName()),
+                text != null ? text.toString().trim() : null,
+                contentDescription != null ? contentDescription.toString().trim() : null,
+                flags, bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
+    private String pooled(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = stringPool.get(value);
+        if (pooled == null) {
+            stringPool.put(value, value);
+            return value;
+        }
+        return pooled;
+    }
+
+    // Same as TreeDebug.getSimpleName
+    private static String simpleName(CharSequence fullName) {
+        int dotIndex = TextUtils.lastIndexOf(fullName, '.');
+        if (dotIndex < 0) {
+            dotIndex = 0;
+        }
+        return fullName.subSequence(dotIndex, fullName.length()).toString().replace(".", "");
+    }
+}
@@ -0,0 +1,20 @@
+package com.jwlilly.accessibilityinspector;
+
+/** Decides which nodes of a {@link TreeSnapshot} survive {@link TreeSnapshot#filter(SnapshotFilter)}. */
+public interface SnapshotFilter {
+
+    /** Keeps visible nodes, and invisible ones that still contain visible nodes. */
+    SnapshotFilter VISIBLE_OR_CONTAINER = (node, hasKeptChildren) -> node.isVisible() || hasKeptChildren;
+
+    /**
+     * For {@link TreeSnapshot#collapse(SnapshotFilter)}: the nodes the framework reports when the
+     * service does not ask for views that are not important for accessibility.
+     */
+    SnapshotFilter IMPORTANT = (node, hasKeptChildren) -> node.isImportantForAccessibility();
+
+    /**
+     * Called children first. {@code hasKeptChildren} says whether any child of the node was kept;
+     * rejecting the node drops those children too.
+     */
+    boolean keep(NodeSnapshot node, boolean hasKeptChildren);
+}
@@ -0,0 +1,356 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lookup tables over the nodes of a stable tree capture, so finds can be answered from memory
+ * while the UI has not changed since, without a single IPC to the app. View ids, class names and
+ * whole texts are looked up exactly; for substrings, text and content description are indexed by
+ * their lower-case trigrams, and candidates are then checked against the node.
+ *
+ * <p>Matches are copies of the node handles the capture registered, whose fields are read
+ * locally. The capture's own handles are refreshed in place by later captures on the main thread,
+ * so the index takes its copies while it is built there, and nothing in it changes afterwards:
+ * finds on the socket threads read the state it was built from. The capture must walk what a
+ * live find does, every window and invisible nodes too, or finds would miss nodes here that they
+ * find live.
+ */
+public final class SnapshotIndex {
+    private static final int GRAM = 3;
+    private static final int[] NONE = new int[0];
+
+    private final long uiGeneration;
+    private final long generation;
+    private final long builtAt = SystemClock.uptimeMillis();
+    private final AccessibilityNodeInfo[] handles;
+    // Hash code of each node's parent, which find results report, or null for window roots
+    private final Integer[] parentHashCodes;
+    // Position of each node's parent in this index and its depth below the window, for scoped finds
+    private final int[] parents;
+    private final int[] depths;
+    private final HashMap<String, Integer> byNodeId;
+    private final String[] lowerTexts;
+    private final String[] lowerDescriptions;
+    private final IdentityHashMap<AccessibilityNodeInfo, Integer> positions;
+    private final HashMap<String, int[]> byViewId;
+    private final HashMap<String, int[]> byClassName;
+    private final HashMap<String, int[]> byText;
+    private final HashMap<String, int[]> byGram;
+
+    private SnapshotIndex(long uiGeneration, long generation, List<AccessibilityNodeInfo> handles,
+                          List<Integer> parentHashCodes, int[] parents, int[] depths, HashMap<String, Integer> byNodeId) {
+        int size = handles.size();
+        this.uiGeneration = uiGeneration;
+        this.generation = generation;
+        this.handles = handles.toArray(new AccessibilityNodeInfo[0]);
+        this.parentHashCodes = parentHashCodes.toArray(new Integer[0]);
+        this.parents = parents;
+        this.depths = depths;
+        this.byNodeId = byNodeId;
+        this.lowerTexts = new String[size];
+        this.lowerDescriptions = new String[size];
+        this.positions = new IdentityHashMap<>(size);
+        HashMap<String, List<Integer>> viewIds = new HashMap<>();
+        HashMap<String, List<Integer>> classNames = new HashMap<>();
+        HashMap<String, List<Integer>> texts = new HashMap<>();
+        HashMap<String, List<Integer>> grams = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            AccessibilityNodeInfo node = this.handles[i];
+            positions.put(node, i);
+            add(viewIds, node.getViewIdResourceName(), i);
+            add(classNames, node.getClassName(), i);
+            CharSequence text = node.getText();
+            CharSequence description = node.getContentDescription();
+            add(texts, text, i);
+            if (description != null && (text == null || !description.toString().equals(text.toString()))) {
+                add(texts, description, i);
+            }
+            lowerTexts[i] = lower(text);
+            lowerDescriptions[i] = lower(description);
+            addGrams(grams, lowerTexts[i], i);
+            addGrams(grams, lowerDescriptions[i], i);
+        }
+        this.byViewId = freeze(viewIds);
+        this.byClassName = freeze(classNames);
+        this.byText = freeze(texts);
+        this.byGram = freeze(grams);
+    }
+
+    /**
+     * Indexes the nodes of {@code snapshot}, which must be the capture that registered its handles
+     * in {@code nodes}, before any filtering. {@code uiGeneration} is the one the capture started at.
+     * Runs on the thread the capture ran on.
+     */
+    public static SnapshotIndex build(TreeSnapshot snapshot, NodeRegistry.Generation nodes, long uiGeneration) {
+        List<AccessibilityNodeInfo> handles = new ArrayList<>(snapshot.size());
+        List<Integer> parentHashCodes = new ArrayList<>(snapshot.size());
+        // Snapshot positions to index positions; parents come before their children in both
+        int[] positions = new int[snapshot.size()];
+        int[] snapshotDepths = new int[snapshot.size()];
+        int[] parents = new int[snapshot.size()];
+        int[] depths = new int[snapshot.size()];
+        HashMap<String, Integer> byNodeId = new HashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            NodeSnapshot node = snapshot.getNode(i);
+            int parent = snapshot.getParent(i);
+            positions[i] = -1;
+            snapshotDepths[i] = parent >= 0 ? snapshotDepths[parent] + 1 : 0;
+            if (node.isWindow()) {
+                continue;
+            }
+            AccessibilityNodeInfo handle = nodes.get(node.getNodeId());
+            if (handle == null) {
+                continue;
+            }
+            positions[i] = handles.size();
+            parents[handles.size()] = parent >= 0 ? positions[parent] : -1;
+            depths[handles.size()] = snapshotDepths[i];
+            byNodeId.put(node.getNodeId(), handles.size());
+            handles.add(AccessibilityNodeInfo.obtain(handle));
+            // A window's id is the hash code of its root, as for nodes
+            parentHashCodes.add(parent >= 0 ? snapshot.getNode(parent).getId() : null);
+        }
+        return new SnapshotIndex(uiGeneration, nodes.getNumber(), handles, parentHashCodes,
+                Arrays.copyOf(parents, handles.size()), Arrays.copyOf(depths, handles.size()), byNodeId);
+    }
+
+    /** The UI generation the capture started at; the index answers finds while it is current. */
+    public long getUiGeneration() {
+        return uiGeneration;
+    }
+
+    /**
+     * Whether the index is too old to answer finds even though no event arrived, as events are
+     * not sent for every change; the same interval after which {@link TreeMirror} re-fetches.
+     */
+    public boolean isExpired(long now) {
+        return now - builtAt >= TreeMirror.FULL_REFRESH_INTERVAL_MS;
+    }
+
+    /** The node registry generation of the capture, whose handles the matches are. */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int size() {
+        return handles.length;
+    }
+
+    /** The hash code of the parent of a node this index returned, or null for a window root. */
+    public Integer getParentHashCode(AccessibilityNodeInfo node) {
+        Integer position = positions.get(node);
+        return position != null ? parentHashCodes[position] : null;
+    }
+
+    /** Whether the node with this id was captured, so finds scoped to it can be answered here. */
+    public boolean contains(String nodeId) {
+        return byNodeId.containsKey(nodeId);
+    }
+
+    /**
+     * The matches the options allow, in their order and up to their limit. Finds return nodes in
+     * the capture's depth-first order; breadth-first sorts them by depth, keeping that order
+     * within a level. The scope node must be one this index {@link #contains(String)}.
+     */
+    public List<AccessibilityNodeInfo> restrict(List<AccessibilityNodeInfo> matches, FindOptions options) {
+        if (!options.isScoped() && !options.isBreadthFirst()
+                && (options.getLimit() == 0 || matches.size() <= options.getLimit())) {
+            return matches;
+        }
+        Integer scope = options.getScopeNodeId() != null ? byNodeId.get(options.getScopeNodeId()) : null;
+        List<AccessibilityNodeInfo> results = new ArrayList<>();
+        Rect bounds = new Rect();
+        for (AccessibilityNodeInfo node : matches) {
+            if ((scope == null || isWithin(positions.get(node), scope)) && options.accepts(node, bounds)) {
+                results.add(node);
+                // Deeper nodes found later may still come first breadth-first
+                if (!options.isBreadthFirst() && options.isLimitReached(results.size())) {
+                    break;
+                }
+            }
+        }
+        if (options.isBreadthFirst()) {
+            // A stable sort, so nodes at the same depth stay in document order
+            results.sort(Comparator.comparingInt(node -> depths[positions.get(node)]));
+            if (options.getLimit() > 0 && results.size() > options.getLimit()) {
+                results = new ArrayList<>(results.subList(0, options.getLimit()));
+            }
+        }
+        return results;
+    }
+
+    private boolean isWithin(int position, int ancestor) {
+        for (int p = position; p >= 0; p = parents[p]) {
+            if (p == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Nodes with the view id, as findAccessibilityNodeInfosByViewId would find them. */
+    public List<AccessibilityNodeInfo> findByViewId(String viewId) {
+        return nodes(byViewId.getOrDefault(viewId, NONE));
+    }
+
+    /** Nodes whose text or content description is {@code text}, case-sensitive. */
+    public List<AccessibilityNodeInfo> findByExactText(String text) {
+        return nodes(byText.getOrDefault(text, NONE));
+    }
+
+    /**
+     * Nodes whose text or content description contains {@code text} ignoring case, as
+     * findAccessibilityNodeInfosByText would find them.
+     */
+    public List<AccessibilityNodeInfo> findByText(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        List<AccessibilityNodeInfo> results = new ArrayList<>();
+        int[] candidates = candidates(lower);
+        for (int i = 0; i < (candidates != null ? candidates.length : handles.length); i++) {
+            int position = candidates != null ? candidates[i] : i;
+            if (contains(lowerTexts[position], lower) || contains(lowerDescriptions[position], lower)) {
+                results.add(handles[position]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Nodes the query matches. With {@code properties}, the find request it was compiled from, a
+     * view id or class name in it narrows the nodes to test to those with that value.
+     */
+    public List<AccessibilityNodeInfo> find(NodeQuery query, JSONObject properties) {
+        int[] candidates = null;
+        if (properties != null) {
+            Iterator<String> keys = properties.keys();
+            while (keys.hasNext() && candidates == null) {
+                String key = keys.next();
+                NodeQuery.Property property = NodeQuery.Property.forName(key);
+                if (property == NodeQuery.Property.VIEW_ID) {
+                    candidates = byViewId.getOrDefault(properties.opt(key).toString(), NONE);
+                } else if (property == NodeQuery.Property.CLASS_NAME) {
+                    candidates = byClassName.getOrDefault(properties.opt(key).toString(), NONE);
+                }
+            }
+        }
+        List<AccessibilityNodeInfo> results = new ArrayList<>();
+        for (int i = 0; i < (candidates != null ? candidates.length : handles.length); i++) {
+            AccessibilityNodeInfo node = handles[candidates != null ? candidates[i] : i];
+            if (query.matches(node)) {
+                results.add(node);
+            }
+        }
+        return results;
+    }
+
+    // Nodes holding every trigram of the text, or null to test them all when it is too short
+    private int[] candidates(String lower) {
+        if (lower.length() < GRAM) {
+            return null;
+        }
+        int[] smallest = null;
+        List<int[]> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM <= lower.length(); i++) {
+            int[] list = byGram.getOrDefault(lower.substring(i, i + GRAM), NONE);
+            if (list.length == 0) {
+                return NONE;
+            }
+            lists.add(list);
+            if (smallest == null || list.length < smallest.length) {
+                smallest = list;
+            }
+        }
+        // Intersect the rest into the shortest list; all of them are sorted
+        int[] result = smallest;
+        for (int[] list : lists) {
+            if (list != smallest) {
+                result = intersect(result, list);
+            }
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private List<AccessibilityNodeInfo> nodes(int[] positions) {
+        if (positions.length == 0) {
+            return Collections.emptyList();
+        }
+        List<AccessibilityNodeInfo> results = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            results.add(handles[position]);
+        }
+        return results;
+    }
+
+    private static void add(HashMap<String, List<Integer>> map, CharSequence key, int position) {
+        if (key == null) {
+            return;
+        }
+        List<Integer> list = map.computeIfAbsent(key.toString(), k -> new ArrayList<>(1));
+        // Text and description may add the same node twice
+        if (list.isEmpty() || list.get(list.size() - 1) != position) {
+            list.add(position);
+        }
+    }
+
+    private static void addGrams(HashMap<String, List<Integer>> map, String lower, int position) {
+        if (lower == null) {
+            return;
+        }
+        for (int i = 0; i + GRAM <= lower.length(); i++) {
+            add(map, lower.substring(i, i + GRAM), position);
+        }
+    }
+
+    private static HashMap<String, int[]> freeze(HashMap<String, List<Integer>> map) {
+        HashMap<String, int[]> frozen = new HashMap<>(map.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Integer>> entry : map.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] positions = new int[list.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = list.get(i);
+            }
+            frozen.put(entry.getKey(), positions);
+        }
+        return frozen;
+    }
+
+    private static String lower(CharSequence value) {
+        return value != null ? value.toString().toLowerCase(Locale.ROOT) : null;
+    }
+
+    private static boolean contains(String value, String lower) {
+        return value != null && value.contains(lower);
+    }
+}
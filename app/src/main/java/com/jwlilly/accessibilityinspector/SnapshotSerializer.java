@@ -0,0 +1,22 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Turns a {@link TreeSnapshot} into a wire or log format. The header holds the message fields
+ * that come before the tree, such as "type", "timestamp" and "generation".
+ */
+public interface SnapshotSerializer<T> {
+
+    /** The JSON text clients receive by default. */
+    SnapshotSerializer<String> JSON = new JsonSnapshotSerializer(false);
+
+    /** The frame sent to clients that negotiated the binary encoding. */
+    SnapshotSerializer<byte[]> BINARY = BinaryTreeEncoder::encode;
+
+    /** An indented outline for logs. */
+    SnapshotSerializer<String> TEXT = new TextSnapshotSerializer();
+
+    T serialize(TreeSnapshot snapshot, JSONObject header) throws JSONException;
+}
@@ -21,7 +21,8 @@ import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SocketService extends Service {
     AsyncHttpServer server;
@@ -54,6 +55,7 @@ public class SocketService extends Service {
         if(server == null) {
             server = new AsyncHttpServer();
             requestCallback = new SocketRequestCallback();
+            MessageBus.getInstance().setConsumer(requestCallback);
             Toast.makeText(context, "Inspector Service Created", Toast.LENGTH_LONG).show();
         } else {
             Toast.makeText(context, "Inspector Service already running", Toast.LENGTH_LONG).show();
@@ -95,7 +97,8 @@ public class SocketService extends Service {
             String messageData = intent.getStringExtra("messageData");
             Log.d("SERVER", "Message data: " + (messageData != null ? messageData.substring(0, Math.min(50, messageData.length())) + "..." : "null"));
             if (messageData != null) {
-                requestCallback.BroadcastMessage(messageData);
+                String messageType = intent.getStringExtra("messageType");
+                MessageBus.getInstance().publish(messageType, messageData);
             } else {
                 Log.w("SERVER", "Received BROADCAST_MESSAGE with null messageData");
             }
@@ -106,6 +109,7 @@ public class SocketService extends Service {
     @Override
     public void onDestroy() {
         Toast.makeText(this, "Inspector Service Stopped", Toast.LENGTH_LONG).show();
+        MessageBus.getInstance().setConsumer(null);
         server.stop();
     }
 
@@ -119,11 +123,15 @@ public class SocketService extends Service {
         manager.createNotificationChannel(serviceChannel);
     }
 
-    private class SocketRequestCallback implements AsyncHttpServer.WebSocketRequestCallback {
-        ArrayList<WebSocket> _sockets = new ArrayList<>();
+    private class SocketRequestCallback implements AsyncHttpServer.WebSocketRequestCallback, MessageBus.Consumer {
+        // Written from the server thread, iterated from the message bus dispatch thread
+        Map<WebSocket, ClientConnection> _sockets = new ConcurrentHashMap<>();
+        // Recent stable trees, for clients that receive patches instead of full trees
+        StableTreeHistory stableTrees = new StableTreeHistory(StableTreeHistory.DEFAULT_CAPACITY);
         @Override
         public void onConnected(WebSocket webSocket, AsyncHttpServerRequest request) {
-            _sockets.add(webSocket);
+            ClientConnection connection = new ClientConnection(webSocket, stableTrees);
+            _sockets.put(webSocket, connection);
             Log.d("SERVER", "client connected");
             webSocket.setStringCallback(s -> {
                 if(s != null) {
@@ -138,42 +146,166 @@ public class SocketService extends Service {
                             if (accessibilityServiceInstance != null) {
                                 accessibilityServiceInstance.cancelPendingStabilityCapture();
                             }
-                            Intent intent = new Intent("com.jwlilly.accessibilityinspector");
-                            intent.setAction("A11yInspector");
-                            // Add optional visibleOnly parameter (defaults to false for backward compatibility)
-                            boolean visibleOnly = jsonObject.optBoolean("visibleOnly", false);
-                            intent.putExtra("visibleOnly", visibleOnly);
-                            sendBroadcast(intent);
+                            // visibleOnly, projection, maxDepth and maxNodes are optional
+                            CaptureRequest captureRequest;
+                            try {
+                                captureRequest = CaptureRequest.fromJson(jsonObject, false);
+                            } catch (IllegalArgumentException e) {
+                                JSONObject errorResponse = new JSONObject();
+                                errorResponse.put("type", "captureError");
+                                errorResponse.put("success", false);
+                                errorResponse.put("message", e.getMessage());
+                                webSocket.send(errorResponse.toString());
+                                return;
+                            }
+                            // A client polling with the etag of its tree only needs to hear that it is current
+                            if (jsonObject.has("ifNoneMatch") && accessibilityServiceInstance != null
+                                    && accessibilityServiceInstance.isTreeCurrent(captureRequest, jsonObject.optLong("ifNoneMatch", -1))) {
+                                InspectorMetrics.increment("capture.notModified");
+                                JSONObject notModified = new JSONObject();
+                                notModified.put("type", "tree");
+                                notModified.put("success", true);
+                                notModified.put("notModified", true);
+                                notModified.put("etag", jsonObject.optLong("ifNoneMatch", -1));
+                                webSocket.send(notModified.toString());
+                                return;
+                            }
+                            // The tree goes to every client, so a request equal to one under way just waits for it
+                            if (CaptureCoordinator.getInstance().join(captureRequest)) {
+                                sendBroadcast(captureRequest.toIntent());
+                            }
                         }
                         if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("ping")) {
                             JSONObject pongObject = new JSONObject();
                             pongObject.put("message", "pong");
                             webSocket.send(pongObject.toString());
                         }
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("hello")) {
+                            JSONObject helloResponse = new JSONObject();
+                            helloResponse.put("type", "hello");
+                            connection.configure(jsonObject, helloResponse);
+                            webSocket.send(helloResponse.toString());
+                        }
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("ackTree")) {
+                            long generation = jsonObject.optLong("generation", -1);
+                            if (!connection.acknowledge(generation)) {
+                                JSONObject ackResponse = new JSONObject();
+                                ackResponse.put("type", "ackTree");
+                                ackResponse.put("success", false);
+                                ackResponse.put("message", "Unknown generation " + generation + ", send resync");
+                                webSocket.send(ackResponse.toString());
+                            }
+                        }
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("resync")) {
+                            if (!connection.resync()) {
+                                JSONObject resyncResponse = new JSONObject();
+                                resyncResponse.put("type", "resync");
+                                resyncResponse.put("success", false);
+                                resyncResponse.put("message", "No stable tree captured yet");
+                                webSocket.send(resyncResponse.toString());
+                            }
+                        }
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("metrics")) {
+                            JSONObject metricsResponse = new JSONObject();
+                            metricsResponse.put("type", "metrics");
+                            metricsResponse.put("clients", _sockets.size());
+                            JSONObject metrics = InspectorMetrics.toJson();
+                            long compressedBytes = InspectorMetrics.get("compression.outputBytes");
+                            if (compressedBytes > 0) {
+                                // Derived here since the counters only hold integer totals
+                                double ratio = (double) InspectorMetrics.get("compression.inputBytes") / compressedBytes;
+                                metrics.getJSONObject("compression").put("ratio", Math.round(ratio * 100) / 100.0);
+                            }
+                            metricsResponse.put("metrics", metrics);
+                            webSocket.send(metricsResponse.toString());
+                        }
                         if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("captureNotImportant")) {
                             // Cancel any pending stability capture to avoid collision
                             if (accessibilityServiceInstance != null) {
                                 accessibilityServiceInstance.cancelPendingStabilityCapture();
                             }
-                            Intent intent = new Intent("com.jwlilly.accessibilityinspector");
-                            intent.setAction("A11yInspectorImportant");
-                            // Add optional visibleOnly parameter (defaults to false for backward compatibility)
-                            boolean visibleOnly = jsonObject.optBoolean("visibleOnly", false);
-                            intent.putExtra("visibleOnly", visibleOnly);
-                            sendBroadcast(intent);
+                            // visibleOnly, projection, maxDepth and maxNodes are optional
+                            CaptureRequest captureRequest;
+                            try {
+                                captureRequest = CaptureRequest.fromJson(jsonObject, true);
+                            } catch (IllegalArgumentException e) {
+                                JSONObject errorResponse = new JSONObject();
+                                errorResponse.put("type", "captureError");
+                                errorResponse.put("success", false);
+                                errorResponse.put("message", e.getMessage());
+                                webSocket.send(errorResponse.toString());
+                                return;
+                            }
+                            // A client polling with the etag of its tree only needs to hear that it is current
+                            if (jsonObject.has("ifNoneMatch") && accessibilityServiceInstance != null
+                                    && accessibilityServiceInstance.isTreeCurrent(captureRequest, jsonObject.optLong("ifNoneMatch", -1))) {
+                                InspectorMetrics.increment("capture.notModified");
+                                JSONObject notModified = new JSONObject();
+                                notModified.put("type", "tree");
+                                notModified.put("success", true);
+                                notModified.put("notModified", true);
+                                notModified.put("etag", jsonObject.optLong("ifNoneMatch", -1));
+                                webSocket.send(notModified.toString());
+                                return;
+                            }
+                            // The tree goes to every client, so a request equal to one under way just waits for it
+                            if (CaptureCoordinator.getInstance().join(captureRequest)) {
+                                sendBroadcast(captureRequest.toIntent());
+                            }
+                        }
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("continue")) {
+                            String token = jsonObject.optString("token", "");
+                            if (token.isEmpty() || accessibilityServiceInstance == null) {
+                                JSONObject errorResponse = new JSONObject();
+                                errorResponse.put("type", "treeContinuation");
+                                errorResponse.put("success", false);
+                                errorResponse.put("message", token.isEmpty() ? "Missing required parameter: token"
+                                        : "Accessibility service not available");
+                                webSocket.send(errorResponse.toString());
+                                return;
+                            }
+                            accessibilityServiceInstance.requestContinuation(token);
+                        }
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("expand")) {
+                            String nodeId = jsonObject.optString("nodeId", "");
+                            CaptureRequest expandRequest;
+                            try {
+                                if (nodeId.isEmpty()) {
+                                    throw new IllegalArgumentException("Missing required parameter: nodeId");
+                                }
+                                expandRequest = CaptureRequest.fromJson(jsonObject,
+                                        jsonObject.optBoolean("includeNotImportant", false));
+                            } catch (IllegalArgumentException e) {
+                                JSONObject errorResponse = new JSONObject();
+                                errorResponse.put("type", "subtree");
+                                errorResponse.put("success", false);
+                                errorResponse.put("message", e.getMessage());
+                                webSocket.send(errorResponse.toString());
+                                return;
+                            }
+                            // Runs on the main thread like captures, whose buffer and handles it shares
+                            Intent expandIntent = expandRequest.toIntent();
+                            expandIntent.setAction("A11yInspectorExpand");
+                            expandIntent.putExtra("nodeId", nodeId);
+                            sendBroadcast(expandIntent);
                         }
                         if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("performAction")) {
+                            String nodeId = jsonObject.optString("nodeId", null);
                             String resourceId = jsonObject.optString("resourceId", null);
                             String hashCode = jsonObject.optString("hashCode", null);
                             String action = jsonObject.optString("action", "");
                             String text = jsonObject.optString("text", null);
 
-                            // Validate that we have either resourceId or hashCode, and an action
-                            if ((resourceId != null && !resourceId.isEmpty()) || (hashCode != null && !hashCode.isEmpty())) {
+                            // Validate that we have a nodeId, resourceId or hashCode, and an action
+                            if ((nodeId != null && !nodeId.isEmpty()) || (resourceId != null && !resourceId.isEmpty())
+                                    || (hashCode != null && !hashCode.isEmpty())) {
                                 if (!action.isEmpty()) {
                                     Intent actionIntent = new Intent("com.jwlilly.accessibilityinspector");
                                     actionIntent.setAction("A11yInspectorAction");
 
+                                    if (nodeId != null && !nodeId.isEmpty()) {
+                                        actionIntent.putExtra("nodeId", nodeId);
+                                    }
                                     if (resourceId != null && !resourceId.isEmpty()) {
                                         actionIntent.putExtra("resourceId", resourceId);
                                     }
@@ -199,7 +331,7 @@ public class SocketService extends Service {
                                 JSONObject errorResponse = new JSONObject();
                                 errorResponse.put("type", "actionResult");
                                 errorResponse.put("success", false);
-                                errorResponse.put("message", "Missing required parameter: either resourceId or hashCode must be provided");
+                                errorResponse.put("message", "Missing required parameter: one of nodeId, resourceId or hashCode must be provided");
                                 webSocket.send(errorResponse.toString());
                             }
                         }
@@ -292,7 +424,10 @@ public class SocketService extends Service {
                                 if (pattern != null && !pattern.isEmpty()) {
                                     boolean verbose = jsonObject.optBoolean("verbose", false);
                                     // Direct method call to regex implementation
-                                    accessibilityServiceInstance.findByRegex(pattern, verbose);
+                                    FindOptions options = findOptions(jsonObject, webSocket);
+                                    if (options != null) {
+                                        accessibilityServiceInstance.findByRegex(pattern, verbose, options);
+                                    }
                                 } else {
                                     Log.w("SERVER", "Missing pattern parameter");
                                     JSONObject errorResponse = new JSONObject();
@@ -321,7 +456,10 @@ public class SocketService extends Service {
                                 if (viewId != null && !viewId.isEmpty()) {
                                     boolean verbose = jsonObject.optBoolean("verbose", false);
                                     // Direct method call
-                                    accessibilityServiceInstance.findByViewId(viewId, verbose);
+                                    FindOptions options = findOptions(jsonObject, webSocket);
+                                    if (options != null) {
+                                        accessibilityServiceInstance.findByViewId(viewId, verbose, options);
+                                    }
                                 } else {
                                     Log.w("SERVER", "Missing viewId parameter");
                                     JSONObject errorResponse = new JSONObject();
@@ -350,7 +488,10 @@ public class SocketService extends Service {
                                 
                                 if (text != null && !text.isEmpty()) {
                                     // Direct method call
-                                    accessibilityServiceInstance.findByText(text, verbose);
+                                    FindOptions options = findOptions(jsonObject, webSocket);
+                                    if (options != null) {
+                                        accessibilityServiceInstance.findByText(text, verbose, options);
+                                    }
                                 } else {
                                     Log.w("SERVER", "Missing text parameter");
                                     JSONObject errorResponse = new JSONObject();
@@ -379,7 +520,10 @@ public class SocketService extends Service {
                                 if (text != null && !text.isEmpty()) {
                                     boolean verbose = jsonObject.optBoolean("verbose", false);
                                     // Direct method call to custom implementation
-                                    accessibilityServiceInstance.customFindByText(text, verbose);
+                                    FindOptions options = findOptions(jsonObject, webSocket);
+                                    if (options != null) {
+                                        accessibilityServiceInstance.customFindByText(text, verbose, options);
+                                    }
                                 } else {
                                     Log.w("SERVER", "Missing text parameter");
                                     JSONObject errorResponse = new JSONObject();
@@ -408,7 +552,10 @@ public class SocketService extends Service {
                                 if (viewId != null && !viewId.isEmpty()) {
                                     boolean verbose = jsonObject.optBoolean("verbose", false);
                                     // Direct method call to custom implementation
-                                    accessibilityServiceInstance.customFindByViewId(viewId, verbose);
+                                    FindOptions options = findOptions(jsonObject, webSocket);
+                                    if (options != null) {
+                                        accessibilityServiceInstance.customFindByViewId(viewId, verbose, options);
+                                    }
                                 } else {
                                     Log.w("SERVER", "Missing viewId parameter");
                                     JSONObject errorResponse = new JSONObject();
@@ -437,7 +584,10 @@ public class SocketService extends Service {
                                 if (properties != null) {
                                     boolean verbose = jsonObject.optBoolean("verbose", false);
                                     // Direct method call to properties implementation
-                                    accessibilityServiceInstance.findByProps(properties, verbose);
+                                    FindOptions options = findOptions(jsonObject, webSocket);
+                                    if (options != null) {
+                                        accessibilityServiceInstance.findByProps(properties, verbose, options);
+                                    }
                                 } else {
                                     Log.w("SERVER", "Missing properties parameter");
                                     JSONObject errorResponse = new JSONObject();
@@ -455,6 +605,62 @@ public class SocketService extends Service {
                                 webSocket.send(errorResponse.toString());
                             }
                         }
+
+                        // Handle query (named selectors evaluated in one traversal)
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("query")) {
+                            Log.d("SERVER", "Processing query request");
+                            
+                            if (accessibilityServiceInstance != null) {
+                                JSONObject selectors = jsonObject.optJSONObject("selectors");
+                                
+                                if (selectors != null && selectors.length() > 0) {
+                                    boolean verbose = jsonObject.optBoolean("verbose", false);
+                                    accessibilityServiceInstance.query(selectors, verbose);
+                                } else {
+                                    Log.w("SERVER", "Missing selectors parameter");
+                                    JSONObject errorResponse = new JSONObject();
+                                    errorResponse.put("type", "queryResult");
+                                    errorResponse.put("success", false);
+                                    errorResponse.put("message", "Missing required parameter: selectors");
+                                    webSocket.send(errorResponse.toString());
+                                }
+                            } else {
+                                Log.e("SERVER", "AccessibilityInspector instance not available");
+                                JSONObject errorResponse = new JSONObject();
+                                errorResponse.put("type", "queryResult");
+                                errorResponse.put("success", false);
+                                errorResponse.put("message", "Accessibility service not available");
+                                webSocket.send(errorResponse.toString());
+                            }
+                        }
+
+                        // Handle waitFor (answered once, when the condition holds or the timeout runs out)
+                        if(jsonObject.has("message") && jsonObject.getString("message").equalsIgnoreCase("waitFor")) {
+                            Log.d("SERVER", "Processing waitFor request");
+
+                            if (accessibilityServiceInstance != null) {
+                                WaitRequest waitRequest;
+                                try {
+                                    waitRequest = WaitRequest.fromJson(jsonObject);
+                                } catch (IllegalArgumentException e) {
+                                    Log.w("SERVER", "Invalid waitFor request: " + e.getMessage());
+                                    JSONObject errorResponse = new JSONObject();
+                                    errorResponse.put("type", "waitForResult");
+                                    errorResponse.put("success", false);
+                                    errorResponse.put("message", e.getMessage());
+                                    webSocket.send(errorResponse.toString());
+                                    return;
+                                }
+                                accessibilityServiceInstance.waitFor(waitRequest);
+                            } else {
+                                Log.e("SERVER", "AccessibilityInspector instance not available");
+                                JSONObject errorResponse = new JSONObject();
+                                errorResponse.put("type", "waitForResult");
+                                errorResponse.put("success", false);
+                                errorResponse.put("message", "Accessibility service not available");
+                                webSocket.send(errorResponse.toString());
+                            }
+                        }
                     } catch(JSONException e) {
                         Log.d("ERROR", e.getMessage());
                         try {
@@ -476,17 +682,47 @@ public class SocketService extends Service {
                         Log.e("SERVER", "An error occurred", ex);
                 } finally {
                     Log.d("SERVER", "closed");
-                    _sockets.remove(webSocket);
+                    ClientConnection closed = _sockets.remove(webSocket);
+                    if (closed != null) {
+                        closed.close();
+                    }
                 }
             });
 
             webSocket.setEndCallback(ex -> Log.d("SERVER", "ended: " + ex.getMessage()));
         }
 
-        public void BroadcastMessage(String message) {
-            Log.d("SERVER", "Broadcasting message to " + _sockets.size() + " clients: " + message.substring(0, Math.min(100, message.length())) + "...");
-            for (WebSocket socket : _sockets)
-                socket.send(message);
+        // The limit, window, bounds, scope and order of a find message, or null once the client has
+        // been told what is wrong with them
+        private FindOptions findOptions(JSONObject jsonObject, WebSocket webSocket) throws JSONException {
+            try {
+                return FindOptions.fromJson(jsonObject);
+            } catch (IllegalArgumentException e) {
+                JSONObject errorResponse = new JSONObject();
+                errorResponse.put("type", "findResult");
+                errorResponse.put("success", false);
+                errorResponse.put("message", e.getMessage());
+                webSocket.send(errorResponse.toString());
+                return null;
+            }
+        }
+
+        @Override
+        public void onMessage(OutboundMessage message) {
+            if (message.getType().equals("stableTree")) {
+                stableTrees.record(message);
+            }
+            BroadcastMessage(message);
+            MessageBus.getInstance().recordSent(message);
+        }
+
+        // Hands the message to every client's send queue; the queues write to the sockets
+        public void BroadcastMessage(OutboundMessage message) {
+            // Tree payloads are serialized lazily per encoding, so only log their type
+            String preview = message.hasTree() ? message.getType() : message.getPayload().substring(0, Math.min(100, message.getPayload().length())) + "...";
+            Log.d("SERVER", "Broadcasting message to " + _sockets.size() + " clients: " + preview);
+            for (ClientConnection connection : _sockets.values())
+                connection.enqueue(message);
         }
     }
 
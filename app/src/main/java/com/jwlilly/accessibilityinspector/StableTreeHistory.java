@@ -0,0 +1,123 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The last few stableTree messages by generation, used to send clients in delta mode a patch
+ * against the tree they last acknowledged instead of the whole tree.
+ *
+ * <p>Patches are computed lazily on first use and shared by every client with the same base.
+ */
+public class StableTreeHistory {
+    private static final String LOG_TAG = "StableTreeHistory";
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private static class Entry {
+        final OutboundMessage message;
+        TreeDelta.FlatTree flat;
+        boolean flattened = false;
+
+        Entry(OutboundMessage message) {
+            this.message = message;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+    // A null value means the patch was not worth sending and the full tree goes out instead
+    private final HashMap<String, OutboundMessage> patches = new HashMap<>();
+
+    public StableTreeHistory(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public synchronized void record(OutboundMessage message) {
+        long generation = message.getGeneration();
+        if (generation < 0) {
+            return;
+        }
+        entries.put(generation, new Entry(message));
+        Iterator<Long> iterator = entries.keySet().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        // Only patches towards the newest tree are useful from now on
+        patches.clear();
+    }
+
+    public synchronized boolean contains(long generation) {
+        return entries.containsKey(generation);
+    }
+
+    /** The newest stableTree message, or null if none has been captured yet. */
+    public synchronized OutboundMessage latest() {
+        OutboundMessage latest = null;
+        for (Entry entry : entries.values()) {
+            latest = entry.message;
+        }
+        return latest;
+    }
+
+    /**
+     * Returns a "stableTreeDelta" message that turns the tree of {@code baseGeneration} into
+     * {@code message}, or null if the full tree should be sent: the base is unknown or too old, the
+     * trees cannot be keyed reliably, or most of the tree changed anyway.
+     */
+    public synchronized OutboundMessage deltaFor(long baseGeneration, OutboundMessage message) {
+        long generation = message.getGeneration();
+        Entry base = entries.get(baseGeneration);
+        Entry current = entries.get(generation);
+        if (baseGeneration < 0 || base == null || current == null) {
+            InspectorMetrics.increment("delta.fullNoBase");
+            return null;
+        }
+        String patchKey = baseGeneration + ":" + generation;
+        if (patches.containsKey(patchKey)) {
+            return patches.get(patchKey);
+        }
+
+        OutboundMessage patchMessage = null;
+        try {
+            TreeDelta.FlatTree baseTree = flatten(base);
+            TreeDelta.FlatTree currentTree = flatten(current);
+            if (baseTree != null && currentTree != null) {
+                JSONObject patch = TreeDelta.diff(baseTree, currentTree);
+                int patchSize = TreeDelta.patchSize(patch);
+                if (patchSize <= currentTree.size() / 2) {
+                    patch.put("type", "stableTreeDelta");
+                    patch.put("generation", generation);
+                    patch.put("baseGeneration", baseGeneration);
+                    patch.put("timestamp", current.message.getField("timestamp"));
+                    patchMessage = new OutboundMessage("stableTreeDelta", patch.toString());
+                    InspectorMetrics.increment("delta.patches");
+                    InspectorMetrics.add("delta.patchedNodes", patchSize);
+                } else {
+                    InspectorMetrics.increment("delta.fullLargeChange");
+                }
+            } else {
+                InspectorMetrics.increment("delta.fullDuplicateKeys");
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to build tree patch: " + e.getMessage());
+        }
+        patches.put(patchKey, patchMessage);
+        return patchMessage;
+    }
+
+    private TreeDelta.FlatTree flatten(Entry entry) {
+        if (!entry.flattened) {
+            TreeSnapshot snapshot = entry.message.getSnapshot();
+            entry.flat = snapshot != null ? TreeDelta.flatten(snapshot) : null;
+            entry.flattened = true;
+        }
+        return entry.flat;
+    }
+}
@@ -0,0 +1,63 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/** Writes a snapshot as an indented outline, one node per line, for debug logging. */
+public class TextSnapshotSerializer implements SnapshotSerializer<String> {
+
+    @Override
+    public String serialize(TreeSnapshot snapshot, JSONObject header) {
+        StringBuilder sb = new StringBuilder(snapshot.size() * 48);
+        if (header != null) {
+            Iterator<String> keys = header.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                sb.append(key).append(": ").append(header.opt(key)).append('\n');
+            }
+        }
+        for (int window : snapshot.getWindows()) {
+            appendNode(sb, snapshot, window, "");
+        }
+        return sb.toString();
+    }
+
+    private void appendNode(StringBuilder sb, TreeSnapshot snapshot, int index, String indent) {
+        NodeSnapshot node = snapshot.getNode(index);
+        sb.append(indent).append('(').append(node.getId()).append(") ").append(node.getRole());
+        if (node.isWindow()) {
+            sb.append(' ').append(node.getWindowId());
+            appendQuoted(sb, node.getTitle());
+        } else {
+            appendQuoted(sb, node.getText());
+            appendQuoted(sb, node.getContentDescription());
+            if (node.getResourceId() != null) {
+                sb.append(" [").append(node.getResourceId()).append(']');
+            }
+            if (!node.isVisible()) {
+                sb.append(" invisible");
+            }
+            if (node.hasFlag(NodeSnapshot.FLAG_CLICKABLE)) {
+                sb.append(" clickable");
+            }
+            if (node.hasFlag(NodeSnapshot.FLAG_SCROLLABLE)) {
+                sb.append(" scrollable");
+            }
+            if (!node.hasFlag(NodeSnapshot.FLAG_ENABLED)) {
+                sb.append(" disabled");
+            }
+        }
+        sb.append('\n');
+        String childIndent = indent + "  ";
+        for (int child : snapshot.getChildren(index)) {
+            appendNode(sb, snapshot, child, childIndent);
+        }
+    }
+
+    private static void appendQuoted(StringBuilder sb, String value) {
+        if (value != null) {
+            sb.append(" \"").append(value).append('"');
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The last tree message sent for each set of capture options, stamped with the UI generation it
+ * was captured at. The generation goes up with every accessibility event that can change the tree,
+ * so while it stands still a repeat capture can be answered with the stored bytes.
+ *
+ * <p>Like {@link TreeMirror}, entries are also dropped after
+ * {@link TreeMirror#FULL_REFRESH_INTERVAL_MS}, since not every layout change sends an event.
+ */
+public class TreeCache {
+    static final int MAX_ENTRIES = 8;
+
+    private static final class CachedTree {
+        final long uiGeneration;
+        final long capturedAt;
+        final byte[] message;
+
+        CachedTree(long uiGeneration, long capturedAt, byte[] message) {
+            this.uiGeneration = uiGeneration;
+            this.capturedAt = capturedAt;
+            this.message = message;
+        }
+    }
+
+    // Least recently used first
+    private final LinkedHashMap<CaptureRequest, CachedTree> entries =
+            new LinkedHashMap<CaptureRequest, CachedTree>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CaptureRequest, CachedTree> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /** The tree message captured for the request at {@code uiGeneration}, or null if there is none. */
+    public synchronized byte[] get(CaptureRequest request, long uiGeneration) {
+        CachedTree entry = entries.get(request);
+        if (entry == null || entry.uiGeneration != uiGeneration
+                || SystemClock.uptimeMillis() - entry.capturedAt >= TreeMirror.FULL_REFRESH_INTERVAL_MS) {
+            return null;
+        }
+        return entry.message;
+    }
+
+    public synchronized void put(CaptureRequest request, long uiGeneration, byte[] message) {
+        entries.put(request, new CachedTree(uiGeneration, SystemClock.uptimeMillis(), message));
+    }
+}
@@ -0,0 +1,139 @@
+package com.jwlilly.accessibilityinspector;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Computes patches between two tree snapshots so clients in delta mode only receive what changed.
+ *
+ * <p>Nodes are keyed by their "nodeId", except windows which are keyed "window:" + windowId. The
+ * "id" is only the key of nodes without a node id, since hash codes can collide. A
+ * patch lists the added, changed and removed keys; added and changed entries carry the parent key,
+ * the ordered child keys and the subtree hash, and the node fields (everything but "children" and
+ * "hash") when those changed. Fields are compared by the nodes' content hashes plus their ids.
+ */
+public class TreeDelta {
+    private static final JsonSnapshotSerializer FIELDS = new JsonSnapshotSerializer(false);
+
+    private TreeDelta() {}
+
+    /** A snapshot with a key for every node. */
+    public static class FlatTree {
+        final TreeSnapshot snapshot;
+        final String[] keys;
+        final HashMap<String, Integer> indexByKey;
+        final List<String> rootKeys = new ArrayList<>();
+
+        private FlatTree(TreeSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.keys = new String[snapshot.size()];
+            this.indexByKey = new HashMap<>(snapshot.size() * 2);
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        private List<String> childKeys(int index) {
+            int[] children = snapshot.getChildren(index);
+            String[] childKeys = new String[children.length];
+            for (int i = 0; i < children.length; i++) {
+                childKeys[i] = keys[children[i]];
+            }
+            return Arrays.asList(childKeys);
+        }
+
+        private String parentKey(int index) {
+            int parent = snapshot.getParent(index);
+            return parent >= 0 ? keys[parent] : null;
+        }
+    }
+
+    /**
+     * Keys every node of a snapshot. Returns null if two nodes end up with the same key, in which
+     * case the tree cannot be patched reliably and has to be sent in full.
+     */
+    public static FlatTree flatten(TreeSnapshot snapshot) {
+        FlatTree flat = new FlatTree(snapshot);
+        for (int i = 0; i < snapshot.size(); i++) {
+            NodeSnapshot node = snapshot.getNode(i);
+            String key = node.isWindow() ? "window:" + node.getWindowId()
+                    : node.getNodeId() != null ? node.getNodeId() : String.valueOf(node.getId());
+            if (flat.indexByKey.put(key, i) != null) {
+                return null;
+            }
+            flat.keys[i] = key;
+        }
+        for (int window : snapshot.getWindows()) {
+            flat.rootKeys.add(flat.keys[window]);
+        }
+        return flat;
+    }
+
+    /** The number of added, changed and removed nodes in a patch built by {@link #diff}. */
+    public static int patchSize(JSONObject patch) {
+        return patch.optJSONArray("added").length()
+                + patch.optJSONArray("changed").length()
+                + patch.optJSONArray("removed").length();
+    }
+
+    /** Builds the added/changed/removed lists that turn {@code base} into {@code current}. */
+    public static JSONObject diff(FlatTree base, FlatTree current) throws JSONException {
+        JSONArray added = new JSONArray();
+        JSONArray changed = new JSONArray();
+        JSONArray removed = new JSONArray();
+
+        for (int i = 0; i < current.size(); i++) {
+            Integer previous = base.indexByKey.get(current.keys[i]);
+            if (previous == null) {
+                added.put(entryJson(current, i, true));
+                continue;
+            }
+            NodeSnapshot node = current.snapshot.getNode(i);
+            NodeSnapshot previousNode = base.snapshot.getNode(previous);
+            boolean fieldsChanged = node.getContentHash() != previousNode.getContentHash()
+                    || node.getId() != previousNode.getId();
+            if (fieldsChanged
+                    || current.snapshot.getHash(i) != base.snapshot.getHash(previous)
+                    || !String.valueOf(current.parentKey(i)).equals(String.valueOf(base.parentKey(previous)))
+                    || !current.childKeys(i).equals(base.childKeys(previous))) {
+                changed.put(entryJson(current, i, fieldsChanged));
+            }
+        }
+        for (int i = 0; i < base.size(); i++) {
+            if (!current.indexByKey.containsKey(base.keys[i])) {
+                removed.put(base.keys[i]);
+            }
+        }
+
+        JSONObject patch = new JSONObject();
+        if (!current.rootKeys.equals(base.rootKeys)) {
+            patch.put("rootKeys", new JSONArray(current.rootKeys));
+        }
+        patch.put("added", added);
+        patch.put("changed", changed);
+        patch.put("removed", removed);
+        return patch;
+    }
+
+    private static JSONObject entryJson(FlatTree tree, int index, boolean withFields) throws JSONException {
+        JSONObject entry = new JSONObject();
+        entry.put("key", tree.keys[index]);
+        String parentKey = tree.parentKey(index);
+        if (parentKey != null) {
+            entry.put("parentKey", parentKey);
+        }
+        entry.put("childKeys", new JSONArray(tree.childKeys(index)));
+        entry.put(NodeHash.KEY, NodeHash.toHex(tree.snapshot.getHash(index)));
+        if (withFields) {
+            entry.put("node", FIELDS.nodeFields(tree.snapshot.getNode(index)));
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,210 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A live copy of the stable tree's windows, kept between captures so a capture only has to
+ * re-fetch what accessibility events said changed.
+ *
+ * <p>Events mark mirrored nodes stale: a content change of type subtree, a scroll or an
+ * undefined change marks the source and everything below it, other content changes, text, focus
+ * and selection events only the source itself. Window state and windows changes, and events whose
+ * source cannot be found, mark the whole window. {@link SnapshotCapturer} then re-reads stale
+ * nodes and re-fetches stale subtrees, and takes everything else from the mirror without IPC.
+ *
+ * <p>Not every layout change sends an event, so a window is fetched in full again when its mirror
+ * is older than {@link #FULL_REFRESH_INTERVAL_MS}. Main thread only, like the events themselves.
+ */
+public class TreeMirror {
+    static final long FULL_REFRESH_INTERVAL_MS = 10_000;
+
+    /** A mirrored node. The window root has no snapshot; it is written as the window. */
+    static final class Node {
+        final String nodeId;
+        final AccessibilityNodeInfoCompat handle;
+        NodeSnapshot snapshot;
+        // Null until the children were fetched
+        List<Node> children;
+        // The node's own fields need reading again
+        boolean stale;
+        // The children need fetching again, and everything below them
+        boolean subtreeStale;
+        // The handle was fetched or refreshed during the current capture
+        boolean handleCurrent = true;
+
+        private Node(String nodeId, AccessibilityNodeInfoCompat handle) {
+            this.nodeId = nodeId;
+            this.handle = handle;
+        }
+    }
+
+    private static final class Window {
+        final Node root;
+        final long fetchedAt;
+        boolean stale;
+
+        Window(Node root, long fetchedAt) {
+            this.root = root;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final HashMap<Integer, Window> windows = new HashMap<>();
+    private final HashMap<String, Node> index = new HashMap<>();
+
+    /** Marks whatever the event says changed as stale. */
+    public void onEvent(AccessibilityEvent event) {
+        if (windows.isEmpty()) {
+            return;
+        }
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                invalidateWindow(event.getWindowId());
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                int changes = event.getContentChangeTypes();
+                boolean subtree = changes == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                        || (changes & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE) != 0;
+                invalidateSource(event, subtree);
+                break;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                // Scrolling moves every descendant and may bind new ones
+                invalidateSource(event, true);
+                break;
+            case AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_FOCUSED:
+            case AccessibilityEvent.TYPE_VIEW_SELECTED:
+            case AccessibilityEvent.TYPE_VIEW_CLICKED:
+            case AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED:
+                invalidateSource(event, false);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void invalidateWindow(int windowId) {
+        Window window = windows.get(windowId);
+        if (window != null) {
+            window.stale = true;
+        } else if (windowId < 0) {
+            for (Window each : windows.values()) {
+                each.stale = true;
+            }
+        }
+    }
+
+    private void invalidateSource(AccessibilityEvent event, boolean subtree) {
+        AccessibilityNodeInfo source = event.getSource();
+        if (source == null) {
+            invalidateWindow(event.getWindowId());
+            return;
+        }
+        Node node = index.get(NodeRegistry.idOf(source));
+        if (node == null) {
+            // A node we have not mirrored yet; its parent's child list is what changed
+            AccessibilityNodeInfo parent = source.getParent();
+            node = parent != null ? index.get(NodeRegistry.idOf(parent)) : null;
+            subtree = true;
+        }
+        if (node == null) {
+            invalidateWindow(event.getWindowId());
+            InspectorMetrics.increment("mirror.unknownSources");
+            return;
+        }
+        node.stale = true;
+        node.subtreeStale |= subtree;
+    }
+
+    /**
+     * The mirrored root of a window, or a new empty one if the window was never fetched, was marked
+     * stale, is due for a full refresh or has a different root now.
+     */
+    Node root(int windowId, AccessibilityNodeInfoCompat handle) {
+        String rootId = NodeRegistry.idOf(handle.unwrap());
+        long now = SystemClock.uptimeMillis();
+        Window window = windows.get(windowId);
+        if (window != null && !window.stale && window.root.nodeId.equals(rootId)
+                && now - window.fetchedAt < FULL_REFRESH_INTERVAL_MS) {
+            return window.root;
+        }
+        if (window != null) {
+            forget(window.root);
+        }
+        InspectorMetrics.increment("mirror.windowFetches");
+        Node root = newNode(rootId, handle);
+        windows.put(windowId, new Window(root, now));
+        return root;
+    }
+
+    /** Drops a window, so it is fetched in full next time. */
+    void dropWindow(int windowId) {
+        Window window = windows.remove(windowId);
+        if (window != null) {
+            forget(window.root);
+        }
+    }
+
+    /** Drops the windows that were not captured, as they are gone. */
+    void retainWindows(Set<Integer> windowIds) {
+        Iterator<Map.Entry<Integer, Window>> iterator = windows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Window> entry = iterator.next();
+            if (!windowIds.contains(entry.getKey())) {
+                forget(entry.getValue().root);
+                iterator.remove();
+            }
+        }
+    }
+
+    /** Forgets every window, so events cost nothing until the next capture. */
+    void clear() {
+        for (Window window : windows.values()) {
+            forget(window.root);
+        }
+        windows.clear();
+    }
+
+    /** Replaces the children of a node with freshly fetched ones. */
+    void setChildren(Node node, List<AccessibilityNodeInfoCompat> handles) {
+        if (node.children != null) {
+            for (Node child : node.children) {
+                forget(child);
+            }
+        }
+        List<Node> children = new ArrayList<>(handles.size());
+        for (AccessibilityNodeInfoCompat handle : handles) {
+            children.add(newNode(NodeRegistry.idOf(handle.unwrap()), handle));
+        }
+        node.children = children;
+        node.subtreeStale = false;
+    }
+
+    private Node newNode(String nodeId, AccessibilityNodeInfoCompat handle) {
+        Node node = new Node(nodeId, handle);
+        index.put(nodeId, node);
+        return node;
+    }
+
+    private void forget(Node node) {
+        // The id may have been taken over by a node that moved elsewhere in the meantime
+        index.remove(node.nodeId, node);
+        if (node.children != null) {
+            for (Node child : node.children) {
+                forget(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.jwlilly.accessibilityinspector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A captured tree: {@link NodeSnapshot}s in pre-order with an index of parents and children.
+ *
+ * <p>Windows are the roots, in capture order. Subtree hashes are computed once when the snapshot
+ * is built, so comparing two captures is a single comparison of {@link #getRootHash()}.
+ * Snapshots are immutable; {@link #filter(SnapshotFilter)} returns a new one sharing the nodes.
+ */
+public final class TreeSnapshot {
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private final NodeSnapshot[] nodes;
+    private final int[] parents;
+    private final int[][] children;
+    private final int[] windows;
+    private final long[] hashes;
+    private final long rootHash;
+
+    private TreeSnapshot(NodeSnapshot[] nodes, int[] parents, int[][] children, int[] windows) {
+        this.nodes = nodes;
+        this.parents = parents;
+        this.children = children;
+        this.windows = windows;
+        this.hashes = new long[nodes.length];
+        // Children always follow their parent in pre-order, so walking backwards sees them first
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            long digest = NodeHash.NO_CHILDREN;
+            for (int child : children[i]) {
+                digest = NodeHash.addChild(digest, hashes[child]);
+            }
+            hashes[i] = NodeHash.mix(nodes[i].getContentHash(), digest);
+        }
+        long digest = NodeHash.NO_CHILDREN;
+        for (int window : windows) {
+            digest = NodeHash.addChild(digest, hashes[window]);
+        }
+        this.rootHash = digest;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    public NodeSnapshot getNode(int index) {
+        return nodes[index];
+    }
+
+    /** Index of the parent node, or -1 for windows. */
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    public int[] getChildren(int index) {
+        return children[index];
+    }
+
+    /** Indexes of the window nodes, in capture order. */
+    public int[] getWindows() {
+        return windows;
+    }
+
+    /** Subtree hash of the node at the given index. */
+    public long getHash(int index) {
+        return hashes[index];
+    }
+
+    /** Digest of the window hashes; equal for two snapshots exactly when their content is. */
+    public long getRootHash() {
+        return rootHash;
+    }
+
+    /**
+     * Returns a snapshot without the nodes the filter rejects. A rejected node takes its subtree
+     * with it, so filters normally keep any node that still has kept children.
+     */
+    public TreeSnapshot filter(SnapshotFilter filter) {
+        boolean[] kept = new boolean[nodes.length];
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            boolean hasKeptChildren = false;
+            for (int child : children[i]) {
+                hasKeptChildren |= kept[child];
+            }
+            kept[i] = filter.keep(nodes[i], hasKeptChildren);
+        }
+
+        Builder builder = new Builder(nodes.length);
+        for (int window : windows) {
+            if (kept[window]) {
+                copyKept(builder, window, -1, kept);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns a snapshot without the nodes the filter rejects, where the kept nodes below a
+     * rejected one take its place under its parent. Windows are kept unless nothing is left in
+     * them. {@code hasKeptChildren} is always false, as children do not depend on their parent here.
+     */
+    public TreeSnapshot collapse(SnapshotFilter filter) {
+        Builder builder = new Builder(nodes.length);
+        for (int window : windows) {
+            int newWindow = builder.add(nodes[window], -1);
+            for (int child : children[window]) {
+                copyCollapsed(builder, child, newWindow, filter);
+            }
+            if (builder.size() == newWindow + 1) {
+                builder.truncate(newWindow);
+            }
+        }
+        return builder.build();
+    }
+
+    private void copyCollapsed(Builder builder, int index, int newParent, SnapshotFilter filter) {
+        int parent = filter.keep(nodes[index], false) ? builder.add(nodes[index], newParent) : newParent;
+        for (int child : children[index]) {
+            copyCollapsed(builder, child, parent, filter);
+        }
+    }
+
+    private void copyKept(Builder builder, int index, int newParent, boolean[] kept) {
+        int newIndex = builder.add(nodes[index], newParent);
+        for (int child : children[index]) {
+            if (kept[child]) {
+                copyKept(builder, child, newIndex, kept);
+            }
+        }
+    }
+
+    /** Collects nodes in pre-order during a capture. */
+    static class Builder {
+        private final List<NodeSnapshot> nodes;
+        private final List<Integer> parents;
+        private final List<int[]> children;
+        private final List<Integer> windows = new ArrayList<>();
+        private int[] childCounts;
+
+        Builder(int expectedSize) {
+            nodes = new ArrayList<>(expectedSize);
+            parents = new ArrayList<>(expectedSize);
+            children = new ArrayList<>(expectedSize);
+            childCounts = new int[Math.max(16, expectedSize)];
+        }
+
+        /** Appends a node under the given parent, or as a window if the parent is -1. */
+        int add(NodeSnapshot node, int parent) {
+            int index = nodes.size();
+            nodes.add(node);
+            parents.add(parent);
+            children.add(NO_CHILDREN);
+            if (index >= childCounts.length) {
+                childCounts = Arrays.copyOf(childCounts, childCounts.length * 2);
+            }
+            childCounts[index] = 0;
+            if (parent < 0) {
+                windows.add(index);
+            } else {
+                int[] siblings = children.get(parent);
+                int count = childCounts[parent];
+                if (count == siblings.length) {
+                    siblings = Arrays.copyOf(siblings, Math.max(4, count * 2));
+                    children.set(parent, siblings);
+                }
+                siblings[count] = index;
+                childCounts[parent] = count + 1;
+            }
+            return index;
+        }
+
+        int size() {
+            return nodes.size();
+        }
+
+        /** Drops everything added since {@code size} was returned by {@link #size()}. */
+        void truncate(int size) {
+            while (nodes.size() > size) {
+                int index = nodes.size() - 1;
+                int parent = parents.get(index);
+                if (parent < 0) {
+                    windows.remove(windows.size() - 1);
+                } else if (parent < size) {
+                    childCounts[parent]--;
+                }
+                nodes.remove(index);
+                parents.remove(index);
+                children.remove(index);
+            }
+        }
+
+        TreeSnapshot build() {
+            int size = nodes.size();
+            int[] parentArray = new int[size];
+            int[][] childArray = new int[size][];
+            for (int i = 0; i < size; i++) {
+                parentArray[i] = parents.get(i);
+                int[] nodeChildren = children.get(i);
+                childArray[i] = childCounts[i] == nodeChildren.length ? nodeChildren : Arrays.copyOf(nodeChildren, childCounts[i]);
+            }
+            int[] windowArray = new int[windows.size()];
+            for (int i = 0; i < windowArray.length; i++) {
+                windowArray[i] = windows.get(i);
+            }
+            return new TreeSnapshot(nodes.toArray(new NodeSnapshot[0]), parentArray, childArray, windowArray);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.jwlilly.accessibilityinspector;
+
+import java.util.Arrays;
+
+/**
+ * Writes JSON straight into a reusable UTF-8 byte buffer, for tree captures too large to build as
+ * a JSONObject graph first.
+ *
+ * <p>The output is byte-for-byte what org.json's JSONStringer would write for the same calls,
+ * including its escaping of "/" and its formatting of numbers. Values written between
+ * {@link #startHash(long)} and {@link #endHash()} are also folded into a running hash the same way
+ * {@link NodeHash#contentHash} folds the fields of a JSONObject, so nodes can be hashed while they
+ * are written.
+ *
+ * <p>Commas are placed by looking at the last byte written, which is what makes {@link #rewind(int)}
+ * work: a value dropped again leaves the buffer exactly as it was before. Not thread safe.
+ */
+public class Utf8JsonWriter {
+    private byte[] buffer;
+    private int size;
+
+    // Open containers, and the number of fields or values written into each for the hash
+    private byte[] scopes = new byte[32];
+    private int[] counts = new int[32];
+    private int depth;
+
+    private boolean hashing;
+    private long hash;
+
+    // Doubles without a short form are rare and repeat, like the dp scale factor of every node
+    private double lastDouble = Double.NaN;
+    private String lastDoubleText;
+    private final char[] digits = new char[20];
+
+    public Utf8JsonWriter(int initialCapacity) {
+        buffer = new byte[Math.max(64, initialCapacity)];
+    }
+
+    /** Empties the buffer, keeping its capacity for the next capture. */
+    public void reset() {
+        size = 0;
+        depth = 0;
+        hashing = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Current position, to pass to {@link #rewind(int)}. */
+    public int mark() {
+        return size;
+    }
+
+    /**
+     * Drops everything written since {@code mark}. Containers opened since then must have been
+     * closed again, so the writer is at the same nesting depth as when the mark was taken.
+     */
+    public void rewind(int mark) {
+        size = mark;
+    }
+
+    /** A copy of the bytes written so far. */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /** Starts hashing the fields that follow, continuing from {@code seed}. */
+    public void startHash(long seed) {
+        hashing = true;
+        hash = seed;
+    }
+
+    /** Stops hashing and returns the hash of the fields written since {@link #startHash(long)}. */
+    public long endHash() {
+        hashing = false;
+        return hash;
+    }
+
+    public Utf8JsonWriter beginObject() {
+        open('{');
+        return this;
+    }
+
+    public Utf8JsonWriter endObject() {
+        close('}');
+        return this;
+    }
+
+    public Utf8JsonWriter beginArray() {
+        open('[');
+        return this;
+    }
+
+    public Utf8JsonWriter endArray() {
+        close(']');
+        return this;
+    }
+
+    public Utf8JsonWriter name(String name) {
+        separate();
+        string(name, 0, name.length());
+        put((byte) ':');
+        counts[depth - 1]++;
+        return this;
+    }
+
+    public Utf8JsonWriter value(CharSequence value) {
+        if (value == null) {
+            return nullValue();
+        }
+        return value(value, 0, value.length());
+    }
+
+    /** Writes the characters of {@code value} from {@code start} to {@code end} as a string. */
+    public Utf8JsonWriter value(CharSequence value, int start, int end) {
+        beforeValue();
+        if (hashing) {
+            hash = NodeHash.mix(hash, 's');
+        }
+        string(value, start, end);
+        return this;
+    }
+
+    public Utf8JsonWriter value(long value) {
+        beforeValue();
+        if (hashing) {
+            hash = NodeHash.mix(NodeHash.mix(hash, 'i'), value);
+        }
+        writeLong(value);
+        return this;
+    }
+
+    public Utf8JsonWriter value(boolean value) {
+        beforeValue();
+        if (hashing) {
+            hash = NodeHash.mix(hash, value ? 't' : 'f');
+        }
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    /** Writes a double the way JSONObject.numberToString does, e.g. 2.0 as "2". */
+    public Utf8JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Forbidden numeric value: " + value);
+        }
+        beforeValue();
+        if (hashing) {
+            hash = NodeHash.mix(NodeHash.mix(hash, 'd'), Double.doubleToLongBits(value));
+        }
+        long longValue = (long) value;
+        if (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0.0)) {
+            ascii("-0");
+        } else if (value == (double) longValue) {
+            writeLong(longValue);
+        } else {
+            if (Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(lastDouble)) {
+                lastDouble = value;
+                lastDoubleText = Double.toString(value);
+            }
+            ascii(lastDoubleText);
+        }
+        return this;
+    }
+
+    public Utf8JsonWriter nullValue() {
+        beforeValue();
+        if (hashing) {
+            hash = NodeHash.mix(hash, 'n');
+        }
+        ascii("null");
+        return this;
+    }
+
+    /**
+     * Appends the output of another writer as the next value, for merging parts of a document that
+     * were written separately. Never part of the running hash.
+     */
+    public Utf8JsonWriter append(Utf8JsonWriter other) {
+        beforeValue();
+        ensure(other.size);
+        System.arraycopy(other.buffer, 0, buffer, size, other.size);
+        size += other.size;
+        return this;
+    }
+
+    /** Appends one value written earlier, such as a cached window. Never part of the running hash. */
+    public Utf8JsonWriter append(byte[] json) {
+        beforeValue();
+        ensure(json.length);
+        System.arraycopy(json, 0, buffer, size, json.length);
+        size += json.length;
+        return this;
+    }
+
+    /**
+     * Writes a hash as the hex string {@link NodeHash#toHex} would give. Never part of the running
+     * hash, as "hash" fields are left out of it.
+     */
+    public Utf8JsonWriter hashValue(long value) {
+        beforeValue();
+        put((byte) '"');
+        int shift = 60;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            put((byte) Character.forDigit((int) (value >>> shift) & 0xF, 16));
+        }
+        put((byte) '"');
+        return this;
+    }
+
+    private void open(char scope) {
+        beforeValue();
+        if (hashing) {
+            hash = NodeHash.mix(hash, scope == '{' ? 'o' : 'a');
+        }
+        if (depth == scopes.length) {
+            scopes = Arrays.copyOf(scopes, depth * 2);
+            counts = Arrays.copyOf(counts, depth * 2);
+        }
+        scopes[depth] = (byte) scope;
+        counts[depth] = 0;
+        depth++;
+        put((byte) scope);
+    }
+
+    private void close(char bracket) {
+        depth--;
+        if (hashing) {
+            hash = NodeHash.mix(hash, counts[depth]);
+        }
+        put((byte) bracket);
+    }
+
+    private void beforeValue() {
+        if (depth > 0 && scopes[depth - 1] == '[') {
+            separate();
+            counts[depth - 1]++;
+        }
+    }
+
+    private void separate() {
+        if (size > 0) {
+            byte last = buffer[size - 1];
+            if (last != '[' && last != '{' && last != ':') {
+                put((byte) ',');
+            }
+        }
+    }
+
+    // Same escaping as JSONStringer, then UTF-8 like String.getBytes, where a lone surrogate
+    // becomes '?'. The hash covers the unescaped characters, as NodeHash.hashString does.
+    private void string(CharSequence value, int start, int end) {
+        long stringHash = 0xCBF29CE484222325L;
+        ensure(end - start + 2);
+        buffer[size++] = '"';
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            stringHash = (stringHash ^ c) * 0x100000001B3L;
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    put((byte) '\\');
+                    put((byte) c);
+                    break;
+                case '\t':
+                    escape('t');
+                    break;
+                case '\b':
+                    escape('b');
+                    break;
+                case '\n':
+                    escape('n');
+                    break;
+                case '\r':
+                    escape('r');
+                    break;
+                case '\f':
+                    escape('f');
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        ascii("\\u00");
+                        put((byte) Character.forDigit(c >> 4, 16));
+                        put((byte) Character.forDigit(c & 0xF, 16));
+                    } else if (c < 0x80) {
+                        put((byte) c);
+                    } else if (c < 0x800) {
+                        put((byte) (0xC0 | (c >> 6)));
+                        put((byte) (0x80 | (c & 0x3F)));
+                    } else if (Character.isSurrogate(c)) {
+                        char low = i + 1 < end ? value.charAt(i + 1) : 0;
+                        if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                            stringHash = (stringHash ^ low) * 0x100000001B3L;
+                            i++;
+                            int codePoint = Character.toCodePoint(c, low);
+                            put((byte) (0xF0 | (codePoint >> 18)));
+                            put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                            put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                            put((byte) (0x80 | (codePoint & 0x3F)));
+                        } else {
+                            put((byte) '?');
+                        }
+                    } else {
+                        put((byte) (0xE0 | (c >> 12)));
+                        put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                        put((byte) (0x80 | (c & 0x3F)));
+                    }
+            }
+        }
+        put((byte) '"');
+        if (hashing) {
+            hash = NodeHash.mix(hash, stringHash ^ (end - start));
+        }
+    }
+
+    private void escape(char c) {
+        put((byte) '\\');
+        put((byte) c);
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            ascii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        ensure(count);
+        while (count > 0) {
+            buffer[size++] = (byte) digits[--count];
+        }
+    }
+
+    private void ascii(String text) {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[size++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void put(byte b) {
+        if (size == buffer.length) {
+            ensure(1);
+        }
+        buffer[size++] = b;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
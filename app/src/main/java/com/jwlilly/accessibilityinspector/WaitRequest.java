@@ -0,0 +1,169 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One "waitFor" message: a selector, the condition to wait for and how long to wait. See
+ * {@link NodeWaiter}.
+ */
+public final class WaitRequest {
+    static final int DEFAULT_TIMEOUT_MS = 10_000;
+    static final int MAX_TIMEOUT_MS = 120_000;
+
+    public enum Condition {
+        /** The selector matches at least one node. */
+        APPEARS("appears"),
+        /** The selector matches no node. */
+        DISAPPEARS("disappears"),
+        /** A node the selector matches has the property value. */
+        PROPERTY_EQUALS("propertyEquals");
+
+        private final String name;
+
+        Condition(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        static Condition parse(String name) {
+            for (Condition condition : values()) {
+                if (condition.name.equalsIgnoreCase(name)) {
+                    return condition;
+                }
+            }
+            throw new IllegalArgumentException("Unknown condition: " + name
+                    + " (expected appears, disappears or propertyEquals)");
+        }
+    }
+
+    private final String id;
+    private final Selector selector;
+    private final Condition condition;
+    private final String property;
+    private final Object value;
+    private final NodeQuery propertyQuery;
+    private final int timeoutMillis;
+    private final boolean verbose;
+
+    private WaitRequest(String id, Selector selector, Condition condition, String property, Object value,
+                        NodeQuery propertyQuery, int timeoutMillis, boolean verbose) {
+        this.id = id;
+        this.selector = selector;
+        this.condition = condition;
+        this.property = property;
+        this.value = value;
+        this.propertyQuery = propertyQuery;
+        this.timeoutMillis = timeoutMillis;
+        this.verbose = verbose;
+    }
+
+    /**
+     * Reads a "waitFor" message: "selector", "condition" (appears, the default, disappears or
+     * propertyEquals with "property" and "value"), "timeoutMs", "verbose", and an "id" that is
+     * sent back with the result.
+     *
+     * @throws IllegalArgumentException for a missing or invalid selector, condition or property
+     */
+    public static WaitRequest fromJson(JSONObject json) {
+        String source = json.optString("selector", "");
+        if (source.isEmpty()) {
+            throw new IllegalArgumentException("Missing required parameter: selector");
+        }
+        Selector selector = Selector.parse(source);
+        Condition condition = Condition.parse(json.optString("condition", Condition.APPEARS.getName()));
+        String property = null;
+        Object value = null;
+        NodeQuery propertyQuery = null;
+        if (condition == Condition.PROPERTY_EQUALS) {
+            property = json.optString("property", "");
+            value = json.opt("value");
+            if (property.isEmpty() || value == null) {
+                throw new IllegalArgumentException("propertyEquals needs a property and a value");
+            }
+            if (NodeQuery.Property.forName(property) == null) {
+                throw new IllegalArgumentException("Unknown property: " + property);
+            }
+            try {
+                propertyQuery = NodeQuery.props(new JSONObject().put(property, value));
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("Invalid value for " + property + ": " + value);
+            }
+        }
+        int timeoutMillis = Math.min(Math.max(0, json.optInt("timeoutMs", DEFAULT_TIMEOUT_MS)), MAX_TIMEOUT_MS);
+        String id = json.optString("id", "");
+        return new WaitRequest(id.isEmpty() ? null : id, selector, condition, property, value, propertyQuery,
+                timeoutMillis, json.optBoolean("verbose", false));
+    }
+
+    /** The id the client gave the wait, or null. */
+    public String getId() {
+        return id;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * The nodes that satisfy the condition, given every node the selector matches, or null while
+     * it does not hold. The list is empty for a selector that disappeared.
+     */
+    public List<AccessibilityNodeInfo> satisfiedBy(List<AccessibilityNodeInfo> matches) {
+        switch (condition) {
+            case APPEARS:
+                return matches.isEmpty() ? null : matches;
+            case DISAPPEARS:
+                return matches.isEmpty() ? matches : null;
+            default:
+                List<AccessibilityNodeInfo> satisfying = new ArrayList<>();
+                for (AccessibilityNodeInfo node : matches) {
+                    if (propertyQuery.matches(node)) {
+                        satisfying.add(node);
+                    }
+                }
+                return satisfying.isEmpty() ? null : satisfying;
+        }
+    }
+
+    /** Writes what was waited for into a result, so the client can tell its waits apart. */
+    public void putTo(JSONObject json) throws JSONException {
+        if (id != null) {
+            json.put("id", id);
+        }
+        json.put("selector", selector.toString());
+        json.put("condition", condition.getName());
+        if (condition == Condition.PROPERTY_EQUALS) {
+            json.put("property", property);
+            json.put("value", value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WaitRequest{id=" + id + ", selector=" + selector + ", condition=" + condition.getName()
+                + (condition == Condition.PROPERTY_EQUALS ? ", " + property + "=" + value : "")
+                + ", timeoutMs=" + timeoutMillis + "}";
+    }
+}
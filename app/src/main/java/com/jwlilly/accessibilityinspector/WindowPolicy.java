@@ -0,0 +1,197 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Which windows a capture walks, decided from the window itself before any of its nodes is
+ * fetched: by type, title, layer and whether it is active. Only package and pane title rules need
+ * the root node, and the pane title rule its first child.
+ *
+ * <p>A capture request gives the policy as "windows", for example
+ * {"types":["application","ime"],"excludeTitles":["Status bar"],"excludePackages":["com.android.systemui"]}.
+ * Every rule is optional; the default keeps what captures always did, the active windows without
+ * the navigation bar, and without the status bar and notification shade, which are told apart by
+ * the pane title of their first node.
+ */
+public final class WindowPolicy {
+    /** Type names in AccessibilityWindowInfo.TYPE_* order, starting at TYPE_APPLICATION. */
+    public static final List<String> TYPE_NAMES = Arrays.asList(
+            "application", "ime", "system", "overlay", "divider", "magnification");
+
+    public static final WindowPolicy DEFAULT = new WindowPolicy(Collections.emptySet(),
+            Collections.singleton("Navigation bar"),
+            Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList("Status bar", "Notification shade."))),
+            Collections.emptySet(), Collections.emptySet(), Integer.MIN_VALUE, Integer.MAX_VALUE, true);
+    /** Every window, inactive ones included, as live finds search them. */
+    public static final WindowPolicy ALL = new WindowPolicy(Collections.emptySet(), Collections.emptySet(),
+            Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), Integer.MIN_VALUE,
+            Integer.MAX_VALUE, false);
+
+    // Empty for every type or package
+    private final Set<String> types;
+    private final Set<String> excludeTitles;
+    private final Set<String> excludePaneTitles;
+    private final Set<String> packages;
+    private final Set<String> excludePackages;
+    private final int minLayer;
+    private final int maxLayer;
+    private final boolean activeOnly;
+
+    private WindowPolicy(Set<String> types, Set<String> excludeTitles, Set<String> excludePaneTitles,
+                         Set<String> packages, Set<String> excludePackages, int minLayer, int maxLayer,
+                         boolean activeOnly) {
+        this.types = types;
+        this.excludeTitles = excludeTitles;
+        this.excludePaneTitles = excludePaneTitles;
+        this.packages = packages;
+        this.excludePackages = excludePackages;
+        this.minLayer = minLayer;
+        this.maxLayer = maxLayer;
+        this.activeOnly = activeOnly;
+    }
+
+    /**
+     * Reads the "windows" of a capture request; null gives {@link #DEFAULT}. Rules left out keep
+     * their default.
+     *
+     * @throws IllegalArgumentException for an unknown window type
+     */
+    public static WindowPolicy parse(JSONObject json) {
+        if (json == null) {
+            return DEFAULT;
+        }
+        Set<String> types = strings(json.optJSONArray("types"), Collections.emptySet());
+        for (String type : types) {
+            if (!TYPE_NAMES.contains(type)) {
+                throw new IllegalArgumentException("Unknown window type: " + type + " (expected one of " + TYPE_NAMES + ")");
+            }
+        }
+        return new WindowPolicy(types,
+                strings(json.optJSONArray("excludeTitles"), DEFAULT.excludeTitles),
+                strings(json.optJSONArray("excludePaneTitles"), DEFAULT.excludePaneTitles),
+                strings(json.optJSONArray("packages"), Collections.emptySet()),
+                strings(json.optJSONArray("excludePackages"), Collections.emptySet()),
+                json.optInt("minLayer", Integer.MIN_VALUE),
+                json.optInt("maxLayer", Integer.MAX_VALUE),
+                json.optBoolean("activeOnly", DEFAULT.activeOnly));
+    }
+
+    private static Set<String> strings(JSONArray array, Set<String> fallback) {
+        if (array == null) {
+            return fallback;
+        }
+        Set<String> strings = new LinkedHashSet<>();
+        for (int i = 0; i < array.length(); i++) {
+            strings.add(array.optString(i));
+        }
+        return Collections.unmodifiableSet(strings);
+    }
+
+    /** The policy as {@link #parse(JSONObject)} reads it, for passing it along with a capture request. */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("types", new JSONArray(types));
+            json.put("excludeTitles", new JSONArray(excludeTitles));
+            json.put("excludePaneTitles", new JSONArray(excludePaneTitles));
+            json.put("packages", new JSONArray(packages));
+            json.put("excludePackages", new JSONArray(excludePackages));
+            json.put("minLayer", minLayer);
+            json.put("maxLayer", maxLayer);
+            json.put("activeOnly", activeOnly);
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers
+        }
+        return json;
+    }
+
+    /**
+     * Why the window is not captured ("inactive", "type", "title" or "layer"), or null if it is,
+     * subject to {@link #skipReason(CharSequence)} for its package and
+     * {@link #skipReasonForPaneTitle(CharSequence)}. Reads nothing but the window.
+     */
+    public String skipReason(AccessibilityWindowInfo window) {
+        if (activeOnly && !window.isActive()) {
+            return "inactive";
+        }
+        if (!types.isEmpty() && !types.contains(typeName(window.getType()))) {
+            return "type";
+        }
+        CharSequence title = window.getTitle();
+        if (title != null && excludeTitles.contains(title.toString())) {
+            return "title";
+        }
+        int layer = window.getLayer();
+        if (layer < minLayer || layer > maxLayer) {
+            return "layer";
+        }
+        return null;
+    }
+
+    /** "package" if windows of the package are not captured, otherwise null. */
+    public String skipReason(CharSequence packageName) {
+        String name = packageName != null ? packageName.toString() : "";
+        if ((!packages.isEmpty() && !packages.contains(name)) || excludePackages.contains(name)) {
+            return "package";
+        }
+        return null;
+    }
+
+    /** "paneTitle" if windows whose first node has the pane title are not captured, otherwise null. */
+    public String skipReasonForPaneTitle(CharSequence paneTitle) {
+        return paneTitle != null && excludePaneTitles.contains(paneTitle.toString()) ? "paneTitle" : null;
+    }
+
+    /** Whether a pane title rule needs the window's first node. */
+    public boolean checksPaneTitle() {
+        return !excludePaneTitles.isEmpty();
+    }
+
+    /** The pane title of the first child of a window's root, which the pane title rule looks at. */
+    public static CharSequence firstPaneTitle(AccessibilityNodeInfo root) {
+        AccessibilityNodeInfo first = root.getChildCount() > 0 ? root.getChild(0) : null;
+        return first != null ? first.getPaneTitle() : null;
+    }
+
+    /** Whether a package rule needs the window's root node. */
+    public boolean checksPackage() {
+        return !packages.isEmpty() || !excludePackages.isEmpty();
+    }
+
+    public static String typeName(int type) {
+        int index = type - AccessibilityWindowInfo.TYPE_APPLICATION;
+        return index >= 0 && index < TYPE_NAMES.size() ? TYPE_NAMES.get(index) : "unknown";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof WindowPolicy)) {
+            return false;
+        }
+        WindowPolicy other = (WindowPolicy) o;
+        return minLayer == other.minLayer && maxLayer == other.maxLayer && activeOnly == other.activeOnly
+                && types.equals(other.types) && excludeTitles.equals(other.excludeTitles)
+                && excludePaneTitles.equals(other.excludePaneTitles)
+                && packages.equals(other.packages) && excludePackages.equals(other.excludePackages);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(types, excludeTitles, excludePaneTitles, packages, excludePackages, minLayer, maxLayer, activeOnly);
+    }
+}
@@ -0,0 +1,146 @@
+package com.jwlilly.accessibilityinspector;
+
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The JSON written for each window by earlier manual captures, by window id, so a capture only
+ * walks the windows that changed since. An event invalidates the window it came from, so the IME
+ * appearing re-captures the IME window and leaves the app's window as it was.
+ *
+ * <p>Entries keep the node handles the window's capture registered, to register them again in the
+ * capture that reuses the JSON. Like {@link TreeMirror}, entries also expire after
+ * {@link TreeMirror#FULL_REFRESH_INTERVAL_MS}, since not every layout change sends an event.
+ * Windows are put from the capture threads, events arrive on the main thread.
+ */
+public class WindowTreeCache {
+    static final int MAX_ENTRIES = 32;
+
+    /** One window as a capture wrote it. */
+    public static final class CachedWindow {
+        public final CharSequence packageName;
+        // For WindowPolicy's pane title rule, see WindowPolicy.firstPaneTitle
+        public final CharSequence paneTitle;
+        // Empty if the window had no nodes to write
+        public final byte[] json;
+        public final long hash;
+        public final Map<String, AccessibilityNodeInfo> handles;
+        final long capturedAt;
+
+        public CachedWindow(CharSequence packageName, CharSequence paneTitle, byte[] json, long hash,
+                            Map<String, AccessibilityNodeInfo> handles) {
+            this.packageName = packageName;
+            this.paneTitle = paneTitle;
+            this.json = json;
+            this.hash = hash;
+            this.handles = handles;
+            this.capturedAt = SystemClock.uptimeMillis();
+        }
+    }
+
+    private static final class Key {
+        final int windowId;
+        final CaptureRequest options;
+
+        Key(int windowId, CaptureRequest options) {
+            this.windowId = windowId;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return windowId == other.windowId && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(windowId, options);
+        }
+    }
+
+    // Least recently used first
+    private final LinkedHashMap<Key, CachedWindow> windows =
+            new LinkedHashMap<Key, CachedWindow>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, CachedWindow> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Stamp of the last invalidation of each window, and of all of them
+    private final HashMap<Integer, Long> invalidatedAt = new HashMap<>();
+    private long allInvalidatedAt;
+    private long stamp;
+
+    /** Invalidates the window the event came from, or every window if it names none. */
+    public void onEvent(AccessibilityEvent event) {
+        if (event.getEventType() == AccessibilityEvent.TYPE_ANNOUNCEMENT) {
+            return;
+        }
+        int windowId = event.getWindowId();
+        if (windowId < 0) {
+            invalidateAll();
+        } else {
+            invalidate(windowId);
+        }
+    }
+
+    public synchronized void invalidate(int windowId) {
+        invalidatedAt.put(windowId, ++stamp);
+        Iterator<Key> iterator = windows.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().windowId == windowId) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        allInvalidatedAt = ++stamp;
+        invalidatedAt.clear();
+        windows.clear();
+    }
+
+    /** The current stamp, taken before walking windows to {@link #put} them afterwards. */
+    public synchronized long stamp() {
+        return stamp;
+    }
+
+    /**
+     * The window as last captured with {@code options}, which only hold the options that change how
+     * a window is written (see {@link CaptureRequest#windowOptions()}), or null if it has changed
+     * since or was never captured.
+     */
+    public synchronized CachedWindow get(int windowId, CaptureRequest options) {
+        Key key = new Key(windowId, options);
+        CachedWindow window = windows.get(key);
+        if (window != null
+                && SystemClock.uptimeMillis() - window.capturedAt >= TreeMirror.FULL_REFRESH_INTERVAL_MS) {
+            windows.remove(key);
+            return null;
+        }
+        return window;
+    }
+
+    /**
+     * Keeps a window walked after {@code since} was taken from {@link #stamp()}, unless an event
+     * invalidated it in the meantime.
+     */
+    public synchronized void put(int windowId, CaptureRequest options, long since, CachedWindow window) {
+        Long invalidated = invalidatedAt.get(windowId);
+        if (allInvalidatedAt > since || (invalidated != null && invalidated > since)) {
+            return;
+        }
+        windows.put(new Key(windowId, options), window);
+    }
+}
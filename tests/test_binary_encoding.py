@@ -0,0 +1,193 @@
+#!/usr/bin/env python3
+"""
+Test script for the binary tree encoding and compression negotiated with the
+"hello" message.
+
+Opens a JSON client, a binary client and a compressed binary client, triggers a
+capture, decodes the frames and compares them with the JSON tree.
+"""
+
+import asyncio
+import websockets
+import json
+import struct
+import zlib
+
+URI = "ws://localhost:38301/"
+
+PROPERTY_NAMES = ["focusable", "screen reader focusable", "focused", "selected", "scrollable",
+                  "clickable", "long clickable", "accessibility focused", "disabled"]
+
+FLAG_ID, FLAG_METADATA, FLAG_BOUNDS, FLAG_PROPERTIES, FLAG_INVISIBLE = 1, 2, 4, 8, 16
+
+
+class Reader:
+    def __init__(self, data):
+        self.data = data
+        self.pos = 0
+
+    def byte(self):
+        value = self.data[self.pos]
+        self.pos += 1
+        return value
+
+    def varint(self):
+        result, shift = 0, 0
+        while True:
+            b = self.byte()
+            result |= (b & 0x7F) << shift
+            if not b & 0x80:
+                return result
+            shift += 7
+
+    def zigzag(self):
+        value = self.varint()
+        return (value >> 1) ^ -(value & 1)
+
+    def raw(self, length):
+        value = self.data[self.pos:self.pos + length]
+        self.pos += length
+        return value
+
+
+def decompress_frame(data):
+    """Unwrap an A11Z frame, returning the original text or A11T bytes"""
+    reader = Reader(data)
+    assert reader.raw(4) == b"A11Z", "bad magic"
+    content = reader.byte()
+    length = reader.varint()
+    original = zlib.decompress(data[reader.pos:])
+    assert len(original) == length, f"expected {length} bytes, got {len(original)}"
+    return original.decode("utf-8") if content == 0 else original
+
+
+def decode_frame(data):
+    """Decode an A11T frame back into the JSON structure of the text encoding"""
+    if data[:4] == b"A11Z":
+        data = decompress_frame(data)
+    reader = Reader(data)
+    assert reader.raw(4) == b"A11T", "bad magic"
+    version = reader.byte()
+    assert version == 1, f"unsupported version {version}"
+    strings = [reader.raw(reader.varint()).decode("utf-8") for _ in range(reader.varint())]
+
+    def ref():
+        index = reader.varint()
+        return None if index == 0 else strings[index - 1]
+
+    def value():
+        tag = reader.byte()
+        if tag == 0:
+            return None
+        if tag in (1, 2):
+            return tag == 2
+        if tag == 3:
+            return reader.zigzag()
+        if tag == 4:
+            return struct.unpack(">f", reader.raw(4))[0]
+        if tag == 5:
+            return struct.unpack(">d", reader.raw(8))[0]
+        if tag == 6:
+            return strings[reader.varint()]
+        if tag == 7:
+            return [value() for _ in range(reader.varint())]
+        if tag == 8:
+            return {ref(): value() for _ in range(reader.varint())}
+        raise ValueError(f"unknown tag {tag}")
+
+    def node():
+        flags = reader.varint()
+        result = {}
+        if flags & FLAG_ID:
+            result["id"] = reader.zigzag()
+        name, resource_id = ref(), ref()
+        if name is not None:
+            result["name"] = name
+        if resource_id is not None:
+            result["resourceId"] = resource_id
+        metadata = {}
+        if flags & FLAG_PROPERTIES:
+            bits = reader.varint()
+            metadata["properties"] = [p for i, p in enumerate(PROPERTY_NAMES) if bits & (1 << i)]
+        if flags & FLAG_BOUNDS:
+            x1, y1 = reader.zigzag(), reader.zigzag()
+            metadata.update({"x1": x1, "y1": y1, "x2": x1 + reader.zigzag(), "y2": y1 + reader.zigzag()})
+        if flags & FLAG_INVISIBLE:
+            metadata["visibility"] = "invisible"
+        if flags & FLAG_METADATA:
+            for _ in range(reader.varint()):
+                key = ref()
+                metadata[key] = value()
+            result["metadata"] = metadata
+        for _ in range(reader.varint()):
+            key = ref()
+            result[key] = value()
+        child_count = reader.varint()
+        if child_count:
+            result["children"] = [node() for _ in range(child_count)]
+        return result
+
+    return node()
+
+
+def count_nodes(children):
+    count = len(children)
+    for child in children:
+        count += count_nodes(child.get("children", []))
+    return count
+
+
+async def wait_for_tree(websocket):
+    while True:
+        message = await asyncio.wait_for(websocket.recv(), timeout=20.0)
+        if isinstance(message, bytes):
+            return message
+        if json.loads(message).get("type") == "tree":
+            return message
+
+
+async def test_binary_encoding():
+    async with websockets.connect(URI, max_size=None) as json_client, \
+            websockets.connect(URI, max_size=None) as binary_client, \
+            websockets.connect(URI, max_size=None) as compressed_client:
+        await binary_client.send(json.dumps({"message": "hello", "encoding": "binary"}))
+        hello = json.loads(await binary_client.recv())
+        print(f"Handshake: {hello}")
+        assert hello.get("encoding") == "binary"
+
+        await compressed_client.send(json.dumps({"message": "hello", "encoding": "binary",
+                                                 "compression": "deflate", "compressionThreshold": 0}))
+        hello = json.loads(await compressed_client.recv())
+        print(f"Handshake: {hello}")
+        assert hello.get("compression") == "deflate"
+
+        await json_client.send(json.dumps({"message": "capture"}))
+        text_tree = await wait_for_tree(json_client)
+        binary_tree = await wait_for_tree(binary_client)
+        compressed_tree = await wait_for_tree(compressed_client)
+
+        assert isinstance(binary_tree, bytes), "binary client received a text tree"
+        assert compressed_tree[:4] == b"A11Z", "compressed client received an uncompressed tree"
+        decoded = decode_frame(binary_tree)
+        decompressed = decode_frame(compressed_tree)
+        expected = json.loads(text_tree)
+
+        json_size = len(text_tree.encode('utf-8'))
+        print(f"JSON size:       {json_size:,} bytes")
+        print(f"Binary size:     {len(binary_tree):,} bytes ({len(binary_tree) / json_size:.0%} of JSON)")
+        print(f"Compressed size: {len(compressed_tree):,} bytes ({len(compressed_tree) / json_size:.0%} of JSON)")
+        print(f"Nodes: json={count_nodes(expected.get('children', []))}, "
+              f"binary={count_nodes(decoded.get('children', []))}")
+        assert decoded.get("type") == "tree"
+        assert decompressed == decoded, "compressed frame does not match the binary frame"
+
+        await json_client.send(json.dumps({"message": "metrics"}))
+        while True:
+            metrics = json.loads(await asyncio.wait_for(json_client.recv(), timeout=10.0))
+            if metrics.get("type") == "metrics":
+                print(f"Compression metrics: {metrics['metrics'].get('compression')}")
+                break
+
+
+if __name__ == "__main__":
+    asyncio.run(test_binary_encoding())
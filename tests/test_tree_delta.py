@@ -0,0 +1,135 @@
+#!/usr/bin/env python3
+"""
+Test script for delta stableTree streaming.
+
+Opens a full-mode client and a delta-mode client, then applies every
+stableTreeDelta the delta client receives and checks that the rebuilt tree
+matches the full stableTree of the same generation. Interact with the device
+while it runs so the UI settles a few times.
+"""
+
+import asyncio
+import websockets
+import json
+
+URI = "ws://localhost:38301/"
+TREES_TO_CHECK = 5
+
+
+def window_key(window):
+    metadata = window.get("metadata", {})
+    if "windowId" in metadata:
+        return f"window:{metadata['windowId']}"
+    return str(window["id"])
+
+
+def flatten(tree):
+    """Flatten a full tree the same way the service keys it"""
+    nodes, root_keys = {}, []
+
+    def add(node, key, parent_key):
+        fields = {k: v for k, v in node.items() if k not in ("children", "hash")}
+        child_keys = [child.get("nodeId", str(child["id"])) for child in node.get("children", [])]
+        nodes[key] = {"node": fields, "parentKey": parent_key, "childKeys": child_keys, "hash": node.get("hash")}
+        for child, child_key in zip(node.get("children", []), child_keys):
+            add(child, child_key, key)
+
+    for window in tree.get("children", []):
+        key = window_key(window)
+        root_keys.append(key)
+        add(window, key, None)
+    return nodes, root_keys
+
+
+class DeltaTree:
+    def __init__(self):
+        self.nodes = {}
+        self.root_keys = []
+        self.generation = None
+
+    def load_full(self, tree):
+        self.nodes, self.root_keys = flatten(tree)
+        self.generation = tree["generation"]
+
+    def apply(self, patch):
+        if patch["baseGeneration"] != self.generation:
+            return False
+        for key in patch["removed"]:
+            self.nodes.pop(key, None)
+        for entry in patch["added"] + patch["changed"]:
+            existing = self.nodes.get(entry["key"], {})
+            self.nodes[entry["key"]] = {
+                "node": entry.get("node", existing.get("node")),
+                "parentKey": entry.get("parentKey"),
+                "childKeys": entry["childKeys"],
+                "hash": entry.get("hash"),
+            }
+        if "rootKeys" in patch:
+            self.root_keys = patch["rootKeys"]
+        self.generation = patch["generation"]
+        return True
+
+
+async def wait_for(websocket, types):
+    while True:
+        message = json.loads(await asyncio.wait_for(websocket.recv(), timeout=120.0))
+        if message.get("type") in types:
+            return message
+
+
+async def test_tree_delta():
+    async with websockets.connect(URI, max_size=None) as full_client, \
+            websockets.connect(URI, max_size=None) as delta_client:
+        await delta_client.send(json.dumps({"message": "hello", "treeMode": "delta"}))
+        hello = await wait_for(delta_client, {"hello"})
+        print(f"Handshake: {hello}")
+        assert hello.get("treeMode") == "delta"
+
+        full_trees = {}
+        delta_tree = DeltaTree()
+        checked, patches, patch_bytes, full_bytes = 0, 0, 0, 0
+
+        async def collect_full():
+            while True:
+                tree = await wait_for(full_client, {"stableTree"})
+                full_trees[tree["generation"]] = tree
+
+        collector = asyncio.create_task(collect_full())
+        try:
+            while checked < TREES_TO_CHECK:
+                message = await wait_for(delta_client, {"stableTree", "stableTreeDelta"})
+                size = len(json.dumps(message))
+                if message["type"] == "stableTree":
+                    print(f"📦 Full tree, generation {message['generation']} ({size:,} bytes)")
+                    delta_tree.load_full(message)
+                elif delta_tree.apply(message):
+                    patches += 1
+                    patch_bytes += size
+                    print(f"🩹 Patch {message['baseGeneration']} -> {message['generation']}: "
+                          f"+{len(message['added'])} ~{len(message['changed'])} -{len(message['removed'])} "
+                          f"({size:,} bytes)")
+                else:
+                    print(f"⚠️ Gap: have {delta_tree.generation}, patch is based on {message['baseGeneration']}")
+                    await delta_client.send(json.dumps({"message": "resync"}))
+                    continue
+                await delta_client.send(json.dumps({"message": "ackTree", "generation": delta_tree.generation}))
+
+                await asyncio.sleep(0.5)
+                expected = full_trees.get(delta_tree.generation)
+                if expected is None:
+                    continue
+                full_bytes += len(json.dumps(expected))
+                expected_nodes, expected_roots = flatten(expected)
+                assert expected_roots == delta_tree.root_keys, "window order differs"
+                assert expected_nodes == delta_tree.nodes, f"generation {delta_tree.generation} differs"
+                print(f"✅ Generation {delta_tree.generation} matches the full tree")
+                checked += 1
+        finally:
+            collector.cancel()
+
+        print(f"\nChecked {checked} trees, {patches} patches, {patch_bytes:,} patch bytes "
+              f"vs {full_bytes:,} full tree bytes")
+
+
+if __name__ == "__main__":
+    asyncio.run(test_tree_delta())
@@ -0,0 +1,134 @@
+#!/usr/bin/env python3
+"""
+Test script for waitFor: the service waits for a node to appear, disappear or change,
+and replies once, instead of the client polling findByText in a loop
+"""
+
+import asyncio
+import websockets
+import json
+import sys
+
+async def wait_for_response_type(websocket, expected_type, timeout=10):
+    """Wait for a specific response type, filtering out accessibility events"""
+    start_time = asyncio.get_event_loop().time()
+
+    while True:
+        try:
+            response = await asyncio.wait_for(websocket.recv(), timeout=2.0)
+            response_json = json.loads(response)
+
+            # Check if this is the response we're looking for
+            if response_json.get("type") == expected_type:
+                return response_json
+
+            # Check if we've timed out
+            if asyncio.get_event_loop().time() - start_time > timeout:
+                raise asyncio.TimeoutError(f"Timeout waiting for {expected_type}")
+
+            # Skip accessibility events silently in this test
+
+        except asyncio.TimeoutError:
+            if asyncio.get_event_loop().time() - start_time > timeout:
+                raise asyncio.TimeoutError(f"Timeout waiting for {expected_type}")
+            continue
+        except json.JSONDecodeError:
+            # Skip non-JSON responses (like tree data)
+            continue
+
+async def send_wait(websocket, wait_msg):
+    """Send a waitFor and return its one result, allowing for the server-side timeout"""
+    start_time = asyncio.get_event_loop().time()
+    await websocket.send(json.dumps(wait_msg))
+    timeout = wait_msg.get("timeoutMs", 10000) / 1000 + 5
+    response_json = await wait_for_response_type(websocket, "waitForResult", timeout=timeout)
+    elapsed = asyncio.get_event_loop().time() - start_time
+
+    print(f"Success: {response_json.get('success')}")
+    print(f"Timed out: {response_json.get('timedOut')}")
+    print(f"Message: {response_json.get('message')}")
+    print(f"Server elapsed: {response_json.get('elapsedMs')} ms, checks: {response_json.get('checks')}")
+    print(f"Round trip: {elapsed:.2f} s")
+    for node in response_json.get('nodes', []):
+        print(f"   {node.get('className')} text='{node.get('text')}' bounds={node.get('boundsInScreen')}")
+    return response_json
+
+async def wait_for_test():
+    uri = "ws://localhost:38301/"
+
+    try:
+        async with websockets.connect(uri) as websocket:
+            print("Connected to WebSocket server")
+
+            search_text = input("Enter text to wait for (e.g., 'Settings', 'Home'): ").strip()
+            if not search_text:
+                search_text = "Settings"
+            # Selector values cannot contain their quotes
+            search_text = search_text.replace('"', '')
+            selector = f'*[text~="{search_text}"], *[contentDescription~="{search_text}"]'
+
+            # Test 1: wait for the text to appear; open the screen with it while this runs
+            print(f"\n=== waitFor appears: {selector} ===")
+            print("Navigate to a screen showing the text within 30 seconds")
+            result = await send_wait(websocket, {
+                "message": "waitFor",
+                "id": "appears",
+                "selector": selector,
+                "condition": "appears",
+                "timeoutMs": 30000
+            })
+            if result.get("id") != "appears":
+                print("FAIL: the result does not carry the id of the wait")
+
+            # Test 2: wait for it to disappear; navigate away while this runs
+            print(f"\n=== waitFor disappears: {selector} ===")
+            print("Navigate away from the text within 30 seconds")
+            await send_wait(websocket, {
+                "message": "waitFor",
+                "id": "disappears",
+                "selector": selector,
+                "condition": "disappears",
+                "timeoutMs": 30000
+            })
+
+            # Test 3: a property that is already true is answered on the first check
+            print("\n=== waitFor propertyEquals: a clickable node is enabled ===")
+            result = await send_wait(websocket, {
+                "message": "waitFor",
+                "selector": "*[clickable]",
+                "condition": "propertyEquals",
+                "property": "isEnabled",
+                "value": True,
+                "timeoutMs": 5000
+            })
+            if result.get("success") and result.get("checks") != 1:
+                print("FAIL: a condition that already holds should be answered on the first check")
+
+            # Test 4: a selector that never matches times out
+            print("\n=== waitFor timeout ===")
+            result = await send_wait(websocket, {
+                "message": "waitFor",
+                "selector": '*[text="no node has this text 7f3a"]',
+                "timeoutMs": 2000
+            })
+            if not result.get("timedOut"):
+                print("FAIL: expected a timeout")
+
+            # Test 5: an invalid selector is rejected straight away
+            print("\n=== waitFor invalid selector ===")
+            result = await send_wait(websocket, {
+                "message": "waitFor",
+                "selector": "Button[text=",
+                "timeoutMs": 2000
+            })
+            if result.get("success"):
+                print("FAIL: expected an error for an invalid selector")
+
+    except Exception as e:
+        print(f"Error: {e}")
+        sys.exit(1)
+
+if __name__ == "__main__":
+    print("Make sure to run 'adb forward tcp:38301 tcp:38301' before running this test")
+    print("This script waits on the device for elements instead of polling for them")
+    asyncio.run(wait_for_test())